@@ -0,0 +1,549 @@
+package cz.nsl.oneactionaclick;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.nsl.oneactionaclick.api.HomeAssistantApiClient;
+import cz.nsl.oneactionaclick.api.HomeAssistantService;
+import cz.nsl.oneactionaclick.api.LatencyStats;
+import cz.nsl.oneactionaclick.api.RetryPolicy;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Durable queue for widget taps that could not be delivered.
+ *
+ * Widgets with "deliver eventually" enabled append failed or offline taps to a
+ * journal file (one JSON record per line) on a background thread, so the tap path
+ * never waits for disk. {@link ActionReplayJobService} replays the queue in order
+ * once a network is available; entries older than {@link #ENTRY_TTL_MS} are dropped
+ * instead of being sent late.
+ *
+ * A tap is only queued if sending it again cannot run it twice: either it never left
+ * the device, or its service is idempotent (see {@link RetryPolicy#isIdempotentService}).
+ * While a widget has taps waiting, its new taps queue up behind them to keep their order.
+ */
+public class ActionQueue {
+    private static final String TAG = "ActionQueue";
+
+    private static final String JOURNAL_FILE = "action_queue.journal";
+    private static final int REPLAY_JOB_ID = 4201;
+
+    // Stale toggles are worse than lost ones, so queued taps expire
+    public static final long ENTRY_TTL_MS = 15 * 60 * 1000L;
+
+    private static final String RECORD_ADD = "add";
+    private static final String RECORD_DONE = "done";
+
+    /**
+     * Outcome of a tap that went through {@link #callOrEnqueue}, reported on the main thread
+     */
+    public interface TapCallback {
+        void onDelivered();
+        void onQueued();
+        void onFailed(String error);
+    }
+
+    public interface ReplayCallback {
+        /**
+         * Called on the main thread when a replay run ends
+         *
+         * @param needsRetry true if entries are left that could not be delivered yet
+         */
+        void onReplayFinished(boolean needsRetry);
+    }
+
+    static class Entry {
+        final String id;
+        final int appWidgetId;
+        final String domain;
+        final String service;
+        final String entityId;
+        final long queuedAt;
+
+        Entry(String id, int appWidgetId, String domain, String service, String entityId, long queuedAt) {
+            this.id = id;
+            this.appWidgetId = appWidgetId;
+            this.domain = domain;
+            this.service = service;
+            this.entityId = entityId;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static ActionQueue sInstance;
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final ExecutorService journalExecutor;
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final AtomicBoolean replaying = new AtomicBoolean(false);
+
+    // Queued entries by widget, guarded by this
+    private final SparseIntArray queuedByWidget = new SparseIntArray();
+
+    public static synchronized ActionQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ActionQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ActionQueue(Context context) {
+        this.context = context;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.journalExecutor = Executors.newSingleThreadExecutor();
+
+        // Pick up entries left over from a previous process
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> pending = readPending();
+                queuedCount.addAndGet(pending.size());
+                synchronized (ActionQueue.this) {
+                    for (Entry entry : pending) {
+                        adjustQueued(entry.appWidgetId, 1);
+                    }
+                }
+            }
+        });
+    }
+
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * Check whether the device currently has a connected network
+     */
+    public static boolean isNetworkAvailable(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return true;
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /**
+     * Call the widget's service. If the widget delivers eventually and the call cannot
+     * be made right now (offline, unreachable), queue it for replay instead. Calls that
+     * may have reached Home Assistant are only queued for idempotent services.
+     */
+    public void callOrEnqueue(final HomeAssistantApiClient apiClient, final int appWidgetId,
+                              final String domain, final String service, final String entityId,
+                              final TapCallback callback) {
+        final boolean deliverEventually = WidgetConfigStore.getInstance(context).get(appWidgetId).deliversEventually();
+        final long tapTime = System.currentTimeMillis();
+
+        if (deliverEventually && !isNetworkAvailable(context)) {
+            enqueueAndReport(appWidgetId, domain, service, entityId, callback);
+            return;
+        }
+        if (!deliverEventually) {
+            send(apiClient, appWidgetId, domain, service, entityId, false, tapTime, callback);
+            return;
+        }
+
+        // Entries left by an earlier process are only known once the journal was read,
+        // which happens first on the same executor
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean behindQueued;
+                synchronized (ActionQueue.this) {
+                    behindQueued = queuedByWidget.get(appWidgetId) > 0;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (behindQueued) {
+                            // Sending now would overtake the widget's earlier taps
+                            enqueueAndReport(appWidgetId, domain, service, entityId, callback);
+                        } else {
+                            send(apiClient, appWidgetId, domain, service, entityId, true, tapTime, callback);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void enqueueAndReport(int appWidgetId, String domain, String service, String entityId,
+                                  final TapCallback callback) {
+        enqueue(appWidgetId, domain, service, entityId);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onQueued();
+            }
+        });
+    }
+
+    private void send(HomeAssistantApiClient apiClient, final int appWidgetId,
+                      final String domain, final String service, final String entityId,
+                      final boolean deliverEventually, final long tapTime, final TapCallback callback) {
+        apiClient.callService(domain, service, entityId, new HomeAssistantApiClient.ServiceCallback() {
+            @Override
+            public void onServicesLoaded(Map<String, List<HomeAssistantService>> services) {
+                // Tap to confirmation, including retries; replayed taps are not counted
+                LatencyStats latencyStats = LatencyStats.getInstance(context);
+                latencyStats.record(LatencyStats.widgetKey(appWidgetId), System.currentTimeMillis() - tapTime);
+                // The tap's process is often gone before the delayed save
+                latencyStats.flush();
+                callback.onDelivered();
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onFailed(error);
+            }
+
+            @Override
+            public void onTransientError(String error, String detailedInfo) {
+                // Home Assistant may have run the call already, a replay must not run it again
+                if (deliverEventually && RetryPolicy.isIdempotentService(service)) {
+                    enqueue(appWidgetId, domain, service, entityId);
+                    callback.onQueued();
+                } else {
+                    callback.onFailed(error);
+                }
+            }
+
+            @Override
+            public void onNotSent(String error, String detailedInfo) {
+                if (deliverEventually) {
+                    enqueue(appWidgetId, domain, service, entityId);
+                    callback.onQueued();
+                } else {
+                    callback.onFailed(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Append a tap to the journal and schedule a replay. Returns without touching disk.
+     */
+    public void enqueue(int appWidgetId, String domain, String service, String entityId) {
+        final Entry entry = new Entry(UUID.randomUUID().toString(), appWidgetId, domain, service, entityId,
+                System.currentTimeMillis());
+        queuedCount.incrementAndGet();
+        synchronized (this) {
+            adjustQueued(appWidgetId, 1);
+        }
+        logCounts("queued " + domain + "." + service + " " + entityId);
+
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    append(addRecord(entry));
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Error appending to action journal", e);
+                }
+            }
+        });
+        scheduleReplay();
+    }
+
+    /**
+     * Ask the system to run the replay job once a network is available
+     */
+    public void scheduleReplay() {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        // Rescheduling would stop a replay that is already running
+        for (JobInfo pending : jobScheduler.getAllPendingJobs()) {
+            if (pending.getId() == REPLAY_JOB_ID) {
+                return;
+            }
+        }
+        JobInfo job = new JobInfo.Builder(REPLAY_JOB_ID, new ComponentName(context, ActionReplayJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(30000, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setPersisted(true)
+                .build();
+        jobScheduler.schedule(job);
+    }
+
+    /**
+     * Deliver queued taps in order. Stops at the first transient failure so that
+     * later taps are never sent ahead of earlier ones.
+     */
+    public void replay(final ReplayCallback callback) {
+        if (!replaying.compareAndSet(false, true)) {
+            // Another run is still going, let the job try again later
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onReplayFinished(true);
+                }
+            });
+            return;
+        }
+
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> pending = readPending();
+                final List<Entry> live = new ArrayList<>();
+                long now = System.currentTimeMillis();
+                for (Entry entry : pending) {
+                    if (isExpired(entry, now)) {
+                        markDone(entry);
+                        logCounts("dropped expired " + entry.domain + "." + entry.service + " " + entry.entityId);
+                    } else {
+                        live.add(entry);
+                    }
+                }
+                queuedCount.set(live.size());
+                synchronized (ActionQueue.this) {
+                    queuedByWidget.clear();
+                    for (Entry entry : live) {
+                        adjustQueued(entry.appWidgetId, 1);
+                    }
+                }
+
+                if (live.isEmpty()) {
+                    new File(context.getFilesDir(), JOURNAL_FILE).delete();
+                    finishReplay(callback, false);
+                    return;
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        replayNext(new HomeAssistantApiClient(context), live, 0, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    private void replayNext(final HomeAssistantApiClient apiClient, final List<Entry> entries, final int index,
+                            final ReplayCallback callback) {
+        if (index >= entries.size()) {
+            // Everything delivered, the journal can start over
+            journalExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (readPending().isEmpty()) {
+                        new File(context.getFilesDir(), JOURNAL_FILE).delete();
+                    }
+                }
+            });
+            finishReplay(callback, false);
+            return;
+        }
+
+        final Entry entry = entries.get(index);
+        if (isExpired(entry, System.currentTimeMillis())) {
+            completeEntry(entry, "dropped expired");
+            replayNext(apiClient, entries, index + 1, callback);
+            return;
+        }
+
+        inFlightCount.incrementAndGet();
+        logCounts("replaying " + entry.domain + "." + entry.service + " " + entry.entityId);
+        apiClient.callService(entry.domain, entry.service, entry.entityId, new HomeAssistantApiClient.ServiceCallback() {
+            @Override
+            public void onServicesLoaded(Map<String, List<HomeAssistantService>> services) {
+                inFlightCount.decrementAndGet();
+                completeEntry(entry, "delivered");
+                replayNext(apiClient, entries, index + 1, callback);
+            }
+
+            @Override
+            public void onError(String error) {
+                // The request itself is bad, retrying will not help
+                inFlightCount.decrementAndGet();
+                completeEntry(entry, "dropped (" + error + ")");
+                replayNext(apiClient, entries, index + 1, callback);
+            }
+
+            @Override
+            public void onTransientError(String error, String detailedInfo) {
+                inFlightCount.decrementAndGet();
+                if (!RetryPolicy.isIdempotentService(entry.service)) {
+                    // It may have run, sending it again could undo it
+                    completeEntry(entry, "dropped, outcome unknown (" + error + ")");
+                    replayNext(apiClient, entries, index + 1, callback);
+                    return;
+                }
+                logCounts("replay deferred (" + error + ")");
+                finishReplay(callback, true);
+            }
+
+            @Override
+            public void onNotSent(String error, String detailedInfo) {
+                inFlightCount.decrementAndGet();
+                logCounts("replay deferred (" + error + ")");
+                finishReplay(callback, true);
+            }
+        });
+    }
+
+    private void completeEntry(final Entry entry, String outcome) {
+        queuedCount.decrementAndGet();
+        synchronized (this) {
+            adjustQueued(entry.appWidgetId, -1);
+        }
+        logCounts(outcome + " " + entry.domain + "." + entry.service + " " + entry.entityId);
+        journalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                markDone(entry);
+            }
+        });
+    }
+
+    private void finishReplay(final ReplayCallback callback, final boolean needsRetry) {
+        replaying.set(false);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReplayFinished(needsRetry);
+            }
+        });
+    }
+
+    /**
+     * Change the number of queued entries of a widget. Caller holds the lock.
+     */
+    private void adjustQueued(int appWidgetId, int delta) {
+        int count = Math.max(0, queuedByWidget.get(appWidgetId) + delta);
+        if (count == 0) {
+            queuedByWidget.delete(appWidgetId);
+        } else {
+            queuedByWidget.put(appWidgetId, count);
+        }
+    }
+
+    /**
+     * Check whether a queued tap is too old to be sent
+     */
+    static boolean isExpired(Entry entry, long now) {
+        return now - entry.queuedAt > ENTRY_TTL_MS;
+    }
+
+    private void logCounts(String event) {
+        HomeAssistantApiClient.logEvent("QUEUE", event + " (queued " + queuedCount.get()
+                + ", in flight " + inFlightCount.get() + ")", 0);
+    }
+
+    // Journal access, only called on journalExecutor
+
+    private void markDone(Entry entry) {
+        try {
+            append(doneRecord(entry));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error appending to action journal", e);
+        }
+    }
+
+    private void append(JSONObject record) throws IOException {
+        File journal = new File(context.getFilesDir(), JOURNAL_FILE);
+        try (BufferedSink sink = Okio.buffer(Okio.appendingSink(journal))) {
+            sink.writeUtf8(record.toString()).writeByte('\n');
+        }
+    }
+
+    private List<Entry> readPending() {
+        File journal = new File(context.getFilesDir(), JOURNAL_FILE);
+        if (!journal.exists()) {
+            return new ArrayList<>();
+        }
+
+        try (BufferedSource source = Okio.buffer(Okio.source(journal))) {
+            return readPending(source);
+        } catch (IOException e) {
+            // Without the rest of the file, done records may be missing too
+            Log.e(TAG, "Error reading action journal", e);
+            return new ArrayList<>();
+        }
+    }
+
+    // Journal format, one record per line
+
+    static JSONObject addRecord(Entry entry) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("t", RECORD_ADD);
+        record.put("id", entry.id);
+        record.put("w", entry.appWidgetId);
+        record.put("d", entry.domain);
+        record.put("s", entry.service);
+        record.put("e", entry.entityId);
+        record.put("at", entry.queuedAt);
+        return record;
+    }
+
+    static JSONObject doneRecord(Entry entry) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("t", RECORD_DONE);
+        record.put("id", entry.id);
+        return record;
+    }
+
+    /**
+     * Replay the journal's records
+     *
+     * @return entries that were added and not done yet, in the order they were queued
+     */
+    static List<Entry> readPending(BufferedSource source) throws IOException {
+        Map<String, Entry> pending = new LinkedHashMap<>();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                JSONObject record = new JSONObject(line);
+                String id = record.getString("id");
+                if (RECORD_ADD.equals(record.optString("t"))) {
+                    pending.put(id, new Entry(id, record.getInt("w"), record.getString("d"),
+                            record.getString("s"), record.getString("e"), record.getLong("at")));
+                } else {
+                    pending.remove(id);
+                }
+            } catch (JSONException e) {
+                // A torn write at the end of the file, skip it
+                Log.w(TAG, "Skipping unreadable journal record", e);
+            }
+        }
+        return new ArrayList<>(pending.values());
+    }
+}
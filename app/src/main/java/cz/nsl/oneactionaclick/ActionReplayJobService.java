@@ -0,0 +1,31 @@
+package cz.nsl.oneactionaclick;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+/**
+ * Replays taps queued by {@link ActionQueue} once the network constraint is met
+ */
+public class ActionReplayJobService extends JobService {
+    private static final String TAG = "ActionReplayJobService";
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Log.d(TAG, "Replaying queued widget actions");
+        ActionQueue.getInstance(this).replay(new ActionQueue.ReplayCallback() {
+            @Override
+            public void onReplayFinished(boolean needsRetry) {
+                // Taps queued while this run was going were not part of it, so run again for them too
+                jobFinished(params, needsRetry || ActionQueue.getInstance(ActionReplayJobService.this).getQueuedCount() > 0);
+            }
+        });
+        return true; // Work continues asynchronously
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Constraints lost mid-run, try again later; delivered entries are already marked done
+        return true;
+    }
+}
\ No newline at end of file
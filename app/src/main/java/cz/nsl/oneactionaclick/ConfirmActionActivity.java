@@ -5,29 +5,14 @@ import android.app.AlertDialog;
 import android.appwidget.AppWidgetManager;
 import android.content.DialogInterface;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.widget.Toast;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.IOException;
-
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
+import cz.nsl.oneactionaclick.api.HomeAssistantApiClient;
 
 public class ConfirmActionActivity extends Activity {
     
     private int appWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
-    private OkHttpClient client;
-    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-    private Handler mainHandler;
+    private HomeAssistantApiClient apiClient;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,34 +32,29 @@ public class ConfirmActionActivity extends Activity {
             return;
         }
         
-        // Initialize HTTP client and main thread handler
-        client = new OkHttpClient();
-        mainHandler = new Handler(Looper.getMainLooper());
+        // Initialize API client
+        apiClient = new HomeAssistantApiClient(this);
         
-        // Check if confirmation is required
-        boolean requireConfirmation = WidgetConfigActivity.requiresConfirmation(this, appWidgetId);
+        WidgetConfig config = WidgetConfigStore.getInstance(this).get(appWidgetId);
         
-        if (requireConfirmation) {
+        // Check if confirmation is required
+        if (config.requiresConfirmation()) {
             // Show confirmation dialog
-            showConfirmationDialog();
+            showConfirmationDialog(config);
         } else {
             // Skip confirmation and directly call the service
-            String serviceDomain = WidgetConfigActivity.getServiceDomain(this, appWidgetId);
-            String serviceName = WidgetConfigActivity.getServiceName(this, appWidgetId);
-            String entityId = WidgetConfigActivity.getEntityId(this, appWidgetId);
-            callHomeAssistantService(serviceDomain, serviceName, entityId);
+            callHomeAssistantService(config.getServiceDomain(), config.getServiceName(), config.getEntityId());
         }
     }
     
-    private void showConfirmationDialog() {
+    private void showConfirmationDialog(WidgetConfig config) {
         // Get widget configuration
-        String serviceDomain = WidgetConfigActivity.getServiceDomain(this, appWidgetId);
-        String serviceName = WidgetConfigActivity.getServiceName(this, appWidgetId);
-        String entityId = WidgetConfigActivity.getEntityId(this, appWidgetId);
-        String widgetTitle = WidgetConfigActivity.getWidgetTitle(this, appWidgetId);
+        final String serviceDomain = config.getServiceDomain();
+        final String serviceName = config.getServiceName();
+        final String entityId = config.getEntityId();
         
         // Get custom confirmation message if available, otherwise use default
-        String customMessage = WidgetConfigActivity.getConfirmationMessage(this, appWidgetId);
+        String customMessage = config.getConfirmationMessage();
         String message = (customMessage != null && !customMessage.isEmpty()) 
                 ? customMessage 
                 : getString(R.string.confirm_message);
@@ -106,60 +86,27 @@ public class ConfirmActionActivity extends Activity {
     }
     
     private void callHomeAssistantService(String domain, String service, String entityId) {
-        String baseUrl = SettingsActivity.getHomeAssistantUrl(this);
-        String token = SettingsActivity.getHomeAssistantToken(this);
-        String url = baseUrl + "/api/services/" + domain + "/" + service;
-        
-        // Create service call payload
-        JSONObject jsonBody = new JSONObject();
-        try {
-            jsonBody.put("entity_id", entityId);
-        } catch (JSONException e) {
-            e.printStackTrace();
-            showErrorAndFinish(e.getMessage());
-            return;
-        }
-        
-        RequestBody body = RequestBody.create(jsonBody.toString(), JSON);
-        
-        // Build and execute the request
-        Request request = new Request.Builder()
-                .url(url)
-                .addHeader("Authorization", "Bearer " + token)
-                .addHeader("Content-Type", "application/json")
-                .post(body)
-                .build();
-        
-        client.newCall(request).enqueue(new Callback() {
+        // The API client picks the transport (WebSocket session or REST); taps that cannot be
+        // delivered right now are queued if the widget is set to deliver eventually
+        ActionQueue.getInstance(this).callOrEnqueue(apiClient, appWidgetId, domain, service, entityId,
+                new ActionQueue.TapCallback() {
             @Override
-            public void onFailure(Call call, IOException e) {
-                mainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        showErrorAndFinish(e.getMessage());
-                    }
-                });
+            public void onDelivered() {
+                Toast.makeText(ConfirmActionActivity.this, 
+                        R.string.action_success, Toast.LENGTH_SHORT).show();
+                finish();
             }
 
             @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                final boolean successful = response.isSuccessful();
-                final String responseBody = response.body() != null ? response.body().string() : "";
-                
-                mainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (successful) {
-                            Toast.makeText(ConfirmActionActivity.this, 
-                                    R.string.action_success, Toast.LENGTH_SHORT).show();
-                        } else {
-                            Toast.makeText(ConfirmActionActivity.this, 
-                                    getString(R.string.action_failed) + " " + responseBody, 
-                                    Toast.LENGTH_LONG).show();
-                        }
-                        finish();
-                    }
-                });
+            public void onQueued() {
+                Toast.makeText(ConfirmActionActivity.this, 
+                        R.string.action_queued, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+
+            @Override
+            public void onFailed(String error) {
+                showErrorAndFinish(error);
             }
         });
     }
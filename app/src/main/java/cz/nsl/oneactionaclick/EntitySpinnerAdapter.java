@@ -0,0 +1,114 @@
+package cz.nsl.oneactionaclick;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+
+import cz.nsl.oneactionaclick.api.EntitySearchIndex;
+import cz.nsl.oneactionaclick.api.HomeAssistantEntity;
+
+/**
+ * Spinner adapter for the entity picker with a prompt as the first item.
+ * It either shows a domain's entity list as is, or the positions of a search
+ * result in an {@link EntitySearchIndex}; neither mode copies the entity list.
+ */
+public class EntitySpinnerAdapter extends BaseAdapter {
+    private final LayoutInflater inflater;
+    private final String prompt;
+
+    private List<HomeAssistantEntity> entities = Collections.emptyList();
+
+    // Search results, used instead of entities while a filter is active
+    private EntitySearchIndex index;
+    private int[] results;
+    private int resultCount = -1;
+
+    public EntitySpinnerAdapter(Context context, String prompt) {
+        this.inflater = LayoutInflater.from(context);
+        this.prompt = prompt;
+    }
+
+    /**
+     * Show a full entity list
+     */
+    public void setEntities(List<HomeAssistantEntity> entities) {
+        this.entities = entities;
+        this.resultCount = -1;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Show the first count positions of results, resolved through index
+     */
+    public void setResults(EntitySearchIndex index, int[] results, int count) {
+        this.index = index;
+        this.results = results;
+        this.resultCount = count;
+        notifyDataSetChanged();
+    }
+
+    public boolean isFiltered() {
+        return resultCount >= 0;
+    }
+
+    /**
+     * Get the spinner position of an entity, including the prompt offset
+     *
+     * @return the position, or -1 if the entity is not shown
+     */
+    public int getPosition(String entityId) {
+        for (int i = 1; i < getCount(); i++) {
+            if (getItem(i).getEntityId().equals(entityId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getCount() {
+        return (resultCount >= 0 ? resultCount : entities.size()) + 1; // +1 for prompt item
+    }
+
+    /**
+     * @return the entity at a spinner position, or null for the prompt item
+     */
+    @Override
+    public HomeAssistantEntity getItem(int position) {
+        if (position == 0) {
+            return null;
+        }
+        if (resultCount >= 0) {
+            return index.getEntity(results[position - 1]);
+        }
+        return entities.get(position - 1);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        return bindView(position, convertView, parent, android.R.layout.simple_spinner_item);
+    }
+
+    @Override
+    public View getDropDownView(int position, View convertView, ViewGroup parent) {
+        return bindView(position, convertView, parent, android.R.layout.simple_spinner_dropdown_item);
+    }
+
+    private View bindView(int position, View convertView, ViewGroup parent, int layout) {
+        TextView view = (TextView) (convertView != null ? convertView : inflater.inflate(layout, parent, false));
+        HomeAssistantEntity entity = getItem(position);
+        view.setText(entity != null ? entity.toString() : prompt);
+        return view;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,291 @@
+package cz.nsl.oneactionaclick;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cz.nsl.oneactionaclick.api.HomeAssistantWebSocket;
+
+/**
+ * Streams the state of the entities on our widgets while live state is enabled.
+ *
+ * All widgets share one subscribe_entities subscription on the WebSocket session. Updates
+ * only overwrite the latest state of their entity and mark it dirty; the widgets showing
+ * dirty entities are rendered at most once per {@link #MIN_RENDER_INTERVAL_MS}, however
+ * often the states change in between. A flapping sensor therefore costs one render pass
+ * a second at most; if it flaps back before the pass, the pass still runs but
+ * {@link WidgetRenderer} finds the content unchanged and pushes nothing.
+ */
+public class LiveStateTracker {
+    private static final String TAG = "LiveStateTracker";
+
+    // Global cap on widget renders caused by state changes
+    private static final long MIN_RENDER_INTERVAL_MS = 1000;
+
+    private static LiveStateTracker sInstance;
+
+    private final Context context;
+    private final HomeAssistantWebSocket webSocket;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Latest state per entity, written from the WebSocket thread
+    private final Map<String, EntityState> states = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private Set<String> subscribedEntities = new TreeSet<>();
+    private int[] appWidgetIds = new int[0];
+    private final Set<String> dirtyEntities = new HashSet<>();
+    private boolean flushScheduled = false;
+    private long lastFlushAt = 0;
+
+    private final HomeAssistantWebSocket.EventListener eventListener = new HomeAssistantWebSocket.EventListener() {
+        @Override
+        public JSONObject buildSubscribeCommand() throws JSONException {
+            JSONArray entityIds = new JSONArray();
+            synchronized (LiveStateTracker.this) {
+                for (String entityId : subscribedEntities) {
+                    entityIds.put(entityId);
+                }
+            }
+            JSONObject message = new JSONObject();
+            message.put("type", "subscribe_entities");
+            message.put("entity_ids", entityIds);
+            return message;
+        }
+
+        @Override
+        public void onEvent(JSONObject event) {
+            onEntitiesEvent(event);
+        }
+    };
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            List<Integer> dirtyWidgets = new ArrayList<>();
+            synchronized (LiveStateTracker.this) {
+                flushScheduled = false;
+                lastFlushAt = SystemClock.uptimeMillis();
+                WidgetConfigStore store = WidgetConfigStore.getInstance(context);
+                for (int appWidgetId : appWidgetIds) {
+                    if (dirtyEntities.contains(store.get(appWidgetId).getEntityId())) {
+                        dirtyWidgets.add(appWidgetId);
+                    }
+                }
+                dirtyEntities.clear();
+            }
+
+            int[] ids = new int[dirtyWidgets.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = dirtyWidgets.get(i);
+            }
+            WidgetRenderer.getInstance(context).requestRender(ids);
+        }
+    };
+
+    public static synchronized LiveStateTracker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LiveStateTracker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LiveStateTracker(Context context) {
+        this.context = context;
+        this.webSocket = HomeAssistantWebSocket.getInstance(context);
+    }
+
+    /**
+     * Match the subscription to the current setting and widgets. Call after widgets are
+     * added, reconfigured or deleted and after the settings change.
+     */
+    public void refresh() {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        int[] ids = appWidgetManager.getAppWidgetIds(new ComponentName(context, HomeAssistantWidget.class));
+
+        Set<String> entities = new TreeSet<>();
+        if (SettingsActivity.isLiveStateEnabled(context)) {
+            WidgetConfigStore store = WidgetConfigStore.getInstance(context);
+            for (int appWidgetId : ids) {
+                entities.add(store.get(appWidgetId).getEntityId());
+            }
+        }
+
+        synchronized (this) {
+            appWidgetIds = ids;
+            if (entities.equals(subscribedEntities)) {
+                return;
+            }
+            subscribedEntities = entities;
+        }
+
+        // States of entities no widget shows anymore are dropped
+        for (Iterator<String> it = states.keySet().iterator(); it.hasNext(); ) {
+            if (!entities.contains(it.next())) {
+                it.remove();
+            }
+        }
+
+        if (entities.isEmpty()) {
+            Log.d(TAG, "Live state off or no widgets, unsubscribing");
+            webSocket.unsubscribe(eventListener);
+            if (!SettingsActivity.isWebSocketEnabled(context)) {
+                webSocket.disconnect();
+            }
+        } else {
+            Log.d(TAG, "Subscribing to " + entities.size() + " entities");
+            webSocket.subscribe(eventListener);
+            webSocket.connect();
+        }
+
+        // Show or hide the state on every widget
+        WidgetRenderer.getInstance(context).requestRender(ids);
+    }
+
+    /**
+     * Text to show for an entity's state, or null if it is not known or live state is off
+     */
+    public String getDisplayState(String entityId) {
+        EntityState state = states.get(entityId);
+        if (state == null) {
+            return null;
+        }
+        return state.unit != null && !state.unit.isEmpty() ? state.state + " " + state.unit : state.state;
+    }
+
+    /**
+     * Apply a subscribe_entities event: "a" holds full states, "c" changes, "r" removed entities
+     */
+    private void onEntitiesEvent(JSONObject event) {
+        List<String> changed = new ArrayList<>();
+
+        JSONObject added = event.optJSONObject("a");
+        if (added != null) {
+            for (Iterator<String> it = added.keys(); it.hasNext(); ) {
+                String entityId = it.next();
+                JSONObject entity = added.optJSONObject(entityId);
+                if (entity == null) {
+                    continue;
+                }
+                JSONObject attributes = entity.optJSONObject("a");
+                String unit = attributes != null ? attributes.optString("unit_of_measurement", null) : null;
+                if (update(entityId, entity.optString("s", null), unit, true)) {
+                    changed.add(entityId);
+                }
+            }
+        }
+
+        JSONObject changes = event.optJSONObject("c");
+        if (changes != null) {
+            for (Iterator<String> it = changes.keys(); it.hasNext(); ) {
+                String entityId = it.next();
+                JSONObject change = changes.optJSONObject(entityId);
+                JSONObject additions = change != null ? change.optJSONObject("+") : null;
+                if (additions == null) {
+                    continue;
+                }
+                JSONObject attributes = additions.optJSONObject("a");
+                String unit = attributes != null ? attributes.optString("unit_of_measurement", null) : null;
+                if (update(entityId, additions.optString("s", null), unit, false)) {
+                    changed.add(entityId);
+                }
+            }
+        }
+
+        JSONArray removed = event.optJSONArray("r");
+        if (removed != null) {
+            for (int i = 0; i < removed.length(); i++) {
+                String entityId = removed.optString(i);
+                if (states.remove(entityId) != null) {
+                    changed.add(entityId);
+                }
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            markDirty(changed);
+        }
+    }
+
+    /**
+     * Store an entity's latest state. Null values keep what we had, unless replace is set.
+     *
+     * @return true if what the widgets show changed
+     */
+    private boolean update(String entityId, String state, String unit, boolean replace) {
+        synchronized (this) {
+            if (!subscribedEntities.contains(entityId)) {
+                return false;
+            }
+        }
+        EntityState previous = states.get(entityId);
+        if (!replace && previous != null) {
+            if (state == null) {
+                state = previous.state;
+            }
+            if (unit == null) {
+                unit = previous.unit;
+            }
+        }
+        if (state == null) {
+            return false;
+        }
+
+        EntityState next = new EntityState(state, unit);
+        states.put(entityId, next);
+        return !next.equals(previous);
+    }
+
+    private void markDirty(List<String> entityIds) {
+        long delay;
+        synchronized (this) {
+            dirtyEntities.addAll(entityIds);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            delay = Math.max(0, lastFlushAt + MIN_RENDER_INTERVAL_MS - SystemClock.uptimeMillis());
+        }
+        mainHandler.postDelayed(flush, delay);
+    }
+
+    private static final class EntityState {
+        final String state;
+        final String unit;
+
+        EntityState(String state, String unit) {
+            this.state = state;
+            this.unit = unit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof EntityState)) return false;
+            EntityState other = (EntityState) o;
+            return state.equals(other.state) && (unit == null ? other.unit == null : unit.equals(other.unit));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * state.hashCode() + (unit != null ? unit.hashCode() : 0);
+        }
+    }
+}
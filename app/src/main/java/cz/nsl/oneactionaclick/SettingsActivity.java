@@ -19,21 +19,26 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.appcompat.widget.SwitchCompat;
+
 import com.google.zxing.integration.android.IntentIntegrator;
 import com.google.zxing.integration.android.IntentResult;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
+import cz.nsl.oneactionaclick.api.CatalogCache;
+import cz.nsl.oneactionaclick.api.ConnectionProfile;
+import cz.nsl.oneactionaclick.api.EntityCatalog;
 import cz.nsl.oneactionaclick.api.HomeAssistantApiClient;
 import cz.nsl.oneactionaclick.api.HomeAssistantDiscoveryManager;
-import cz.nsl.oneactionaclick.api.HomeAssistantEntity;
+import cz.nsl.oneactionaclick.api.HomeAssistantWebSocket;
 import cz.nsl.oneactionaclick.api.OAuth2Manager;
 
 public class SettingsActivity extends Activity {
 
     private EditText editHomeAssistantUrl;
+    private EditText editExternalUrl;
     private EditText editHomeAssistantToken;
     private EditText editOAuthClientId;
     private EditText editOAuthClientSecret;
@@ -45,6 +50,10 @@ public class SettingsActivity extends Activity {
     private Button buttonStartOAuth;
     private Button buttonSaveSettings;
     private Button buttonDiscover;
+    private SwitchCompat switchUseWebSocket;
+    private SwitchCompat switchLiveState;
+    private SwitchCompat switchLazyEntities;
+    private EditText editCatalogMaxAge;
     private TextView textDiscoveryStatus;
 
     // Discovery-related fields
@@ -67,10 +76,15 @@ public class SettingsActivity extends Activity {
 
     // Keys for storing app settings in SharedPreferences
     private static final String PREF_HOME_ASSISTANT_URL = "home_assistant_url";
+    private static final String PREF_EXTERNAL_URL = "external_url";
     private static final String PREF_HOME_ASSISTANT_TOKEN = "home_assistant_token";
     private static final String PREF_AUTH_METHOD = "auth_method";
     private static final String PREF_OAUTH_CLIENT_ID = "oauth_client_id";
     private static final String PREF_OAUTH_CLIENT_SECRET = "oauth_client_secret";
+    private static final String PREF_USE_WEBSOCKET = "use_websocket";
+    private static final String PREF_LIVE_STATE = "live_state";
+    private static final String PREF_LAZY_ENTITIES = "lazy_entity_loading";
+    private static final String PREF_CATALOG_MAX_AGE = "catalog_max_age_minutes";
 
     // Auth method constants
     private static final String AUTH_METHOD_TOKEN = "token";
@@ -80,6 +94,7 @@ public class SettingsActivity extends Activity {
     private static final String DEFAULT_URL = "http://192.168.1.100:8123";
     private static final String DEFAULT_TOKEN = "";
     private static final String DEFAULT_AUTH_METHOD = AUTH_METHOD_TOKEN;
+    private static final int DEFAULT_CATALOG_MAX_AGE = 60;
 
     // OAuth2 manager
     private OAuth2Manager oauth2Manager;
@@ -94,10 +109,11 @@ public class SettingsActivity extends Activity {
         discoveredInstances = new ArrayList<>();
 
         // Initialize OAuth2 manager
-        oauth2Manager = new OAuth2Manager(this);
+        oauth2Manager = OAuth2Manager.getInstance(this);
 
         // Find views
         editHomeAssistantUrl = findViewById(R.id.edit_home_assistant_url);
+        editExternalUrl = findViewById(R.id.edit_external_url);
         editHomeAssistantToken = findViewById(R.id.edit_home_assistant_token);
         editOAuthClientId = findViewById(R.id.edit_oauth_client_id);
         editOAuthClientSecret = findViewById(R.id.edit_oauth_client_secret);
@@ -112,6 +128,10 @@ public class SettingsActivity extends Activity {
         buttonStartOAuth = findViewById(R.id.button_start_oauth);
         buttonSaveSettings = findViewById(R.id.button_save_settings);
         buttonDiscover = findViewById(R.id.button_discover);
+        switchUseWebSocket = findViewById(R.id.switch_use_websocket);
+        switchLiveState = findViewById(R.id.switch_live_state);
+        switchLazyEntities = findViewById(R.id.switch_lazy_entities);
+        editCatalogMaxAge = findViewById(R.id.edit_catalog_max_age);
 
         textDiscoveryStatus = findViewById(R.id.text_discovery_status);
         listDiscoveredInstances = findViewById(R.id.list_discovered_instances);
@@ -131,6 +151,11 @@ public class SettingsActivity extends Activity {
                 android.R.layout.simple_list_item_1, discoveredInstances);
         listDiscoveredInstances.setAdapter(discoveryAdapter);
 
+        // List servers found before right away, a scan in the background refreshes them
+        if (!discoveryManager.getCachedInstances().isEmpty()) {
+            startDiscovery();
+        }
+
         // Add click listener for discovery list
         listDiscoveredInstances.setOnItemClickListener((parent, view, position, id) -> {
             HomeAssistantDiscoveryManager.HomeAssistantInstance instance = discoveredInstances.get(position);
@@ -147,9 +172,14 @@ public class SettingsActivity extends Activity {
 
         // Set current values
         editHomeAssistantUrl.setText(currentUrl);
+        editExternalUrl.setText(getExternalUrl(this));
         editHomeAssistantToken.setText(currentToken);
         editOAuthClientId.setText(currentClientId);
         editOAuthClientSecret.setText(currentClientSecret);
+        switchUseWebSocket.setChecked(isWebSocketEnabled(this));
+        switchLiveState.setChecked(isLiveStateEnabled(this));
+        switchLazyEntities.setChecked(isLazyEntityLoadingEnabled(this));
+        editCatalogMaxAge.setText(String.valueOf(getCatalogMaxAgeMinutes(this)));
 
         // Set auth method
         if (AUTH_METHOD_OAUTH.equals(currentAuthMethod)) {
@@ -227,9 +257,11 @@ public class SettingsActivity extends Activity {
         textDiscoveryStatus.setText(R.string.discovery_scanning);
         textDiscoveryStatus.setVisibility(View.VISIBLE);
         
-        // Clear previous results
+        // Start from the servers found before, the scan adds new ones and updates moved ones
         discoveredInstances.clear();
+        discoveredInstances.addAll(discoveryManager.getCachedInstances());
         discoveryAdapter.notifyDataSetChanged();
+        listDiscoveredInstances.setVisibility(discoveredInstances.isEmpty() ? View.GONE : View.VISIBLE);
         
         // Start the discovery process
         discoveryManager.startDiscovery(new HomeAssistantDiscoveryManager.HomeAssistantDiscoveryListener() {
@@ -241,9 +273,11 @@ public class SettingsActivity extends Activity {
             }
 
             @Override
-            public void onInstanceFound(HomeAssistantDiscoveryManager.HomeAssistantInstance instance) {
+            public void onInstancesChanged(List<HomeAssistantDiscoveryManager.HomeAssistantInstance> instances) {
                 runOnUiThread(() -> {
-                    discoveredInstances.add(instance);
+                    // Ranked fastest first, so take the list as it is
+                    discoveredInstances.clear();
+                    discoveredInstances.addAll(instances);
                     discoveryAdapter.notifyDataSetChanged();
                     listDiscoveredInstances.setVisibility(View.VISIBLE);
                 });
@@ -270,6 +304,13 @@ public class SettingsActivity extends Activity {
                 });
             }
         });
+
+        // Rank the server entered by hand together with the discovered ones
+        HomeAssistantDiscoveryManager.HomeAssistantInstance entered =
+                discoveryManager.addManualInstance(editHomeAssistantUrl.getText().toString());
+        if (entered != null) {
+            discoveryManager.probeInstance(entered);
+        }
     }
     
     /**
@@ -301,7 +342,7 @@ public class SettingsActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
         if (discoveryManager != null) {
-            discoveryManager.stopDiscovery();
+            discoveryManager.close();
         }
     }
 
@@ -359,22 +400,29 @@ public class SettingsActivity extends Activity {
             String clientId = getOAuthClientId(this);
             String clientSecret = getOAuthClientSecret(this);
 
-            // Exchange the code for tokens
-            boolean success = oauth2Manager.exchangeCodeForTokens(url, clientId, clientSecret, code);
-
-            if (success) {
-                Toast.makeText(this, "OAuth2 authentication successful", Toast.LENGTH_SHORT).show();
-
-                // Save OAuth2 as the current auth method
-                SharedPreferences.Editor prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
-                prefs.putString(PREF_AUTH_METHOD, AUTH_METHOD_OAUTH);
-                prefs.apply();
+            // Exchange the code for tokens in the background
+            oauth2Manager.exchangeCodeForTokens(url, clientId, clientSecret, code, new OAuth2Manager.TokenCallback() {
+                @Override
+                public void onToken(String accessToken) {
+                    runOnUiThread(() -> {
+                        Toast.makeText(SettingsActivity.this, "OAuth2 authentication successful", Toast.LENGTH_SHORT).show();
+
+                        // Save OAuth2 as the current auth method
+                        SharedPreferences.Editor prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+                        prefs.putString(PREF_AUTH_METHOD, AUTH_METHOD_OAUTH);
+                        prefs.apply();
+
+                        // Close the activity
+                        finish();
+                    });
+                }
 
-                // Close the activity
-                finish();
-            } else {
-                Toast.makeText(this, "OAuth2 authentication failed", Toast.LENGTH_SHORT).show();
-            }
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> Toast.makeText(SettingsActivity.this,
+                            "OAuth2 authentication failed", Toast.LENGTH_SHORT).show());
+                }
+            });
         }
     }
 
@@ -399,10 +447,30 @@ public class SettingsActivity extends Activity {
             url = url.substring(0, url.indexOf("/api/services"));
         }
 
+        // The external URL is optional, an empty one means the internal URL is used everywhere
+        String externalUrl = editExternalUrl.getText().toString().trim();
+        while (externalUrl.endsWith("/")) {
+            externalUrl = externalUrl.substring(0, externalUrl.length() - 1);
+        }
+        boolean urlsChanged = !url.equals(getHomeAssistantUrl(this)) || !externalUrl.equals(getExternalUrl(this));
+
         // Save common settings
         SharedPreferences.Editor prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
         prefs.putString(PREF_HOME_ASSISTANT_URL, url);
+        prefs.putString(PREF_EXTERNAL_URL, externalUrl);
         prefs.putString(PREF_AUTH_METHOD, authMethod);
+        prefs.putBoolean(PREF_USE_WEBSOCKET, switchUseWebSocket.isChecked());
+        prefs.putBoolean(PREF_LIVE_STATE, switchLiveState.isChecked());
+        prefs.putBoolean(PREF_LAZY_ENTITIES, switchLazyEntities.isChecked());
+
+        // Save catalog cache max age, falling back to the default for invalid input
+        int catalogMaxAge = DEFAULT_CATALOG_MAX_AGE;
+        try {
+            catalogMaxAge = Math.max(0, Integer.parseInt(editCatalogMaxAge.getText().toString().trim()));
+        } catch (NumberFormatException e) {
+            // Keep the default
+        }
+        prefs.putInt(PREF_CATALOG_MAX_AGE, catalogMaxAge);
 
         // Save token or OAuth2 settings based on the selected auth method
         if (AUTH_METHOD_TOKEN.equals(authMethod)) {
@@ -431,6 +499,24 @@ public class SettingsActivity extends Activity {
 
         prefs.apply();
 
+        // Which URL works on which network has to be found out again
+        if (urlsChanged) {
+            ConnectionProfile.getInstance(this).reset();
+        }
+
+        // The connection may point somewhere else now, so drop the cached catalog
+        CatalogCache.getInstance(this).invalidate();
+
+        // Open or drop the persistent WebSocket session to match the new settings,
+        // live state needs it even when actions go over REST
+        HomeAssistantWebSocket webSocket = HomeAssistantWebSocket.getInstance(this);
+        if (switchUseWebSocket.isChecked() || switchLiveState.isChecked()) {
+            webSocket.connect();
+        } else {
+            webSocket.disconnect();
+        }
+        LiveStateTracker.getInstance(this).refresh();
+
         // Show success message
         Toast.makeText(SettingsActivity.this, R.string.settings_saved, Toast.LENGTH_SHORT).show();
 
@@ -501,7 +587,7 @@ public class SettingsActivity extends Activity {
         // Test fetching entities
         testClient.fetchEntities(new HomeAssistantApiClient.EntityCallback() {
             @Override
-            public void onEntitiesLoaded(List<HomeAssistantEntity> entities) {
+            public void onEntitiesLoaded(EntityCatalog entities) {
                 runOnUiThread(() -> {
                     textConnectionStatus.setText("Connection Successful: Found " + entities.size() + " entities");
                     textConnectionStatus.setTextColor(getResources().getColor(android.R.color.holo_green_dark));
@@ -514,11 +600,6 @@ public class SettingsActivity extends Activity {
                 });
             }
 
-            @Override
-            public void onEntitiesByDomainLoaded(Map<String, List<HomeAssistantEntity>> entitiesByDomain) {
-                // Not needed for this test
-            }
-
             @Override
             public void onError(String error) {
                 runOnUiThread(() -> {
@@ -637,6 +718,15 @@ public class SettingsActivity extends Activity {
         return prefs.getString(PREF_HOME_ASSISTANT_URL, DEFAULT_URL);
     }
 
+    /**
+     * URL to use away from the home network, or an empty string if there is none.
+     * Requests should get their URL from {@link ConnectionProfile}.
+     */
+    public static String getExternalUrl(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getString(PREF_EXTERNAL_URL, "");
+    }
+
     public static String getHomeAssistantToken(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         return prefs.getString(PREF_HOME_ASSISTANT_TOKEN, DEFAULT_TOKEN);
@@ -660,4 +750,24 @@ public class SettingsActivity extends Activity {
     public static boolean isUsingOAuth(Context context) {
         return AUTH_METHOD_OAUTH.equals(getAuthMethod(context));
     }
+
+    public static boolean isWebSocketEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getBoolean(PREF_USE_WEBSOCKET, false);
+    }
+
+    public static boolean isLiveStateEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getBoolean(PREF_LIVE_STATE, false);
+    }
+
+    public static boolean isLazyEntityLoadingEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getBoolean(PREF_LAZY_ENTITIES, false);
+    }
+
+    public static int getCatalogMaxAgeMinutes(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(PREF_CATALOG_MAX_AGE, DEFAULT_CATALOG_MAX_AGE);
+    }
 }
\ No newline at end of file
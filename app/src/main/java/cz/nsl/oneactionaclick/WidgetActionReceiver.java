@@ -0,0 +1,92 @@
+package cz.nsl.oneactionaclick;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cz.nsl.oneactionaclick.api.HomeAssistantApiClient;
+
+/**
+ * Handles taps on widgets that do not require confirmation.
+ * The service call is made straight from the broadcast, so no activity window
+ * is started and nothing flashes on screen.
+ */
+public class WidgetActionReceiver extends BroadcastReceiver {
+    private static final String TAG = "WidgetActionReceiver";
+
+    public static final String ACTION_WIDGET_TAP = "cz.nsl.oneactionaclick.action.WIDGET_TAP";
+
+    // Background broadcasts may run for up to a minute, give up a bit earlier than that
+    private static final long MAX_ASYNC_MS = 50000;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_WIDGET_TAP.equals(intent.getAction())) {
+            return;
+        }
+
+        int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                AppWidgetManager.INVALID_APPWIDGET_ID);
+        if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        WidgetConfig config = WidgetConfigStore.getInstance(appContext).get(appWidgetId);
+        String serviceDomain = config.getServiceDomain();
+        String serviceName = config.getServiceName();
+        String entityId = config.getEntityId();
+
+        // Keep the process alive until the call completes
+        final PendingResult pendingResult = goAsync();
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true)) {
+                    Log.w(TAG, "Service call still running, releasing broadcast");
+                    pendingResult.finish();
+                }
+            }
+        }, MAX_ASYNC_MS);
+
+        HomeAssistantApiClient apiClient = new HomeAssistantApiClient(appContext);
+        ActionQueue.getInstance(appContext).callOrEnqueue(apiClient, appWidgetId, serviceDomain, serviceName, entityId,
+                new ActionQueue.TapCallback() {
+            @Override
+            public void onDelivered() {
+                Toast.makeText(appContext, R.string.action_success, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+
+            @Override
+            public void onQueued() {
+                Toast.makeText(appContext, R.string.action_queued, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+
+            @Override
+            public void onFailed(String error) {
+                Toast.makeText(appContext,
+                        appContext.getString(R.string.action_failed) + " " + error,
+                        Toast.LENGTH_LONG).show();
+                finish();
+            }
+
+            private void finish() {
+                if (finished.compareAndSet(false, true)) {
+                    handler.removeCallbacksAndMessages(null);
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package cz.nsl.oneactionaclick;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Configuration of one widget. Immutable; {@link WidgetConfigStore} keeps one per widget
+ * and stores it as a single versioned JSON record.
+ */
+public final class WidgetConfig {
+    static final int VERSION = 1;
+
+    static final String DEFAULT_DOMAIN = "light";
+    static final String DEFAULT_SERVICE = "toggle";
+    static final String DEFAULT_ENTITY = "light.living_room";
+    // 50% transparency
+    static final int DEFAULT_TRANSPARENCY = 50;
+
+    private final String title;
+    private final String serviceDomain;
+    private final String serviceName;
+    private final String entityId;
+    private final int iconIndex;
+    private final int transparency;
+    private final boolean requireConfirmation;
+    private final String confirmationMessage;
+    private final boolean deliverEventually;
+
+    public WidgetConfig(String title, String serviceDomain, String serviceName, String entityId,
+                        int iconIndex, int transparency, boolean requireConfirmation,
+                        String confirmationMessage, boolean deliverEventually) {
+        this.title = title;
+        this.serviceDomain = serviceDomain;
+        this.serviceName = serviceName;
+        this.entityId = entityId;
+        this.iconIndex = iconIndex;
+        this.transparency = transparency;
+        this.requireConfirmation = requireConfirmation;
+        this.confirmationMessage = confirmationMessage;
+        this.deliverEventually = deliverEventually;
+    }
+
+    /**
+     * Configuration of a widget that was never saved
+     */
+    static WidgetConfig defaults(String title) {
+        return new WidgetConfig(title, DEFAULT_DOMAIN, DEFAULT_SERVICE, DEFAULT_ENTITY,
+                0, DEFAULT_TRANSPARENCY, true, "", false);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getServiceDomain() {
+        return serviceDomain;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public int getIconIndex() {
+        return iconIndex;
+    }
+
+    public int getTransparency() {
+        return transparency;
+    }
+
+    public boolean requiresConfirmation() {
+        return requireConfirmation;
+    }
+
+    public String getConfirmationMessage() {
+        return confirmationMessage;
+    }
+
+    public boolean deliversEventually() {
+        return deliverEventually;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("v", VERSION);
+        json.put("title", title);
+        json.put("domain", serviceDomain);
+        json.put("service", serviceName);
+        json.put("entity", entityId);
+        json.put("icon", iconIndex);
+        json.put("transparency", transparency);
+        json.put("confirm", requireConfirmation);
+        json.put("confirm_message", confirmationMessage);
+        json.put("deliver_eventually", deliverEventually);
+        return json;
+    }
+
+    /**
+     * Read a record written by {@link #toJson}. Fields missing from older versions
+     * take their value from defaults.
+     */
+    static WidgetConfig fromJson(JSONObject json, WidgetConfig defaults) {
+        return new WidgetConfig(
+                json.optString("title", defaults.title),
+                json.optString("domain", defaults.serviceDomain),
+                json.optString("service", defaults.serviceName),
+                json.optString("entity", defaults.entityId),
+                json.optInt("icon", defaults.iconIndex),
+                json.optInt("transparency", defaults.transparency),
+                json.optBoolean("confirm", defaults.requireConfirmation),
+                json.optString("confirm_message", defaults.confirmationMessage),
+                json.optBoolean("deliver_eventually", defaults.deliverEventually));
+    }
+}
\ No newline at end of file
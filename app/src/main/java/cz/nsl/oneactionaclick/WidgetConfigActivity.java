@@ -4,10 +4,10 @@ import android.app.Activity;
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Configuration;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
+import android.text.Editable;
 import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
@@ -23,40 +23,71 @@ import android.widget.Toast;
 import android.widget.LinearLayout;
 
 import androidx.appcompat.widget.SwitchCompat;
+import androidx.core.content.FileProvider;
 
+import cz.nsl.oneactionaclick.api.CatalogCache;
+import cz.nsl.oneactionaclick.api.ConnectionProfile;
+import cz.nsl.oneactionaclick.api.EntityCatalog;
+import cz.nsl.oneactionaclick.api.EntitySearchIndex;
 import cz.nsl.oneactionaclick.api.HomeAssistantApiClient;
 import cz.nsl.oneactionaclick.api.HomeAssistantEntity;
 import cz.nsl.oneactionaclick.api.HomeAssistantService;
+import cz.nsl.oneactionaclick.api.LatencyStats;
+import cz.nsl.oneactionaclick.api.TlsSessionCache;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import okio.BufferedSink;
+import okio.Okio;
 
 public class WidgetConfigActivity extends Activity {
 
     private int appWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
-    private EditText editWidgetTitle, editConfirmationMessage;
+    private EditText editWidgetTitle, editConfirmationMessage, editEntitySearch;
     private TextView textHaInfo, textValidationMessage, textError, textErrorDetails, textRequestLogs;
     private Spinner spinnerDomain, spinnerService, spinnerEntity, spinnerIcon;
     private ProgressBar progressDomains, progressServices, progressEntities;
     private ScrollView scrollErrorDetails, scrollRequestLogs;
     private SeekBar transparencySeekBar;
-    private Button saveButton, toggleLogsButton, clearLogsButton;
-    private SwitchCompat switchRequireConfirmation;
+    private Button saveButton, refreshButton, toggleLogsButton, clearLogsButton, exportLogsButton;
+    private SwitchCompat switchRequireConfirmation, switchDeliverEventually;
     private LinearLayout confirmationMessageContainer;
 
     private boolean logsVisible = false;
-    private Handler logUpdateHandler = new Handler();
-    private Runnable logUpdateRunnable;
+
+    // Entries shown in the log panel, most recent first, and the length of each one's text.
+    // The panel text is the summary followed by these entries.
+    private final List<HomeAssistantApiClient.ApiRequestLog> shownLogs = new ArrayList<>();
+    private final List<Integer> shownLogLengths = new ArrayList<>();
+    private int logSummaryLength;
+    private final HomeAssistantApiClient.RequestLogListener requestLogListener =
+            new HomeAssistantApiClient.RequestLogListener() {
+        @Override
+        public void onRequestLogChanged(List<HomeAssistantApiClient.ApiRequestLog> changed) {
+            applyRequestLogChanges(changed);
+        }
+    };
 
     private HomeAssistantApiClient apiClient;
 
+    // Entity picker search
+    private EntitySpinnerAdapter entityAdapter;
+    private EntitySearchIndex searchIndex;
+    private int[] searchResults;
+    private boolean updatingEntitySearch = false;
+
     // Data for spinners
     private List<String> domains = new ArrayList<>();
     private Map<String, List<HomeAssistantService>> servicesByDomain;
-    private Map<String, List<HomeAssistantEntity>> entitiesByDomain;
+    private EntityCatalog entityCatalog;
     private List<HomeAssistantService> servicesForSelectedDomain;
 
     // Selected values
@@ -67,27 +98,17 @@ public class WidgetConfigActivity extends Activity {
     // Flags to track data loading completion
     private boolean servicesLoaded = false;
     private boolean entitiesLoaded = false;
-    private boolean restoringSelections = false; // Flag to prevent listeners interfering during restore
 
-    // Shared preferences file name
-    private static final String PREFS_NAME = "cz.nsl.oneactionaclick.WidgetPrefs";
-
-    // Keys for storing widget configuration in SharedPreferences
-    private static final String PREF_PREFIX_KEY = "appwidget_";
-    private static final String PREF_TITLE_KEY = "_title";
-    private static final String PREF_DOMAIN_KEY = "_domain";
-    private static final String PREF_SERVICE_KEY = "_service";
-    private static final String PREF_ENTITY_KEY = "_entity";
-    private static final String PREF_ICON_KEY = "_icon";
-    private static final String PREF_TRANSPARENCY_KEY = "_transparency";
-    private static final String PREF_REQUIRE_CONFIRMATION_KEY = "_require_confirmation";
-    private static final String PREF_CONFIRMATION_MESSAGE_KEY = "_confirmation_message";
-
-    // Default transparency value (50%)
-    private static final int DEFAULT_TRANSPARENCY = 50;
+    // Per-domain entity loading: domains whose entities are in entityCatalog or being fetched
+    private boolean lazyEntityLoading = false;
+    private Set<String> loadedDomains = new HashSet<>();
+    private Set<String> loadingDomains = new HashSet<>();
+    private String pendingEntityId; // Entity to select once its domain has been fetched
+    private boolean restoringSelections = false; // Flag to prevent listeners interfering during restore
+    private boolean pendingRefresh = false; // Catalog changed while restoring selections
 
-    // Log update interval in milliseconds
-    private static final int LOG_UPDATE_INTERVAL = 1000;
+    // Most entries the request log panel shows
+    private static final int MAX_SHOWN_LOGS = 64;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -97,6 +118,7 @@ public class WidgetConfigActivity extends Activity {
 
         // Create API client
         apiClient = new HomeAssistantApiClient(this);
+        entityAdapter = new EntitySpinnerAdapter(this, getString(R.string.select_entity));
 
         // Find views
         editWidgetTitle = findViewById(R.id.edit_widget_title);
@@ -105,6 +127,7 @@ public class WidgetConfigActivity extends Activity {
         spinnerDomain = findViewById(R.id.spinner_domain);
         spinnerService = findViewById(R.id.spinner_service);
         spinnerEntity = findViewById(R.id.spinner_entity);
+        editEntitySearch = findViewById(R.id.edit_entity_search);
         spinnerIcon = findViewById(R.id.spinner_icon);
         progressDomains = findViewById(R.id.progress_domains);
         progressServices = findViewById(R.id.progress_services);
@@ -115,7 +138,9 @@ public class WidgetConfigActivity extends Activity {
         textValidationMessage = findViewById(R.id.text_validation_message);
         transparencySeekBar = findViewById(R.id.seekbar_transparency);
         saveButton = findViewById(R.id.button_save);
+        refreshButton = findViewById(R.id.button_refresh);
         switchRequireConfirmation = findViewById(R.id.switch_require_confirmation);
+        switchDeliverEventually = findViewById(R.id.switch_deliver_eventually);
         confirmationMessageContainer = findViewById(R.id.confirmation_message_container);
 
         // Set up confirmation toggle listener
@@ -129,6 +154,7 @@ public class WidgetConfigActivity extends Activity {
         // Request log views
         toggleLogsButton = findViewById(R.id.button_toggle_logs);
         clearLogsButton = findViewById(R.id.button_clear_logs);
+        exportLogsButton = findViewById(R.id.button_export_logs);
         scrollRequestLogs = findViewById(R.id.scroll_request_logs);
         textRequestLogs = findViewById(R.id.text_request_logs);
 
@@ -169,11 +195,29 @@ public class WidgetConfigActivity extends Activity {
             }
         });
 
+        // Refresh button drops the cached catalog and fetches it again
+        refreshButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                CatalogCache catalogCache = CatalogCache.getInstance(WidgetConfigActivity.this);
+                catalogCache.invalidate();
+                textError.setVisibility(View.GONE);
+                scrollErrorDetails.setVisibility(View.GONE);
+                progressServices.setVisibility(View.VISIBLE);
+                progressEntities.setVisibility(View.VISIBLE);
+                if (lazyEntityLoading) {
+                    // Drop the domains fetched so far and reload the selected one
+                    pendingEntityId = selectedEntity != null ? selectedEntity.getEntityId() : null;
+                    setEntityCatalog(EntityCatalog.empty());
+                    loadedDomains.clear();
+                    updateEntitiesSpinner();
+                }
+                fetchCatalog(catalogCache);
+            }
+        });
+
         // Setup request log toggle and clear buttons
         setupRequestLogButtons();
-
-        // Start periodic log updates
-        startLogUpdates();
     }
 
     @Override
@@ -181,7 +225,7 @@ public class WidgetConfigActivity extends Activity {
         super.onDestroy();
 
         // Stop log updates when activity is destroyed
-        stopLogUpdates();
+        HomeAssistantApiClient.removeRequestLogListener(requestLogListener);
     }
 
     /**
@@ -195,9 +239,14 @@ public class WidgetConfigActivity extends Activity {
                 toggleLogsButton.setText(logsVisible ? R.string.hide_logs : R.string.show_logs);
                 scrollRequestLogs.setVisibility(logsVisible ? View.VISIBLE : View.GONE);
                 clearLogsButton.setVisibility(logsVisible ? View.VISIBLE : View.GONE);
+                exportLogsButton.setVisibility(logsVisible ? View.VISIBLE : View.GONE);
 
                 if (logsVisible) {
+                    // Render what is there now, then follow changes as they happen
                     updateRequestLogs();
+                    HomeAssistantApiClient.addRequestLogListener(requestLogListener);
+                } else {
+                    HomeAssistantApiClient.removeRequestLogListener(requestLogListener);
                 }
             }
         });
@@ -210,56 +259,165 @@ public class WidgetConfigActivity extends Activity {
             }
         });
 
+        exportLogsButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportRequestLogs();
+            }
+        });
+
         // Initialize log area visibility
         scrollRequestLogs.setVisibility(View.GONE);
         clearLogsButton.setVisibility(View.GONE);
+        exportLogsButton.setVisibility(View.GONE);
     }
 
     /**
-     * Start periodic updates of the request log display
+     * Write the request journal, including requests of earlier processes, to a text file
+     * and offer it to other apps
      */
-    private void startLogUpdates() {
-        logUpdateRunnable = new Runnable() {
+    private void exportRequestLogs() {
+        final File exportFile = new File(new File(getCacheDir(), "exports"), "request_log.txt");
+        new Thread(new Runnable() {
             @Override
             public void run() {
-                if (logsVisible) {
-                    updateRequestLogs();
+                try {
+                    File exportDir = exportFile.getParentFile();
+                    if (!exportDir.isDirectory() && !exportDir.mkdirs()) {
+                        throw new IOException("Cannot create " + exportDir);
+                    }
+                    try (BufferedSink sink = Okio.buffer(Okio.sink(exportFile))) {
+                        for (HomeAssistantApiClient.ApiRequestLog log
+                                : HomeAssistantApiClient.getJournaledRequestLogs(Integer.MAX_VALUE)) {
+                            sink.writeUtf8(log.toString()).writeByte('\n');
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e("WidgetConfigActivity", "Error exporting request log", e);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(WidgetConfigActivity.this, R.string.export_logs_failed,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                    return;
                 }
-                logUpdateHandler.postDelayed(this, LOG_UPDATE_INTERVAL);
-            }
-        };
-
-        // Start immediate log updates
-        logUpdateHandler.post(logUpdateRunnable);
-    }
 
-    /**
-     * Stop periodic updates of the request log display
-     */
-    private void stopLogUpdates() {
-        if (logUpdateHandler != null && logUpdateRunnable != null) {
-            logUpdateHandler.removeCallbacks(logUpdateRunnable);
-        }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Uri uri = FileProvider.getUriForFile(WidgetConfigActivity.this,
+                                getPackageName() + ".fileprovider", exportFile);
+                        Intent send = new Intent(Intent.ACTION_SEND);
+                        send.setType("text/plain");
+                        send.putExtra(Intent.EXTRA_STREAM, uri);
+                        send.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                        startActivity(Intent.createChooser(send, getString(R.string.export_logs)));
+                    }
+                });
+            }
+        }).start();
     }
 
     /**
-     * Update the request log display with current logs
+     * Render the request log display from scratch with current logs
      */
     private void updateRequestLogs() {
         List<HomeAssistantApiClient.ApiRequestLog> logs = HomeAssistantApiClient.getRequestLogs();
+        shownLogs.clear();
+        shownLogLengths.clear();
 
         if (logs.isEmpty()) {
+            logSummaryLength = 0;
             textRequestLogs.setText("No API requests recorded yet.");
             return;
         }
 
         StringBuilder sb = new StringBuilder();
+        appendLogSummary(sb);
+        logSummaryLength = sb.length();
         for (HomeAssistantApiClient.ApiRequestLog log : logs) {
-            sb.append(log.toString()).append("\n\n");
+            if (shownLogs.size() == MAX_SHOWN_LOGS) {
+                break;
+            }
+            String entry = formatLogEntry(log);
+            sb.append(entry);
+            shownLogs.add(log);
+            shownLogLengths.add(entry.length());
+        }
+
+        textRequestLogs.setText(sb, TextView.BufferType.EDITABLE);
+        scrollLogsToTop();
+    }
+
+    /**
+     * Patch the request log display with entries that were added or updated,
+     * leaving the text of every other entry as it is
+     */
+    private void applyRequestLogChanges(List<HomeAssistantApiClient.ApiRequestLog> changed) {
+        if (!logsVisible) {
+            return;
+        }
+        if (shownLogs.isEmpty()) {
+            // Nothing shown yet, or only the placeholder
+            updateRequestLogs();
+            return;
         }
 
-        textRequestLogs.setText(sb.toString());
+        Editable text = textRequestLogs.getEditableText();
+        boolean added = false;
+        for (HomeAssistantApiClient.ApiRequestLog log : changed) {
+            String entry = formatLogEntry(log);
+            int index = shownLogs.indexOf(log);
+            if (index >= 0) {
+                int start = logOffset(index);
+                text.replace(start, start + shownLogLengths.get(index), entry);
+                shownLogLengths.set(index, entry.length());
+            } else if (log.getTimestampMillis() >= shownLogs.get(shownLogs.size() - 1).getTimestampMillis()) {
+                // New entries go on top; updates of entries already scrolled out are ignored
+                text.insert(logSummaryLength, entry);
+                shownLogs.add(0, log);
+                shownLogLengths.add(0, entry.length());
+                added = true;
+            }
+        }
 
+        while (shownLogs.size() > MAX_SHOWN_LOGS) {
+            int last = shownLogs.size() - 1;
+            int start = logOffset(last);
+            text.delete(start, start + shownLogLengths.get(last));
+            shownLogs.remove(last);
+            shownLogLengths.remove(last);
+        }
+
+        // The queue and latency figures may have moved along with the entries
+        StringBuilder summary = new StringBuilder();
+        appendLogSummary(summary);
+        text.replace(0, logSummaryLength, summary);
+        logSummaryLength = summary.length();
+
+        if (added) {
+            scrollLogsToTop();
+        }
+    }
+
+    /**
+     * Get the position of a shown entry in the log panel text
+     */
+    private int logOffset(int index) {
+        int offset = logSummaryLength;
+        for (int i = 0; i < index; i++) {
+            offset += shownLogLengths.get(i);
+        }
+        return offset;
+    }
+
+    private static String formatLogEntry(HomeAssistantApiClient.ApiRequestLog log) {
+        return log.toString() + "\n\n";
+    }
+
+    private void scrollLogsToTop() {
         // Scroll to the top to show the most recent logs
         scrollRequestLogs.post(new Runnable() {
             @Override
@@ -269,11 +427,38 @@ public class WidgetConfigActivity extends Activity {
         });
     }
 
+    /**
+     * Append the summary shown above the request log entries
+     */
+    private void appendLogSummary(StringBuilder sb) {
+        ActionQueue actionQueue = ActionQueue.getInstance(this);
+        sb.append("Action queue: ").append(actionQueue.getQueuedCount()).append(" queued, ")
+                .append(actionQueue.getInFlightCount()).append(" in flight\n");
+
+        WidgetRenderer renderer = WidgetRenderer.getInstance(this);
+        sb.append("Widget renders: ").append(renderer.getFullRenderCount()).append(" full, ")
+                .append(renderer.getPartialRenderCount()).append(" partial, ")
+                .append(renderer.getSkippedRenderCount()).append(" skipped\n");
+
+        TlsSessionCache tlsSessions = TlsSessionCache.getInstance(this);
+        sb.append("TLS handshakes: ").append(tlsSessions.getResumedHandshakeCount()).append(" resumed, ")
+                .append(tlsSessions.getFullHandshakeCount()).append(" full\n\n");
+
+        List<LatencyStats.Summary> latencies = LatencyStats.getInstance(this).getSummaries();
+        if (!latencies.isEmpty()) {
+            sb.append("Latency, last 7 days:\n");
+            for (LatencyStats.Summary summary : latencies) {
+                sb.append(summary.toString()).append("\n");
+            }
+            sb.append("\n");
+        }
+    }
+
     /**
      * Updates the Home Assistant instance information display
      */
     private void updateHomeAssistantInfo() {
-        String haUrl = SettingsActivity.getHomeAssistantUrl(this);
+        String haUrl = ConnectionProfile.getInstance(this).getBaseUrl();
         boolean isUsingOAuth = SettingsActivity.isUsingOAuth(this);
 
         StringBuilder infoText = new StringBuilder();
@@ -292,12 +477,34 @@ public class WidgetConfigActivity extends Activity {
      * Sets up initial values for the form
      */
     private void setupInitialValues() {
+        WidgetConfig savedConfig = WidgetConfigStore.getInstance(this).get(appWidgetId);
+
         // Default or existing widget title
-        String savedTitle = getWidgetTitle(this, appWidgetId);
+        String savedTitle = savedConfig.getTitle();
         if (!savedTitle.equals(getString(R.string.widget_text))) {
             editWidgetTitle.setText(savedTitle);
         }
 
+        // Filter the entity picker as the user types
+        editEntitySearch.addTextChangedListener(new android.text.TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                // Not needed
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                // Not needed
+            }
+
+            @Override
+            public void afterTextChanged(android.text.Editable s) {
+                if (!updatingEntitySearch) {
+                    applyEntityFilter();
+                }
+            }
+        });
+
         // Add a text change listener to the title field to update validation in real-time
         editWidgetTitle.addTextChangedListener(new android.text.TextWatcher() {
             @Override
@@ -318,15 +525,15 @@ public class WidgetConfigActivity extends Activity {
         });
 
         // Load saved transparency value
-        int savedTransparency = getTransparency(this, appWidgetId);
+        int savedTransparency = savedConfig.getTransparency();
         transparencySeekBar.setProgress(savedTransparency);
         
         // Load saved confirmation settings
-        boolean requireConfirmation = requiresConfirmation(this, appWidgetId);
+        boolean requireConfirmation = savedConfig.requiresConfirmation();
         switchRequireConfirmation.setChecked(requireConfirmation);
         
         // Load saved confirmation message
-        String confirmationMessage = getConfirmationMessage(this, appWidgetId);
+        String confirmationMessage = savedConfig.getConfirmationMessage();
         if (!confirmationMessage.isEmpty()) {
             editConfirmationMessage.setText(confirmationMessage);
         }
@@ -334,6 +541,9 @@ public class WidgetConfigActivity extends Activity {
         // Update confirmation message container visibility based on switch state
         confirmationMessageContainer.setVisibility(requireConfirmation ? View.VISIBLE : View.GONE);
 
+        // Load saved offline delivery setting
+        switchDeliverEventually.setChecked(savedConfig.deliversEventually());
+
         // Disable save button until we have loaded necessary data
         saveButton.setEnabled(false);
     }
@@ -348,7 +558,12 @@ public class WidgetConfigActivity extends Activity {
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 if (position > 0 && domains.size() > position - 1) {
                     // Apply -1 offset to account for the prompt item
-                    selectedDomain = domains.get(position - 1);
+                    String domain = domains.get(position - 1);
+                    if (domain.equals(selectedDomain) && servicesForSelectedDomain != null) {
+                        // Already showing this domain, e.g. after a background refresh recreated the adapter
+                        return;
+                    }
+                    selectedDomain = domain;
                     updateServicesSpinner();
                     updateEntitiesSpinner();
                 } else {
@@ -400,17 +615,9 @@ public class WidgetConfigActivity extends Activity {
         spinnerEntity.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                // Check if selectedDomain is valid and entities exist for it
-                if (position > 0 && selectedDomain != null && entitiesByDomain != null &&
-                        entitiesByDomain.containsKey(selectedDomain)) {
-                    List<HomeAssistantEntity> entities = entitiesByDomain.get(selectedDomain);
-                    // Ensure entities list is sorted the same way as in updateEntitiesSpinner
-                    Collections.sort(entities, Comparator.comparing(HomeAssistantEntity::getFriendlyName));
-                    if (entities != null && entities.size() >= position) {
-                        selectedEntity = entities.get(position - 1); // Offset for prompt item
-                    } else {
-                        selectedEntity = null; // Should not happen if position is valid, but safety check
-                    }
+                // The adapter resolves the position through the current search filter, if any
+                if (position > 0 && selectedDomain != null && position < entityAdapter.getCount()) {
+                    selectedEntity = entityAdapter.getItem(position);
                 } else {
                     selectedEntity = null;
                 }
@@ -485,7 +692,7 @@ public class WidgetConfigActivity extends Activity {
         spinnerIcon.setAdapter(adapter);
 
         // Set default or saved icon selection
-        int savedIconIndex = getIconIndex(this, appWidgetId);
+        int savedIconIndex = WidgetConfigStore.getInstance(this).get(appWidgetId).getIconIndex();
         if (savedIconIndex >= 0 && savedIconIndex < adapter.getCount()) {
             spinnerIcon.setSelection(savedIconIndex);
         }
@@ -500,12 +707,15 @@ public class WidgetConfigActivity extends Activity {
     }
 
     /**
-     * Loads domains and services from Home Assistant
+     * Loads domains and services, rendering the cached catalog first and
+     * revalidating it against Home Assistant in the background when it is stale
      */
     private void loadHomeAssistantData() {
         // Reset flags
         servicesLoaded = false;
         entitiesLoaded = false;
+        lazyEntityLoading = SettingsActivity.isLazyEntityLoadingEnabled(this);
+        loadedDomains.clear();
 
         // Show progress indicators
         progressDomains.setVisibility(View.VISIBLE);
@@ -516,6 +726,40 @@ public class WidgetConfigActivity extends Activity {
         textError.setVisibility(View.GONE);
         scrollErrorDetails.setVisibility(View.GONE); // Also hide details view initially
 
+        final CatalogCache catalogCache = CatalogCache.getInstance(this);
+        catalogCache.load(new CatalogCache.LoadCallback() {
+            @Override
+            public void onCatalogLoaded(CatalogCache.Snapshot snapshot) {
+                if (isFinishing()) {
+                    return;
+                }
+
+                if (lazyEntityLoading) {
+                    // Entities are fetched per domain once one is selected
+                    onEntitiesAvailable(EntityCatalog.empty());
+                }
+
+                if (snapshot != null) {
+                    Log.d("WidgetConfigActivity", "Rendering cached catalog, age " + snapshot.getAgeMs() + "ms");
+                    if (snapshot.hasServices()) {
+                        onServicesAvailable(snapshot.getServices());
+                    }
+                    if (snapshot.hasEntities() && !lazyEntityLoading) {
+                        onEntitiesAvailable(snapshot.getEntities());
+                    }
+                }
+
+                if (snapshot == null || snapshot.isStale(catalogCache.getMaxAgeMs(), !lazyEntityLoading)) {
+                    fetchCatalog(catalogCache);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetch services and entities from Home Assistant and store them in the catalog cache
+     */
+    private void fetchCatalog(final CatalogCache catalogCache) {
         Log.d("WidgetConfigActivity", "Starting to fetch services from Home Assistant");
 
         // Load services
@@ -531,12 +775,8 @@ public class WidgetConfigActivity extends Activity {
                 }
 
                 Log.d("WidgetConfigActivity", "Services loaded successfully: " + services.size() + " domains");
-                servicesByDomain = services;
-                updateDomainSpinner(); // Update domain spinner now that we have domains
-                progressServices.setVisibility(View.GONE); // Hide service progress
-
-                servicesLoaded = true;
-                checkDataLoadedAndRestore(); // Check if both loaded
+                catalogCache.putServices(services);
+                onServicesAvailable(services);
             }
 
             @Override
@@ -556,32 +796,27 @@ public class WidgetConfigActivity extends Activity {
             }
         });
 
+        if (lazyEntityLoading) {
+            return;
+        }
+
         Log.d("WidgetConfigActivity", "Starting to fetch entities from Home Assistant");
 
         // Load entities
         apiClient.fetchEntities(new HomeAssistantApiClient.EntityCallback() {
             @Override
-            public void onEntitiesLoaded(List<HomeAssistantEntity> entities) {
-                // This method is optional since we use grouped entities
-                Log.d("WidgetConfigActivity", "Entities loaded (ungrouped): " + (entities != null ? entities.size() : 0));
-                // Don't hide progress here, wait for grouped entities
-            }
-
-            @Override
-            public void onEntitiesByDomainLoaded(Map<String, List<HomeAssistantEntity>> entities) {
+            public void onEntitiesLoaded(EntityCatalog entities) {
                 if (entities == null || entities.isEmpty()) {
-                    Log.e("WidgetConfigActivity", "Received empty entities map");
+                    Log.e("WidgetConfigActivity", "Received empty entity catalog");
                     progressEntities.setVisibility(View.GONE);
                     displayError("No entities available. Please check your Home Assistant connection.");
                     return;
                 }
 
-                Log.d("WidgetConfigActivity", "Entities by domain loaded: " + entities.size() + " domains");
-                entitiesByDomain = entities;
-                progressEntities.setVisibility(View.GONE); // Hide entity progress
-
-                entitiesLoaded = true;
-                checkDataLoadedAndRestore(); // Check if both loaded
+                Log.d("WidgetConfigActivity", "Entities loaded: " + entities.size() + " in "
+                        + entities.getDomains().size() + " domains");
+                catalogCache.putEntities(entities);
+                onEntitiesAvailable(entities);
             }
 
             @Override
@@ -600,6 +835,294 @@ public class WidgetConfigActivity extends Activity {
         });
     }
 
+    /**
+     * Apply services from the cache or the network. The first result populates the
+     * spinners; later results only touch the UI if something actually changed.
+     */
+    private void onServicesAvailable(Map<String, List<HomeAssistantService>> services) {
+        progressServices.setVisibility(View.GONE);
+        progressDomains.setVisibility(View.GONE);
+
+        if (!servicesLoaded) {
+            servicesByDomain = services;
+            updateDomainSpinner(); // Update domain spinner now that we have domains
+            servicesLoaded = true;
+            checkDataLoadedAndRestore(); // Check if both loaded
+        } else if (!sameServices(servicesByDomain, services)) {
+            Log.d("WidgetConfigActivity", "Services changed after revalidation, refreshing spinners");
+            servicesByDomain = services;
+            refreshSpinnersKeepingSelection();
+        }
+    }
+
+    /**
+     * Apply entities from the cache or the network, see {@link #onServicesAvailable}
+     */
+    private void onEntitiesAvailable(EntityCatalog entities) {
+        progressEntities.setVisibility(View.GONE);
+
+        if (!entitiesLoaded) {
+            setEntityCatalog(entities);
+            entitiesLoaded = true;
+            checkDataLoadedAndRestore(); // Check if both loaded
+        } else if (!sameEntities(entityCatalog, entities)) {
+            Log.d("WidgetConfigActivity", "Entities changed after revalidation, refreshing spinners");
+            setEntityCatalog(entities);
+            refreshSpinnersKeepingSelection();
+        }
+    }
+
+    private static boolean sameServices(Map<String, List<HomeAssistantService>> a,
+                                        Map<String, List<HomeAssistantService>> b) {
+        if (a == null || b == null || !a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, List<HomeAssistantService>> entry : a.entrySet()) {
+            List<HomeAssistantService> other = b.get(entry.getKey());
+            if (other.size() != entry.getValue().size()) {
+                return false;
+            }
+            Set<String> names = new HashSet<>();
+            for (HomeAssistantService service : entry.getValue()) {
+                names.add(service.getService());
+            }
+            for (HomeAssistantService service : other) {
+                if (!names.contains(service.getService())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameEntities(EntityCatalog a, EntityCatalog b) {
+        if (a == null || b == null || a.size() != b.size()) {
+            return false;
+        }
+        for (HomeAssistantEntity entity : b.getEntities()) {
+            HomeAssistantEntity known = a.get(entity.getEntityId());
+            if (known == null || !known.getFriendlyName().equals(entity.getFriendlyName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the spinners from fresh data while keeping whatever the user has selected
+     */
+    private void refreshSpinnersKeepingSelection() {
+        if (restoringSelections) {
+            // Let the restore finish first, it will call back here
+            pendingRefresh = true;
+            return;
+        }
+        pendingRefresh = false;
+
+        final String domain = selectedDomain;
+        final String service = selectedService != null ? selectedService.getService() : null;
+        final String entityId = selectedEntity != null ? selectedEntity.getEntityId() : null;
+
+        updateDomainSpinner();
+        int domainIndex = domain != null ? domains.indexOf(domain) : -1;
+        if (domainIndex < 0) {
+            selectedDomain = null;
+            clearServicesSpinner();
+            clearEntitiesSpinner();
+            updateSaveButtonState();
+            return;
+        }
+
+        spinnerDomain.setSelection(domainIndex + 1); // +1 for prompt item
+        updateServicesSpinner();
+        updateEntitiesSpinner();
+
+        selectedService = null;
+        if (service != null && servicesForSelectedDomain != null) {
+            for (int i = 0; i < servicesForSelectedDomain.size(); i++) {
+                if (servicesForSelectedDomain.get(i).getService().equals(service)) {
+                    spinnerService.setSelection(i + 1); // +1 for prompt item
+                    selectedService = servicesForSelectedDomain.get(i);
+                    break;
+                }
+            }
+        }
+
+        selectedEntity = null;
+        if (entityId != null) {
+            if (loadingDomains.contains(domain)) {
+                pendingEntityId = entityId;
+            } else {
+                selectEntityById(entityId);
+            }
+        }
+
+        updateSaveButtonState();
+    }
+
+    /**
+     * Select an entity of the selected domain in the entity spinner
+     *
+     * @return true if the entity was found
+     */
+    private boolean selectEntityById(String entityId) {
+        if (selectedDomain == null || entityCatalog == null) {
+            return false;
+        }
+        int position = entityAdapter.getPosition(entityId);
+        if (position < 0 && entityAdapter.isFiltered()) {
+            // Hidden by the search filter, show the full list again
+            resetEntitySearch();
+            entityAdapter.setEntities(entityCatalog.getEntitiesForDomain(selectedDomain));
+            position = entityAdapter.getPosition(entityId);
+        }
+        if (position < 0) {
+            return false;
+        }
+        spinnerEntity.setSelection(position);
+        selectedEntity = entityAdapter.getItem(position);
+        return true;
+    }
+
+    /**
+     * Replace the entity catalog and rebuild the search index for it in the background
+     */
+    private void setEntityCatalog(final EntityCatalog catalog) {
+        entityCatalog = catalog;
+        searchIndex = null;
+        searchResults = null;
+        updateEntitySearchEnabled();
+
+        if (catalog.isEmpty()) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        EntitySearchIndex.buildAsync(catalog, new EntitySearchIndex.BuildCallback() {
+            @Override
+            public void onIndexBuilt(EntitySearchIndex index) {
+                if (index.getCatalog() != entityCatalog) {
+                    return; // Superseded by a newer catalog
+                }
+                Log.d("WidgetConfigActivity", "Search index for " + index.size() + " entities built in "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+                searchIndex = index;
+                searchResults = index.newResultBuffer();
+                updateEntitySearchEnabled();
+                applyEntityFilter();
+            }
+        });
+    }
+
+    /**
+     * Filter the entity spinner by the search box, keeping the selected entity if it is still shown
+     */
+    private void applyEntityFilter() {
+        if (selectedDomain == null || entityCatalog == null || !entityCatalog.hasDomain(selectedDomain)) {
+            return;
+        }
+
+        String query = editEntitySearch.getText().toString();
+        if (query.trim().isEmpty() || searchIndex == null) {
+            if (!entityAdapter.isFiltered()) {
+                return;
+            }
+            entityAdapter.setEntities(entityCatalog.getEntitiesForDomain(selectedDomain));
+        } else {
+            int count = searchIndex.search(query, selectedDomain, searchResults);
+            entityAdapter.setResults(searchIndex, searchResults, count);
+        }
+
+        int position = selectedEntity != null ? entityAdapter.getPosition(selectedEntity.getEntityId()) : -1;
+        if (position < 0) {
+            selectedEntity = null;
+            position = 0;
+        }
+        spinnerEntity.setSelection(position);
+        if (!restoringSelections) {
+            updateSaveButtonState();
+        }
+    }
+
+    /**
+     * Clear the search box without filtering
+     */
+    private void resetEntitySearch() {
+        updatingEntitySearch = true;
+        editEntitySearch.setText("");
+        updatingEntitySearch = false;
+    }
+
+    private void updateEntitySearchEnabled() {
+        editEntitySearch.setEnabled(searchIndex != null && spinnerEntity.isEnabled());
+    }
+
+    /**
+     * Fetch the entities of one domain, from the catalog cache if possible
+     */
+    private void loadDomainEntities(final String domain) {
+        if (loadingDomains.contains(domain)) {
+            return;
+        }
+
+        final CatalogCache catalogCache = CatalogCache.getInstance(this);
+        EntityCatalog cached = catalogCache.getDomainEntities(domain);
+        if (cached != null) {
+            onDomainEntitiesAvailable(domain, cached);
+            return;
+        }
+
+        Log.d("WidgetConfigActivity", "Fetching entities for domain " + domain);
+        loadingDomains.add(domain);
+        progressEntities.setVisibility(View.VISIBLE);
+
+        apiClient.fetchEntitiesForDomain(domain, new HomeAssistantApiClient.EntityCallback() {
+            @Override
+            public void onEntitiesLoaded(EntityCatalog entities) {
+                loadingDomains.remove(domain);
+                progressEntities.setVisibility(View.GONE);
+                Log.d("WidgetConfigActivity", "Entities loaded for domain " + domain + ": " + entities.size());
+                catalogCache.putDomainEntities(domain, entities);
+                onDomainEntitiesAvailable(domain, entities);
+            }
+
+            @Override
+            public void onError(String error) {
+                loadingDomains.remove(domain);
+                progressEntities.setVisibility(View.GONE);
+                Log.e("WidgetConfigActivity", "Error loading entities for domain " + domain + ": " + error);
+                displayError("Error loading entities: " + error);
+            }
+
+            @Override
+            public void onDetailedError(String error, String detailedInfo) {
+                loadingDomains.remove(domain);
+                progressEntities.setVisibility(View.GONE);
+                Log.e("WidgetConfigActivity", "Detailed error loading entities for domain " + domain + ": " + error);
+                displayDetailedError("Error loading entities: " + error, detailedInfo);
+            }
+        });
+    }
+
+    /**
+     * Merge the entities of one domain into the catalog and show them if that domain is still selected
+     */
+    private void onDomainEntitiesAvailable(String domain, EntityCatalog entities) {
+        loadedDomains.add(domain);
+        setEntityCatalog(new EntityCatalog.Builder().addAll(entityCatalog).addAll(entities).build());
+
+        if (domain.equals(selectedDomain)) {
+            String entityId = pendingEntityId;
+            pendingEntityId = null;
+            updateEntitiesSpinner();
+            if (entityId != null && !selectEntityById(entityId)) {
+                Log.w("WidgetConfigActivity", "Entity '" + entityId + "' not found in domain '" + domain + "'");
+            }
+            if (!restoringSelections) {
+                updateSaveButtonState();
+            }
+        }
+    }
+
     /**
      * Checks if both services and entities are loaded, and if so, restores selections.
      */
@@ -614,22 +1137,22 @@ public class WidgetConfigActivity extends Activity {
 
     /**
      * Restore previously saved selections when editing a widget.
-     * Should only be called AFTER servicesByDomain and entitiesByDomain are populated.
+     * Should only be called AFTER servicesByDomain and entityCatalog are populated.
      */
     private void restoreSavedSelections() {
         // Get saved values
-        final String savedDomain = getServiceDomain(this, appWidgetId);
-        final String savedService = getServiceName(this, appWidgetId);
-        final String savedEntityId = getEntityId(this, appWidgetId);
-        final int savedIconIndex = getIconIndex(this, appWidgetId);
+        WidgetConfig savedConfig = WidgetConfigStore.getInstance(this).get(appWidgetId);
+        final String savedDomain = savedConfig.getServiceDomain();
+        final String savedService = savedConfig.getServiceName();
+        final String savedEntityId = savedConfig.getEntityId();
+        final int savedIconIndex = savedConfig.getIconIndex();
 
         Log.d("WidgetConfigActivity", "Attempting restore - Domain: " + savedDomain +
               ", Service: " + savedService + ", Entity: " + savedEntityId +
               ", Icon: " + savedIconIndex);
 
-        // Check if we have actual saved values (not defaults) or if it's a new widget
-        boolean isExistingConfig = !savedDomain.equals("light") || !savedService.equals("toggle") ||
-                                   !savedEntityId.equals("light.living_room") || savedIconIndex != 0;
+        // Check if this widget was saved before or if it's a new widget
+        boolean isExistingConfig = WidgetConfigStore.getInstance(this).contains(appWidgetId);
 
         if (!isExistingConfig) {
             Log.d("WidgetConfigActivity", "No existing configuration found or using defaults. Skipping restore.");
@@ -708,34 +1231,20 @@ public class WidgetConfigActivity extends Activity {
                         @Override
                         public void run() {
                             // Find entity in spinner
-                            if (selectedDomain != null && entitiesByDomain != null && entitiesByDomain.containsKey(selectedDomain)) {
-                                List<HomeAssistantEntity> entities = entitiesByDomain.get(selectedDomain);
-                                // Ensure entities list is sorted the same way as in updateEntitiesSpinner
-                                Collections.sort(entities, Comparator.comparing(HomeAssistantEntity::getFriendlyName));
-                                Log.d("WidgetConfigActivity", "Restoring entity selection. Found " + entities.size() + " entities for domain " + selectedDomain);
-                                int entityIndexToSelect = -1;
-                                for (int i = 0; i < entities.size(); i++) {
-                                    if (entities.get(i).getEntityId().equals(targetEntityId)) {
-                                        entityIndexToSelect = i + 1; // +1 for prompt item
-                                        break;
-                                    }
-                                }
-                                if (entityIndexToSelect != -1) {
-                                    Log.d("WidgetConfigActivity", "Found entity index: " + entityIndexToSelect);
-                                    spinnerEntity.setSelection(entityIndexToSelect);
-                                    
-                                    // Also set the actual entity object in case spinner listener fails
-                                    for (HomeAssistantEntity entity : entities) {
-                                        if (entity.getEntityId().equals(targetEntityId)) {
-                                            selectedEntity = entity;
-                                            break;
-                                        }
-                                    }
+                            if (selectedDomain != null && entityCatalog != null && entityCatalog.hasDomain(selectedDomain)) {
+                                Log.d("WidgetConfigActivity", "Restoring entity selection. Found " + entityCatalog.getCount(selectedDomain) + " entities for domain " + selectedDomain);
+                                // Also sets the actual entity object in case spinner listener fails
+                                if (selectEntityById(targetEntityId)) {
+                                    Log.d("WidgetConfigActivity", "Found entity index: " + spinnerEntity.getSelectedItemPosition());
                                 } else {
                                     Log.w("WidgetConfigActivity", "Saved entity '" + targetEntityId + "' not found in spinner for domain '" + selectedDomain + "'");
                                 }
+                            } else if (selectedDomain != null && loadingDomains.contains(selectedDomain)) {
+                                // Entities of this domain are still being fetched, select it when they arrive
+                                Log.d("WidgetConfigActivity", "Deferring entity restore until domain " + selectedDomain + " is loaded.");
+                                pendingEntityId = targetEntityId;
                             } else {
-                                Log.w("WidgetConfigActivity", "Cannot restore entity: selectedDomain is null or entitiesByDomain is null/doesn't contain domain.");
+                                Log.w("WidgetConfigActivity", "Cannot restore entity: selectedDomain is null or entity catalog is null/doesn't contain domain.");
                             }
 
                             // Restore icon selection
@@ -754,6 +1263,11 @@ public class WidgetConfigActivity extends Activity {
                             restoringSelections = false; // Clear flag
                             updateSaveButtonState();
                             Log.d("WidgetConfigActivity", "Finished restoring selections.");
+
+                            // Apply any catalog update that arrived while restoring
+                            if (pendingRefresh) {
+                                refreshSpinnersKeepingSelection();
+                            }
                         }
                     }, 100); // Short delay to ensure service spinner has updated
                 }
@@ -793,7 +1307,8 @@ public class WidgetConfigActivity extends Activity {
      */
     private void updateServicesSpinner() {
         if (selectedDomain != null && servicesByDomain.containsKey(selectedDomain)) {
-            List<HomeAssistantService> services = servicesByDomain.get(selectedDomain);
+            // A copy, the cached catalog shares its lists with a background persist
+            List<HomeAssistantService> services = new ArrayList<>(servicesByDomain.get(selectedDomain));
 
             // Debug log to track domain and services
             Log.d("WidgetConfigActivity", "Updating services spinner for domain: " + selectedDomain
@@ -862,31 +1377,21 @@ public class WidgetConfigActivity extends Activity {
      * Update the entities spinner based on selected domain
      */
     private void updateEntitiesSpinner() {
-        if (selectedDomain != null && entitiesByDomain != null &&
-                entitiesByDomain.containsKey(selectedDomain)) {
-            List<HomeAssistantEntity> entities = entitiesByDomain.get(selectedDomain);
-
-            // Sort entities by friendly name
-            Collections.sort(entities, new Comparator<HomeAssistantEntity>() {
-                @Override
-                public int compare(HomeAssistantEntity e1, HomeAssistantEntity e2) {
-                    return e1.getFriendlyName().compareTo(e2.getFriendlyName());
-                }
-            });
-
-            // Create adapter with a prompt as first item
-            List<String> displayEntities = new ArrayList<>();
-            displayEntities.add(getString(R.string.select_entity));
-
-            for (HomeAssistantEntity entity : entities) {
-                displayEntities.add(entity.toString());
-            }
+        if (lazyEntityLoading && selectedDomain != null && !loadedDomains.contains(selectedDomain)) {
+            // Show an empty spinner until this domain's entities arrive
+            clearEntitiesSpinner();
+            loadDomainEntities(selectedDomain);
+            return;
+        }
 
-            ArrayAdapter<String> adapter = new ArrayAdapter<>(
-                    this, android.R.layout.simple_spinner_item, displayEntities);
-            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-            spinnerEntity.setAdapter(adapter);
+        if (selectedDomain != null && entityCatalog != null &&
+                entityCatalog.hasDomain(selectedDomain)) {
+            // Already sorted by friendly name, the adapter adds the prompt as first item
+            resetEntitySearch();
+            entityAdapter.setEntities(entityCatalog.getEntitiesForDomain(selectedDomain));
+            spinnerEntity.setAdapter(entityAdapter);
             spinnerEntity.setEnabled(true);
+            updateEntitySearchEnabled();
         } else {
             clearEntitiesSpinner();
         }
@@ -896,14 +1401,11 @@ public class WidgetConfigActivity extends Activity {
      * Clear the entities spinner when no domain is selected
      */
     private void clearEntitiesSpinner() {
-        List<String> emptyList = new ArrayList<>();
-        emptyList.add(getString(R.string.select_entity));
-
-        ArrayAdapter<String> adapter = new ArrayAdapter<>(
-                this, android.R.layout.simple_spinner_item, emptyList);
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        spinnerEntity.setAdapter(adapter);
+        resetEntitySearch();
+        entityAdapter.setEntities(Collections.<HomeAssistantEntity>emptyList());
+        spinnerEntity.setAdapter(entityAdapter);
         spinnerEntity.setEnabled(false);
+        updateEntitySearchEnabled();
         selectedEntity = null;
     }
 
@@ -932,7 +1434,7 @@ public class WidgetConfigActivity extends Activity {
             // Include more diagnostic information
             errorDetails.append("No detailed information available from API response.\n\n");
             errorDetails.append("Connection Information:\n");
-            String baseUrl = SettingsActivity.getHomeAssistantUrl(this);
+            String baseUrl = ConnectionProfile.getInstance(this).getBaseUrl();
             errorDetails.append("URL: ").append(baseUrl).append("/api/services\n");
             errorDetails.append("Authentication Method: ").append(SettingsActivity.isUsingOAuth(this) ? "OAuth2" : "Long-lived Token").append("\n");
 
@@ -1006,22 +1508,13 @@ public class WidgetConfigActivity extends Activity {
     private void saveWidgetConfiguration(int appWidgetId, String title, String domain,
                                          String service, String entityId, int iconIndex,
                                          int transparency) {
-        SharedPreferences.Editor prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
-        prefs.putString(PREF_PREFIX_KEY + appWidgetId + PREF_TITLE_KEY, title);
-        prefs.putString(PREF_PREFIX_KEY + appWidgetId + PREF_DOMAIN_KEY, domain);
-        prefs.putString(PREF_PREFIX_KEY + appWidgetId + PREF_SERVICE_KEY, service);
-        prefs.putString(PREF_PREFIX_KEY + appWidgetId + PREF_ENTITY_KEY, entityId);
-        prefs.putInt(PREF_PREFIX_KEY + appWidgetId + PREF_ICON_KEY, iconIndex);
-        prefs.putInt(PREF_PREFIX_KEY + appWidgetId + PREF_TRANSPARENCY_KEY, transparency);
-        
         // Save confirmation settings
         boolean requireConfirmation = switchRequireConfirmation.isChecked();
         String confirmationMessage = editConfirmationMessage.getText().toString().trim();
-        
-        prefs.putBoolean(PREF_PREFIX_KEY + appWidgetId + PREF_REQUIRE_CONFIRMATION_KEY, requireConfirmation);
-        prefs.putString(PREF_PREFIX_KEY + appWidgetId + PREF_CONFIRMATION_MESSAGE_KEY, confirmationMessage);
-        
-        prefs.apply();
+
+        WidgetConfigStore.getInstance(this).put(appWidgetId, new WidgetConfig(title, domain, service, entityId,
+                iconIndex, transparency, requireConfirmation, confirmationMessage,
+                switchDeliverEventually.isChecked()));
         
         // Debug log for saving configuration
         Log.d("WidgetConfigActivity", "Saved widget configuration: " +
@@ -1037,37 +1530,9 @@ public class WidgetConfigActivity extends Activity {
     private void updateWidget() {
         AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
         HomeAssistantWidget.updateAppWidget(this, appWidgetManager, appWidgetId);
-    }
 
-    // Static methods to retrieve widget configuration
-    public static String getWidgetTitle(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(PREF_PREFIX_KEY + appWidgetId + PREF_TITLE_KEY, context.getString(R.string.widget_text));
-    }
-
-    public static String getServiceDomain(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(PREF_PREFIX_KEY + appWidgetId + PREF_DOMAIN_KEY, "light");
-    }
-
-    public static String getServiceName(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(PREF_PREFIX_KEY + appWidgetId + PREF_SERVICE_KEY, "toggle");
-    }
-
-    public static String getEntityId(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(PREF_PREFIX_KEY + appWidgetId + PREF_ENTITY_KEY, "light.living_room");
-    }
-
-    public static int getIconIndex(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getInt(PREF_PREFIX_KEY + appWidgetId + PREF_ICON_KEY, 0);
-    }
-
-    public static int getTransparency(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getInt(PREF_PREFIX_KEY + appWidgetId + PREF_TRANSPARENCY_KEY, DEFAULT_TRANSPARENCY);
+        // The widget may show a different entity now
+        LiveStateTracker.getInstance(this).refresh();
     }
 
     // Convert transparency percentage to alpha value (0-255)
@@ -1089,24 +1554,9 @@ public class WidgetConfigActivity extends Activity {
         }
     }
 
-    public static boolean requiresConfirmation(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getBoolean(PREF_PREFIX_KEY + appWidgetId + PREF_REQUIRE_CONFIRMATION_KEY, true);
-    }
-
-    public static String getConfirmationMessage(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(PREF_PREFIX_KEY + appWidgetId + PREF_CONFIRMATION_MESSAGE_KEY, "");
-    }
-
     public static void deleteWidgetConfiguration(Context context, int appWidgetId) {
-        SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
-        prefs.remove(PREF_PREFIX_KEY + appWidgetId + PREF_TITLE_KEY);
-        prefs.remove(PREF_PREFIX_KEY + appWidgetId + PREF_DOMAIN_KEY);
-        prefs.remove(PREF_PREFIX_KEY + appWidgetId + PREF_SERVICE_KEY);
-        prefs.remove(PREF_PREFIX_KEY + appWidgetId + PREF_ENTITY_KEY);
-        prefs.remove(PREF_PREFIX_KEY + appWidgetId + PREF_ICON_KEY);
-        prefs.remove(PREF_PREFIX_KEY + appWidgetId + PREF_TRANSPARENCY_KEY);
-        prefs.apply();
+        WidgetConfigStore.getInstance(context).remove(appWidgetId);
+
+        LatencyStats.getInstance(context).remove(LatencyStats.widgetKey(appWidgetId));
     }
 }
\ No newline at end of file
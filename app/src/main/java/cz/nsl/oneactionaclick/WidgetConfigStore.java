@@ -0,0 +1,171 @@
+package cz.nsl.oneactionaclick;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Per-process cache of every widget's {@link WidgetConfig}.
+ *
+ * All records are read once, when the store is first used; after that lookups are served
+ * from memory. Each widget is stored as one JSON entry and writes are serialized and
+ * committed on a background thread, while the cache is updated right away.
+ *
+ * Configurations saved by earlier versions as one preference per field are migrated
+ * on the first load.
+ */
+public class WidgetConfigStore {
+    private static final String TAG = "WidgetConfigStore";
+
+    private static final String PREFS_NAME = "cz.nsl.oneactionaclick.WidgetConfigs";
+    private static final String KEY_PREFIX = "widget_";
+
+    // Storage used before WidgetConfig, one key per field: appwidget_<id>_<field>
+    private static final String LEGACY_PREFS_NAME = "cz.nsl.oneactionaclick.WidgetPrefs";
+    private static final String LEGACY_PREFIX = "appwidget_";
+
+    private static WidgetConfigStore sInstance;
+
+    private final SharedPreferences prefs;
+    private final WidgetConfig defaults;
+    private final ExecutorService writeExecutor;
+
+    // Guarded by this
+    private final SparseArray<WidgetConfig> configs = new SparseArray<>();
+
+    public static synchronized WidgetConfigStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetConfigStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WidgetConfigStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.defaults = WidgetConfig.defaults(context.getString(R.string.widget_text));
+        this.writeExecutor = Executors.newSingleThreadExecutor();
+
+        load();
+        migrateLegacy(context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * Get a widget's configuration, or the defaults if it was never saved
+     */
+    public synchronized WidgetConfig get(int appWidgetId) {
+        WidgetConfig config = configs.get(appWidgetId);
+        return config != null ? config : defaults;
+    }
+
+    public synchronized boolean contains(int appWidgetId) {
+        return configs.get(appWidgetId) != null;
+    }
+
+    /**
+     * Save a widget's configuration. Readers see it immediately, it reaches disk in the background.
+     */
+    public void put(final int appWidgetId, final WidgetConfig config) {
+        synchronized (this) {
+            configs.put(appWidgetId, config);
+        }
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefs.edit().putString(KEY_PREFIX + appWidgetId, config.toJson().toString()).commit();
+                } catch (JSONException e) {
+                    Log.e(TAG, "Error saving configuration of widget " + appWidgetId, e);
+                }
+            }
+        });
+    }
+
+    public void remove(final int appWidgetId) {
+        synchronized (this) {
+            configs.remove(appWidgetId);
+        }
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prefs.edit().remove(KEY_PREFIX + appWidgetId).commit();
+            }
+        });
+    }
+
+    private synchronized void load() {
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_PREFIX) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                int appWidgetId = Integer.parseInt(entry.getKey().substring(KEY_PREFIX.length()));
+                JSONObject json = new JSONObject((String) entry.getValue());
+                configs.put(appWidgetId, WidgetConfig.fromJson(json, defaults));
+            } catch (NumberFormatException | JSONException e) {
+                Log.w(TAG, "Skipping unreadable widget configuration " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Move configurations from the per-field preferences into records, then drop the old keys
+     */
+    private void migrateLegacy(final SharedPreferences legacyPrefs) {
+        Map<String, ?> legacy = legacyPrefs.getAll();
+        if (legacy.isEmpty()) {
+            return;
+        }
+
+        for (String key : legacy.keySet()) {
+            if (!key.startsWith(LEGACY_PREFIX)) {
+                continue;
+            }
+            int end = key.indexOf('_', LEGACY_PREFIX.length());
+            int appWidgetId;
+            try {
+                appWidgetId = Integer.parseInt(key.substring(LEGACY_PREFIX.length(), end < 0 ? key.length() : end));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (contains(appWidgetId)) {
+                continue;
+            }
+
+            String prefix = LEGACY_PREFIX + appWidgetId;
+            WidgetConfig config = new WidgetConfig(
+                    legacyValue(legacy, prefix + "_title", defaults.getTitle()),
+                    legacyValue(legacy, prefix + "_domain", defaults.getServiceDomain()),
+                    legacyValue(legacy, prefix + "_service", defaults.getServiceName()),
+                    legacyValue(legacy, prefix + "_entity", defaults.getEntityId()),
+                    legacyValue(legacy, prefix + "_icon", defaults.getIconIndex()),
+                    legacyValue(legacy, prefix + "_transparency", defaults.getTransparency()),
+                    legacyValue(legacy, prefix + "_require_confirmation", defaults.requiresConfirmation()),
+                    legacyValue(legacy, prefix + "_confirmation_message", defaults.getConfirmationMessage()),
+                    legacyValue(legacy, prefix + "_deliver_eventually", defaults.deliversEventually()));
+            Log.d(TAG, "Migrating configuration of widget " + appWidgetId);
+            put(appWidgetId, config);
+        }
+
+        // Queued behind the record writes, so the old keys only go once the records are on disk
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                legacyPrefs.edit().clear().commit();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T legacyValue(Map<String, ?> legacy, String key, T defaultValue) {
+        Object value = legacy.get(key);
+        return value != null && defaultValue.getClass().isInstance(value) ? (T) value : defaultValue;
+    }
+}
\ No newline at end of file
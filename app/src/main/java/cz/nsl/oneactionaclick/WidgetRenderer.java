@@ -0,0 +1,317 @@
+package cz.nsl.oneactionaclick;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.view.View;
+import android.widget.RemoteViews;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes widget views to the launcher, only when something visible changed.
+ *
+ * Every render starts from a snapshot of what the widget shows: title, icon, background
+ * colour, live state, the night mode it was drawn in and what a tap opens. A widget whose
+ * snapshot matches the one last pushed is skipped. If only the title, icon, background or
+ * state changed, just those are sent with partiallyUpdateAppWidget; anything else gets
+ * full RemoteViews.
+ *
+ * Render requests that arrive close together, like the broadcasts around a theme change,
+ * are merged and handled in one pass on the main thread.
+ */
+public class WidgetRenderer {
+    private static final String TAG = "WidgetRenderer";
+
+    private static WidgetRenderer sInstance;
+
+    private final Context context;
+    private final AppWidgetManager appWidgetManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private final SparseArray<Snapshot> rendered = new SparseArray<>();
+    private final SparseBooleanArray pending = new SparseBooleanArray();
+    private boolean passScheduled = false;
+
+    private final AtomicLong fullRenders = new AtomicLong();
+    private final AtomicLong partialRenders = new AtomicLong();
+    private final AtomicLong skippedRenders = new AtomicLong();
+
+    private final Runnable renderPass = new Runnable() {
+        @Override
+        public void run() {
+            int[] appWidgetIds;
+            synchronized (WidgetRenderer.this) {
+                passScheduled = false;
+                appWidgetIds = new int[pending.size()];
+                for (int i = 0; i < appWidgetIds.length; i++) {
+                    appWidgetIds[i] = pending.keyAt(i);
+                }
+                pending.clear();
+            }
+            for (int appWidgetId : appWidgetIds) {
+                render(appWidgetId, false);
+            }
+        }
+    };
+
+    public static synchronized WidgetRenderer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WidgetRenderer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WidgetRenderer(Context context) {
+        this.context = context;
+        this.appWidgetManager = AppWidgetManager.getInstance(context);
+    }
+
+    /**
+     * Queue widgets for the next render pass. Safe to call from any thread.
+     */
+    public void requestRender(int... appWidgetIds) {
+        synchronized (this) {
+            for (int appWidgetId : appWidgetIds) {
+                pending.put(appWidgetId, true);
+            }
+            if (passScheduled) {
+                return;
+            }
+            passScheduled = true;
+        }
+        mainHandler.post(renderPass);
+    }
+
+    /**
+     * Render a widget right away. With force set, full views are pushed even if
+     * nothing changed, for when the launcher may have lost them.
+     */
+    public void renderNow(int appWidgetId, boolean force) {
+        synchronized (this) {
+            pending.delete(appWidgetId);
+        }
+        render(appWidgetId, force);
+    }
+
+    /**
+     * Drop what was last rendered for a deleted widget
+     */
+    public synchronized void forget(int appWidgetId) {
+        rendered.remove(appWidgetId);
+        pending.delete(appWidgetId);
+    }
+
+    public long getFullRenderCount() {
+        return fullRenders.get();
+    }
+
+    public long getPartialRenderCount() {
+        return partialRenders.get();
+    }
+
+    public long getSkippedRenderCount() {
+        return skippedRenders.get();
+    }
+
+    private void render(int appWidgetId, boolean force) {
+        Snapshot next = snapshot(appWidgetId);
+        Snapshot previous;
+        synchronized (this) {
+            previous = rendered.get(appWidgetId);
+        }
+
+        if (!force && next.equals(previous)) {
+            skippedRenders.incrementAndGet();
+            return;
+        }
+
+        if (!force && previous != null && next.differsOnlyInContent(previous)) {
+            // Only valid on top of full views the launcher already has, hence the previous snapshot
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_layout);
+            if (!next.title.equals(previous.title)) {
+                views.setTextViewText(R.id.widget_text, next.title);
+            }
+            if (next.iconResource != previous.iconResource) {
+                views.setImageViewResource(R.id.widget_icon, next.iconResource);
+            }
+            if (next.backgroundColor != previous.backgroundColor) {
+                views.setInt(R.id.widget_container, "setBackgroundColor", next.backgroundColor);
+            }
+            if (!equal(next.state, previous.state)) {
+                setState(views, next.state);
+            }
+            appWidgetManager.partiallyUpdateAppWidget(appWidgetId, views);
+            partialRenders.incrementAndGet();
+        } else {
+            appWidgetManager.updateAppWidget(appWidgetId, buildViews(appWidgetId, next));
+            fullRenders.incrementAndGet();
+        }
+
+        synchronized (this) {
+            rendered.put(appWidgetId, next);
+        }
+        Log.d(TAG, "Rendered widget " + appWidgetId + (previous == null || force ? " (full)" : ""));
+    }
+
+    private Snapshot snapshot(int appWidgetId) {
+        WidgetConfig config = WidgetConfigStore.getInstance(context).get(appWidgetId);
+
+        // Apply transparency to the widget background
+        int alphaValue = WidgetConfigActivity.getAlphaValue(config.getTransparency());
+        int backgroundColor = context.getResources().getColor(R.color.widgetBackground);
+        int transparentColor = Color.argb(
+                alphaValue,
+                Color.red(backgroundColor),
+                Color.green(backgroundColor),
+                Color.blue(backgroundColor)
+        );
+
+        // The text colour comes from the layout and is resolved by the launcher, so the
+        // night mode stands in for it
+        int nightMode = context.getResources().getConfiguration().uiMode & Configuration.UI_MODE_NIGHT_MASK;
+
+        String state = LiveStateTracker.getInstance(context).getDisplayState(config.getEntityId());
+
+        return new Snapshot(config.getTitle(),
+                WidgetConfigActivity.getDrawableResource(config.getIconIndex()),
+                transparentColor, state, nightMode, config.requiresConfirmation());
+    }
+
+    private static void setState(RemoteViews views, String state) {
+        views.setTextViewText(R.id.widget_state, state != null ? state : "");
+        views.setViewVisibility(R.id.widget_state, state != null ? View.VISIBLE : View.GONE);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private RemoteViews buildViews(int appWidgetId, Snapshot snapshot) {
+        // Construct the RemoteViews object
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_layout);
+
+        // Update the widget title, icon and background
+        views.setTextViewText(R.id.widget_text, snapshot.title);
+        views.setImageViewResource(R.id.widget_icon, snapshot.iconResource);
+        views.setInt(R.id.widget_container, "setBackgroundColor", snapshot.backgroundColor);
+        setState(views, snapshot.state);
+
+        // Use appropriate flag based on the Android version
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+
+        PendingIntent actionPendingIntent;
+        if (snapshot.requireConfirmation) {
+            // Launch the confirmation activity when widget is clicked
+            Intent actionIntent = new Intent(context, ConfirmActionActivity.class);
+            actionIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+            actionPendingIntent = PendingIntent.getActivity(context, appWidgetId, actionIntent, flags);
+        } else {
+            // No confirmation needed, call the service from a broadcast without starting an activity
+            Intent actionIntent = new Intent(context, WidgetActionReceiver.class);
+            actionIntent.setAction(WidgetActionReceiver.ACTION_WIDGET_TAP);
+            actionIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+            actionPendingIntent = PendingIntent.getBroadcast(context, appWidgetId, actionIntent, flags);
+        }
+
+        // Set click listener on the container to make the entire widget clickable
+        views.setOnClickPendingIntent(R.id.widget_container, actionPendingIntent);
+
+        // For older Android versions (pre-Android 12), add a gear icon for configuration
+        // For Android 12+ (S), rely on the system's built-in widget configuration menu
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+            // Only show gear icon on older Android versions
+            views.setViewVisibility(R.id.widget_settings, View.VISIBLE);
+
+            // Create an Intent to launch the configuration activity for editing the widget
+            Intent configIntent = new Intent(context, WidgetConfigActivity.class);
+            configIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+            configIntent.setAction(AppWidgetManager.ACTION_APPWIDGET_CONFIGURE);
+
+            PendingIntent configPendingIntent = PendingIntent.getActivity(
+                    context,
+                    appWidgetId + 10000, // Use different request code to avoid conflicts
+                    configIntent,
+                    flags
+            );
+
+            views.setOnClickPendingIntent(R.id.widget_settings, configPendingIntent);
+        } else {
+            // Hide gear icon on Android 12+ as we'll use the system's configuration option
+            views.setViewVisibility(R.id.widget_settings, View.GONE);
+        }
+
+        return views;
+    }
+
+    /**
+     * Everything a widget's views are built from
+     */
+    private static final class Snapshot {
+        final String title;
+        final int iconResource;
+        final int backgroundColor;
+        final String state; // null without live state
+        final int nightMode;
+        final boolean requireConfirmation;
+        final int hash;
+
+        Snapshot(String title, int iconResource, int backgroundColor, String state, int nightMode,
+                 boolean requireConfirmation) {
+            this.title = title;
+            this.iconResource = iconResource;
+            this.backgroundColor = backgroundColor;
+            this.state = state;
+            this.nightMode = nightMode;
+            this.requireConfirmation = requireConfirmation;
+
+            int h = title.hashCode();
+            h = 31 * h + iconResource;
+            h = 31 * h + backgroundColor;
+            h = 31 * h + (state != null ? state.hashCode() : 0);
+            h = 31 * h + nightMode;
+            h = 31 * h + (requireConfirmation ? 1 : 0);
+            this.hash = h;
+        }
+
+        /**
+         * True if the only differences are in fields a partial update can set
+         */
+        boolean differsOnlyInContent(Snapshot other) {
+            return nightMode == other.nightMode && requireConfirmation == other.requireConfirmation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Snapshot)) return false;
+            Snapshot other = (Snapshot) o;
+            // Compare hashes first, most renders are either skipped or differ there
+            return hash == other.hash
+                    && iconResource == other.iconResource
+                    && backgroundColor == other.backgroundColor
+                    && nightMode == other.nightMode
+                    && requireConfirmation == other.requireConfirmation
+                    && title.equals(other.title)
+                    && equal(state, other.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
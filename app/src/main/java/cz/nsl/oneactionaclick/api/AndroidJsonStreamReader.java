@@ -0,0 +1,99 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import okio.BufferedSource;
+
+/**
+ * {@link JsonStreamReader} backed by the platform's android.util.JsonReader
+ */
+public class AndroidJsonStreamReader implements JsonStreamReader {
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public JsonStreamReader create(BufferedSource source) {
+            return new AndroidJsonStreamReader(source);
+        }
+    };
+
+    private final JsonReader reader;
+
+    public AndroidJsonStreamReader(BufferedSource source) {
+        this.reader = new JsonReader(new InputStreamReader(source.inputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        reader.beginArray();
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        reader.endArray();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        reader.beginObject();
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        reader.endObject();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return reader.hasNext();
+    }
+
+    @Override
+    public Token peek() throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY: return Token.BEGIN_ARRAY;
+            case END_ARRAY: return Token.END_ARRAY;
+            case BEGIN_OBJECT: return Token.BEGIN_OBJECT;
+            case END_OBJECT: return Token.END_OBJECT;
+            case NAME: return Token.NAME;
+            case STRING: return Token.STRING;
+            case NUMBER: return Token.NUMBER;
+            case BOOLEAN: return Token.BOOLEAN;
+            case NULL: return Token.NULL;
+            default: return Token.END_DOCUMENT;
+        }
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        return reader.nextName();
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        return reader.nextString();
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        return reader.nextBoolean();
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        reader.nextNull();
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        reader.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
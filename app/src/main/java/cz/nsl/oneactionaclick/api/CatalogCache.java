@@ -0,0 +1,422 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.nsl.oneactionaclick.SettingsActivity;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Process-wide cache of the service and entity catalog, backed by a copy on disk.
+ * Screens render the last known catalog immediately and revalidate it in the
+ * background once it is older than the configured max age (stale-while-revalidate).
+ */
+public class CatalogCache {
+    private static final String TAG = "CatalogCache";
+
+    private static final String PREFS_NAME = "cz.nsl.oneactionaclick.CatalogCache";
+    private static final String PREF_BASE_URL = "base_url";
+    private static final String PREF_SERVICES_FETCHED_AT = "services_fetched_at";
+    private static final String PREF_ENTITIES_FETCHED_AT = "entities_fetched_at";
+
+    private static final String SERVICES_FILE = "catalog_services.json";
+    private static final String ENTITIES_FILE = "catalog_states.json";
+
+    /**
+     * Immutable view of the cached catalog
+     */
+    public static class Snapshot {
+        private final String baseUrl;
+        private final Map<String, List<HomeAssistantService>> services;
+        private final EntityCatalog entities;
+        private final long servicesFetchedAt;
+        private final long entitiesFetchedAt;
+
+        Snapshot(String baseUrl, Map<String, List<HomeAssistantService>> services,
+                 EntityCatalog entities, long servicesFetchedAt, long entitiesFetchedAt) {
+            this.baseUrl = baseUrl;
+            this.services = services;
+            this.entities = entities;
+            this.servicesFetchedAt = servicesFetchedAt;
+            this.entitiesFetchedAt = entitiesFetchedAt;
+        }
+
+        public Map<String, List<HomeAssistantService>> getServices() {
+            return services;
+        }
+
+        public EntityCatalog getEntities() {
+            return entities;
+        }
+
+        public boolean hasServices() {
+            return services != null && !services.isEmpty();
+        }
+
+        public boolean hasEntities() {
+            return entities != null && !entities.isEmpty();
+        }
+
+        /**
+         * Check whether any part of the catalog is missing or older than maxAgeMs
+         */
+        public boolean isStale(long maxAgeMs) {
+            return isStale(maxAgeMs, true);
+        }
+
+        /**
+         * Check whether the services, and optionally the full entity list, are missing or older than maxAgeMs
+         */
+        public boolean isStale(long maxAgeMs, boolean includeEntities) {
+            long now = System.currentTimeMillis();
+            if (!hasServices() || now - servicesFetchedAt > maxAgeMs) {
+                return true;
+            }
+            return includeEntities && (!hasEntities() || now - entitiesFetchedAt > maxAgeMs);
+        }
+
+        public long getAgeMs() {
+            return System.currentTimeMillis() - Math.min(servicesFetchedAt, entitiesFetchedAt);
+        }
+    }
+
+    public interface LoadCallback {
+        /**
+         * Called on the main thread with the cached catalog, or null on a miss
+         */
+        void onCatalogLoaded(Snapshot snapshot);
+    }
+
+    private static CatalogCache sInstance;
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final ExecutorService diskExecutor;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private Snapshot memory;
+    private boolean diskLoaded = false;
+
+    // Entities fetched one domain at a time, kept in memory only
+    private final Map<String, EntityCatalog> domainEntities = new HashMap<>();
+    private final Map<String, Long> domainFetchedAt = new HashMap<>();
+    private String domainBaseUrl;
+
+    public static synchronized CatalogCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CatalogCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CatalogCache(Context context) {
+        this.context = context;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.diskExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Get the configured max age in milliseconds
+     */
+    public long getMaxAgeMs() {
+        return SettingsActivity.getCatalogMaxAgeMinutes(context) * 60 * 1000L;
+    }
+
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Look up the catalog for the configured Home Assistant instance.
+     * The in-memory copy is returned straight away; the disk copy is read on a
+     * background thread the first time. The callback always runs on the main thread.
+     */
+    public void load(final LoadCallback callback) {
+        final String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+        final long startTime = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (diskLoaded) {
+                deliver(matching(memory, baseUrl), startTime, callback);
+                return;
+            }
+        }
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Snapshot snapshot;
+                synchronized (CatalogCache.this) {
+                    if (!diskLoaded) {
+                        Snapshot fromDisk = readFromDisk();
+                        // A network result may have landed while we were reading
+                        if (memory == null) {
+                            memory = fromDisk;
+                        }
+                        diskLoaded = true;
+                    }
+                    snapshot = matching(memory, baseUrl);
+                }
+                deliver(snapshot, startTime, callback);
+            }
+        });
+    }
+
+    /**
+     * Store freshly fetched services and persist them
+     */
+    public void putServices(Map<String, List<HomeAssistantService>> services) {
+        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Snapshot current = matching(memory, baseUrl);
+            memory = new Snapshot(baseUrl, services,
+                    current != null ? current.entities : null,
+                    now, current != null ? current.entitiesFetchedAt : 0);
+        }
+        persist();
+    }
+
+    /**
+     * Store freshly fetched entities and persist them
+     */
+    public void putEntities(EntityCatalog entities) {
+        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Snapshot current = matching(memory, baseUrl);
+            memory = new Snapshot(baseUrl,
+                    current != null ? current.services : null, entities,
+                    current != null ? current.servicesFetchedAt : 0, now);
+        }
+        persist();
+    }
+
+    /**
+     * Get the entities of a single domain fetched earlier with {@link #putDomainEntities}
+     *
+     * @return the cached entities, or null if missing or older than the max age
+     */
+    public synchronized EntityCatalog getDomainEntities(String domain) {
+        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+        if (!baseUrl.equals(domainBaseUrl)) {
+            return null;
+        }
+        Long fetchedAt = domainFetchedAt.get(domain);
+        if (fetchedAt == null || System.currentTimeMillis() - fetchedAt > getMaxAgeMs()) {
+            return null;
+        }
+        return domainEntities.get(domain);
+    }
+
+    /**
+     * Store the entities of a single domain in memory
+     */
+    public synchronized void putDomainEntities(String domain, EntityCatalog entities) {
+        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+        if (!baseUrl.equals(domainBaseUrl)) {
+            domainEntities.clear();
+            domainFetchedAt.clear();
+            domainBaseUrl = baseUrl;
+        }
+        domainEntities.put(domain, entities);
+        domainFetchedAt.put(domain, System.currentTimeMillis());
+    }
+
+    /**
+     * Drop the cached catalog from memory and disk
+     */
+    public void invalidate() {
+        synchronized (this) {
+            memory = null;
+            diskLoaded = true;
+            domainEntities.clear();
+            domainFetchedAt.clear();
+        }
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                new File(context.getCacheDir(), SERVICES_FILE).delete();
+                new File(context.getCacheDir(), ENTITIES_FILE).delete();
+                getPrefs().edit().clear().apply();
+            }
+        });
+    }
+
+    private static Snapshot matching(Snapshot snapshot, String baseUrl) {
+        return snapshot != null && baseUrl.equals(snapshot.baseUrl) ? snapshot : null;
+    }
+
+    private void deliver(final Snapshot snapshot, long startTime, final LoadCallback callback) {
+        String description;
+        if (snapshot != null && (snapshot.hasServices() || snapshot.hasEntities())) {
+            hits.incrementAndGet();
+            description = "catalog hit, age " + (snapshot.getAgeMs() / 1000) + "s";
+        } else {
+            misses.incrementAndGet();
+            description = "catalog miss";
+        }
+
+        HomeAssistantApiClient.ApiRequestLog requestLog = HomeAssistantApiClient.logRequest("CACHE",
+                description + " (hits " + hits.get() + " / misses " + misses.get() + ")");
+        requestLog.setResponse(0, "", System.currentTimeMillis() - startTime);
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCatalogLoaded(snapshot);
+            }
+        });
+    }
+
+    private void persist() {
+        final Snapshot snapshot;
+        synchronized (this) {
+            snapshot = memory;
+        }
+        if (snapshot == null) {
+            return;
+        }
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (snapshot.hasServices()) {
+                        writeServices(snapshot.services);
+                    }
+                    if (snapshot.hasEntities()) {
+                        writeEntities(snapshot.entities);
+                    }
+                    getPrefs().edit()
+                            .putString(PREF_BASE_URL, snapshot.baseUrl)
+                            .putLong(PREF_SERVICES_FETCHED_AT, snapshot.servicesFetchedAt)
+                            .putLong(PREF_ENTITIES_FETCHED_AT, snapshot.entitiesFetchedAt)
+                            .apply();
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Error writing catalog cache", e);
+                }
+            }
+        });
+    }
+
+    private Snapshot readFromDisk() {
+        SharedPreferences prefs = getPrefs();
+        String baseUrl = prefs.getString(PREF_BASE_URL, null);
+        if (baseUrl == null) {
+            return null;
+        }
+
+        Map<String, List<HomeAssistantService>> services = null;
+        EntityCatalog entities = null;
+
+        File servicesFile = new File(context.getCacheDir(), SERVICES_FILE);
+        if (servicesFile.exists()) {
+            try (BufferedSource source = Okio.buffer(Okio.source(servicesFile))) {
+                services = HomeAssistantJsonDecoder.decodeServices(source);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Discarding unreadable services cache", e);
+            }
+        }
+
+        File entitiesFile = new File(context.getCacheDir(), ENTITIES_FILE);
+        if (entitiesFile.exists()) {
+            try (BufferedSource source = Okio.buffer(Okio.source(entitiesFile))) {
+                EntityCatalog.Builder builder = new EntityCatalog.Builder();
+                HomeAssistantJsonDecoder.decodeEntities(source, builder);
+                entities = builder.build();
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Discarding unreadable entities cache", e);
+            }
+        }
+
+        Log.d(TAG, "Loaded catalog from disk: " + (services != null ? services.size() : 0)
+                + " service domains, " + (entities != null ? entities.size() : 0) + " entities");
+
+        return new Snapshot(baseUrl, services, entities,
+                prefs.getLong(PREF_SERVICES_FETCHED_AT, 0),
+                prefs.getLong(PREF_ENTITIES_FETCHED_AT, 0));
+    }
+
+    private void writeServices(Map<String, List<HomeAssistantService>> services) throws IOException, JSONException {
+        // Written in the object format so it goes back through the normal services decoder
+        JSONObject root = new JSONObject();
+        for (Map.Entry<String, List<HomeAssistantService>> entry : services.entrySet()) {
+            JSONObject domain = new JSONObject();
+            for (HomeAssistantService service : entry.getValue()) {
+                JSONObject definition = new JSONObject();
+                if (!service.getServiceAttributes().isEmpty()) {
+                    definition.put("fields", new JSONObject(service.getServiceAttributes()));
+                }
+                domain.put(service.getServiceName(), definition);
+            }
+            root.put(entry.getKey(), domain);
+        }
+        writeAtomically(SERVICES_FILE, root.toString());
+    }
+
+    private void writeEntities(EntityCatalog entities) throws IOException {
+        // Written as a states array, reusing each entity's raw attribute object verbatim
+        File target = new File(context.getCacheDir(), ENTITIES_FILE);
+        File temp = new File(context.getCacheDir(), ENTITIES_FILE + ".tmp");
+        try (BufferedSink sink = Okio.buffer(Okio.sink(temp))) {
+            sink.writeUtf8("[");
+            boolean first = true;
+            for (HomeAssistantEntity entity : entities.getEntities()) {
+                if (!first) {
+                    sink.writeUtf8(",");
+                }
+                first = false;
+                sink.writeUtf8("{\"entity_id\":").writeUtf8(JSONObject.quote(entity.getEntityId()));
+                sink.writeUtf8(",\"state\":").writeUtf8(JSONObject.quote(entity.getState()));
+                String rawAttributes = entity.getRawAttributesJson();
+                if (rawAttributes != null) {
+                    sink.writeUtf8(",\"attributes\":").writeUtf8(rawAttributes);
+                }
+                sink.writeUtf8("}");
+            }
+            sink.writeUtf8("]");
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Could not replace " + target);
+        }
+    }
+
+    private void writeAtomically(String fileName, String content) throws IOException {
+        File target = new File(context.getCacheDir(), fileName);
+        File temp = new File(context.getCacheDir(), fileName + ".tmp");
+        try (BufferedSink sink = Okio.buffer(Okio.sink(temp))) {
+            sink.writeUtf8(content);
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Could not replace " + target);
+        }
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,413 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.RouteInfo;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cz.nsl.oneactionaclick.SettingsActivity;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Picks which of the configured Home Assistant URLs to talk to.
+ *
+ * The internal URL reaches the server directly on the home network, the optional external
+ * one from anywhere else. Without an external URL the internal one is always used. Otherwise
+ * the choice is remembered per network: on mobile data the external URL is used right away,
+ * on any other network the internal URL is used and confirmed with a quick probe. A connect
+ * failure switches the current network over to the other URL, see {@link #failOver}.
+ *
+ * The system's network handle changes with every reconnect, so networks are told apart by
+ * what stays the same: mobile data is one network, any other network is identified by its
+ * default gateways, DNS servers and search domains (SSIDs need the location permission).
+ * Those choices are kept on disk to outlive the process. A network that has none of these
+ * properties falls back to its handle, and that choice is only kept in memory.
+ *
+ * A switch to the external URL may be caused by the server being down for a moment, so on
+ * networks other than mobile data the internal URL is probed again in the background once
+ * the switch is {@link #RECHECK_INTERNAL_MS} old, and used again if it answers.
+ */
+public final class ConnectionProfile {
+    private static final String TAG = "ConnectionProfile";
+
+    private static final String PREFS_NAME = "cz.nsl.oneactionaclick.ConnectionProfile";
+    private static final String PREF_CHOICES = "choices";
+
+    // Prefix of keys built from a network handle, which are not worth persisting
+    private static final String HANDLE_KEY_PREFIX = "net:";
+    private static final String CELLULAR_KEY = "cellular";
+
+    // Networks remembered, the least recently used are forgotten first
+    private static final int MAX_NETWORKS = 16;
+
+    // How long the external URL is used on a network before the internal one is tried again
+    private static final long RECHECK_INTERNAL_MS = 10 * 60 * 1000L;
+
+    private static ConnectionProfile sInstance;
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private final InstanceProber prober;
+
+    // URL choice by network key, least recently used first. Guarded by this.
+    private final Map<String, Choice> choices = new LinkedHashMap<>(MAX_NETWORKS, 0.75f, true);
+    // Networks whose internal URL is being probed. Guarded by this.
+    private final Set<String> probing = new HashSet<>();
+
+    private static class Choice {
+        final boolean useExternal;
+        // When the choice was made, or when the internal URL last failed to answer
+        final long decidedAt;
+
+        Choice(boolean useExternal, long decidedAt) {
+            this.useExternal = useExternal;
+            this.decidedAt = decidedAt;
+        }
+    }
+
+    private static class NetworkState {
+        final String key;
+        final boolean cellular;
+
+        NetworkState(String key, boolean cellular) {
+            this.key = key;
+            this.cellular = cellular;
+        }
+    }
+
+    public static synchronized ConnectionProfile getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectionProfile(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ConnectionProfile(Context context) {
+        this.context = context;
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.prober = new InstanceProber(context);
+        load();
+    }
+
+    /**
+     * Base URL to send requests to on the current network, without a trailing slash
+     */
+    public String getBaseUrl() {
+        String internalUrl = SettingsActivity.getHomeAssistantUrl(context);
+        String externalUrl = SettingsActivity.getExternalUrl(context);
+        if (externalUrl.isEmpty()) {
+            return internalUrl;
+        }
+
+        NetworkState network = getCurrentNetwork();
+        if (network == null) {
+            // Offline, nothing will get through either way
+            return internalUrl;
+        }
+
+        Choice choice;
+        synchronized (this) {
+            choice = choices.get(network.key);
+        }
+        if (choice == null) {
+            if (network.cellular) {
+                remember(network.key, true, false);
+                return externalUrl;
+            }
+            // Most likely at home; if not, the probe or the first failed connect switches over
+            probeInternal(network.key, internalUrl);
+            return internalUrl;
+        }
+        if (choice.useExternal && !network.cellular
+                && System.currentTimeMillis() - choice.decidedAt > RECHECK_INTERNAL_MS) {
+            // Keep going external meanwhile, the probe switches back if the server answers
+            probeInternal(network.key, internalUrl);
+        }
+        return choice.useExternal ? externalUrl : internalUrl;
+    }
+
+    /**
+     * Check whether a request URL goes to the internal URL on a network where nothing has
+     * confirmed that it answers yet. Such a request should give up connecting quickly, so
+     * that {@link #failOver} can take it to the external URL.
+     */
+    public boolean isUnconfirmed(String url) {
+        String internalUrl = SettingsActivity.getHomeAssistantUrl(context);
+        String externalUrl = SettingsActivity.getExternalUrl(context);
+        if (externalUrl.isEmpty() || externalUrl.equals(internalUrl) || relativeTo(url, internalUrl) == null) {
+            return false;
+        }
+        NetworkState network = getCurrentNetwork();
+        if (network == null) {
+            return false;
+        }
+        synchronized (this) {
+            return !choices.containsKey(network.key);
+        }
+    }
+
+    /**
+     * Switch the current network to the other URL after a request could not connect
+     *
+     * @param failedUrl full URL of the request that failed
+     * @return the same request URL on the other base URL, or null if there is none
+     */
+    public String failOver(String failedUrl) {
+        String internalUrl = SettingsActivity.getHomeAssistantUrl(context);
+        String externalUrl = SettingsActivity.getExternalUrl(context);
+        if (externalUrl.isEmpty() || externalUrl.equals(internalUrl)) {
+            return null;
+        }
+
+        boolean failedExternal;
+        String relative = relativeTo(failedUrl, externalUrl);
+        if (relative != null) {
+            failedExternal = true;
+        } else {
+            relative = relativeTo(failedUrl, internalUrl);
+            if (relative == null) {
+                return null;
+            }
+            failedExternal = false;
+        }
+
+        NetworkState network = getCurrentNetwork();
+        if (network != null) {
+            remember(network.key, !failedExternal, true);
+        }
+        String failedBase = failedExternal ? externalUrl : internalUrl;
+        String alternative = failedExternal ? internalUrl : externalUrl;
+        Log.i(TAG, "Could not connect to " + failedBase + ", switching to " + alternative);
+        return alternative + relative;
+    }
+
+    /**
+     * Remember that a request to the given URL got an answer on the current network
+     */
+    public void reportReachable(String url) {
+        String externalUrl = SettingsActivity.getExternalUrl(context);
+        if (externalUrl.isEmpty()) {
+            return;
+        }
+        boolean external;
+        if (relativeTo(url, externalUrl) != null) {
+            external = true;
+        } else if (relativeTo(url, SettingsActivity.getHomeAssistantUrl(context)) != null) {
+            external = false;
+        } else {
+            return;
+        }
+        NetworkState network = getCurrentNetwork();
+        if (network != null) {
+            remember(network.key, external, true);
+        }
+    }
+
+    /**
+     * Forget all choices, e.g. because the URLs were changed in the settings
+     */
+    public void reset() {
+        synchronized (this) {
+            choices.clear();
+        }
+        save();
+    }
+
+    /**
+     * Probe the internal URL for a network that has no choice yet or uses the external URL
+     */
+    private void probeInternal(final String networkKey, String internalUrl) {
+        synchronized (this) {
+            if (!probing.add(networkKey)) {
+                return;
+            }
+        }
+        prober.probe(internalUrl, new InstanceProber.ProbeCallback() {
+            @Override
+            public void onProbed(long medianRttMs) {
+                boolean stillDown = false;
+                synchronized (ConnectionProfile.this) {
+                    probing.remove(networkKey);
+                    Choice current = choices.get(networkKey);
+                    if (medianRttMs < 0 && current != null && current.useExternal) {
+                        // Try again after another interval
+                        choices.put(networkKey, new Choice(true, System.currentTimeMillis()));
+                        stillDown = true;
+                    }
+                }
+                if (stillDown) {
+                    save();
+                } else if (medianRttMs >= 0) {
+                    // The server answering now beats an earlier failure
+                    remember(networkKey, false, true);
+                } else {
+                    // A request that connected meanwhile knows better
+                    remember(networkKey, true, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param replace false to keep a choice that was made in the meantime
+     */
+    private void remember(String networkKey, boolean useExternal, boolean replace) {
+        synchronized (this) {
+            Choice current = choices.get(networkKey);
+            if (current != null && (!replace || current.useExternal == useExternal)) {
+                return;
+            }
+            choices.put(networkKey, new Choice(useExternal, System.currentTimeMillis()));
+            Iterator<String> eldest = choices.keySet().iterator();
+            while (choices.size() > MAX_NETWORKS) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        save();
+    }
+
+    private NetworkState getCurrentNetwork() {
+        if (connectivityManager == null) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = connectivityManager.getActiveNetwork();
+            if (network == null) {
+                return null;
+            }
+            NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+            boolean cellular = capabilities != null
+                    && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)
+                    && !capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN);
+            if (cellular) {
+                return new NetworkState(CELLULAR_KEY, true);
+            }
+            String key = describe(connectivityManager.getLinkProperties(network));
+            return new NetworkState(key != null ? key : HANDLE_KEY_PREFIX + network, false);
+        }
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return null;
+        }
+        return new NetworkState(info.getTypeName() + ":" + info.getExtraInfo(),
+                info.getType() == ConnectivityManager.TYPE_MOBILE);
+    }
+
+    /**
+     * Key that is the same every time the device joins the same network
+     *
+     * @return the key, or null if the network has nothing to recognize it by
+     */
+    private static String describe(LinkProperties linkProperties) {
+        if (linkProperties == null) {
+            return null;
+        }
+        List<String> gateways = new ArrayList<>();
+        for (RouteInfo route : linkProperties.getRoutes()) {
+            InetAddress gateway = route.getGateway();
+            if (route.isDefaultRoute() && gateway != null && !gateway.isAnyLocalAddress()) {
+                gateways.add(gateway.getHostAddress());
+            }
+        }
+        List<String> dnsServers = new ArrayList<>();
+        for (InetAddress dnsServer : linkProperties.getDnsServers()) {
+            dnsServers.add(dnsServer.getHostAddress());
+        }
+        String domains = linkProperties.getDomains();
+        if (gateways.isEmpty() && dnsServers.isEmpty() && (domains == null || domains.isEmpty())) {
+            return null;
+        }
+        Collections.sort(gateways);
+        Collections.sort(dnsServers);
+        return "gw:" + gateways + " dns:" + dnsServers + " domains:" + (domains != null ? domains : "");
+    }
+
+    /**
+     * Part of a URL after the given base URL, compared the way OkHttp normalizes them
+     *
+     * @return path and query relative to the base, or null if the URL is not under it
+     */
+    private static String relativeTo(String url, String baseUrl) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        HttpUrl base = HttpUrl.parse(baseUrl);
+        if (parsed == null || base == null || !parsed.scheme().equals(base.scheme())
+                || !parsed.host().equals(base.host()) || parsed.port() != base.port()) {
+            return null;
+        }
+        String basePath = base.encodedPath();
+        if (basePath.endsWith("/")) {
+            basePath = basePath.substring(0, basePath.length() - 1);
+        }
+        String path = parsed.encodedPath();
+        if (!path.startsWith(basePath)) {
+            return null;
+        }
+        String relative = path.substring(basePath.length());
+        if (parsed.encodedQuery() != null) {
+            relative += "?" + parsed.encodedQuery();
+        }
+        return relative;
+    }
+
+    private void load() {
+        String json = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(PREF_CHOICES, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONObject stored = new JSONObject(json);
+            Iterator<String> keys = stored.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject choice = stored.optJSONObject(key);
+                if (choice != null && !key.startsWith(HANDLE_KEY_PREFIX)) {
+                    choices.put(key, new Choice(choice.getBoolean("external"), choice.getLong("at")));
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring unreadable connection choices", e);
+        }
+    }
+
+    private void save() {
+        JSONObject stored = new JSONObject();
+        synchronized (this) {
+            try {
+                for (Map.Entry<String, Choice> choice : choices.entrySet()) {
+                    if (!choice.getKey().startsWith(HANDLE_KEY_PREFIX)) {
+                        stored.put(choice.getKey(), new JSONObject()
+                                .put("external", choice.getValue().useExternal)
+                                .put("at", choice.getValue().decidedAt));
+                    }
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Error saving connection choices", e);
+                return;
+            }
+        }
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+        editor.putString(PREF_CHOICES, stored.toString());
+        editor.apply();
+    }
+}
@@ -0,0 +1,156 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index over the entities returned by the Home Assistant states API.
+ * Built in a single pass while the states are decoded, it offers lookup by
+ * entity_id and per-domain lists that are already sorted by friendly name.
+ */
+public final class EntityCatalog {
+    private static final Comparator<HomeAssistantEntity> BY_FRIENDLY_NAME = new Comparator<HomeAssistantEntity>() {
+        @Override
+        public int compare(HomeAssistantEntity e1, HomeAssistantEntity e2) {
+            return e1.getFriendlyName().compareTo(e2.getFriendlyName());
+        }
+    };
+
+    private static final EntityCatalog EMPTY = new Builder().build();
+
+    private final List<HomeAssistantEntity> entities;
+    private final Map<String, HomeAssistantEntity> byId;
+    private final Map<String, List<HomeAssistantEntity>> byDomain;
+
+    private EntityCatalog(List<HomeAssistantEntity> entities, Map<String, HomeAssistantEntity> byId,
+                          Map<String, List<HomeAssistantEntity>> byDomain) {
+        this.entities = entities;
+        this.byId = byId;
+        this.byDomain = byDomain;
+    }
+
+    public static EntityCatalog empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Parse the Home Assistant states API response
+     *
+     * @param jsonString JSON string response from Home Assistant API
+     * @return Catalog of all entities, empty if the response could not be parsed
+     */
+    public static EntityCatalog parse(String jsonString) {
+        Builder builder = new Builder();
+        try {
+            HomeAssistantJsonDecoder.decodeEntities(HomeAssistantJsonDecoder.sourceOf(jsonString), builder);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return EMPTY;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get all entities in the order the API returned them
+     */
+    public List<HomeAssistantEntity> getEntities() {
+        return entities;
+    }
+
+    public int size() {
+        return entities.size();
+    }
+
+    public boolean isEmpty() {
+        return entities.isEmpty();
+    }
+
+    /**
+     * Look up an entity by its entity_id
+     *
+     * @return the entity, or null if the catalog does not contain it
+     */
+    public HomeAssistantEntity get(String entityId) {
+        return byId.get(entityId);
+    }
+
+    public Set<String> getDomains() {
+        return byDomain.keySet();
+    }
+
+    public boolean hasDomain(String domain) {
+        return byDomain.containsKey(domain);
+    }
+
+    /**
+     * Get the entities of a domain, sorted by friendly name
+     *
+     * @return unmodifiable list, empty if the domain has no entities
+     */
+    public List<HomeAssistantEntity> getEntitiesForDomain(String domain) {
+        List<HomeAssistantEntity> domainEntities = byDomain.get(domain);
+        return domainEntities != null ? domainEntities : Collections.<HomeAssistantEntity>emptyList();
+    }
+
+    public int getCount(String domain) {
+        List<HomeAssistantEntity> domainEntities = byDomain.get(domain);
+        return domainEntities != null ? domainEntities.size() : 0;
+    }
+
+    /**
+     * Collects entities as they are decoded. Also usable directly as the decoder's visitor.
+     */
+    public static final class Builder implements HomeAssistantJsonDecoder.EntityVisitor {
+        private final List<HomeAssistantEntity> entities = new ArrayList<>();
+        private final Map<String, HomeAssistantEntity> byId = new HashMap<>();
+        private final Map<String, List<HomeAssistantEntity>> byDomain = new HashMap<>();
+
+        public Builder add(HomeAssistantEntity entity) {
+            if (byId.containsKey(entity.getEntityId())) {
+                // entity_id is unique in Home Assistant, keep the first copy if it is not
+                return this;
+            }
+            byId.put(entity.getEntityId(), entity);
+            entities.add(entity);
+
+            List<HomeAssistantEntity> domainEntities = byDomain.get(entity.getDomain());
+            if (domainEntities == null) {
+                domainEntities = new ArrayList<>();
+                byDomain.put(entity.getDomain(), domainEntities);
+            }
+            domainEntities.add(entity);
+            return this;
+        }
+
+        public Builder addAll(EntityCatalog catalog) {
+            for (HomeAssistantEntity entity : catalog.getEntities()) {
+                add(entity);
+            }
+            return this;
+        }
+
+        @Override
+        public void onEntity(HomeAssistantEntity entity) {
+            add(entity);
+        }
+
+        public EntityCatalog build() {
+            Map<String, List<HomeAssistantEntity>> sortedByDomain = new HashMap<>(byDomain.size() * 2);
+            for (Map.Entry<String, List<HomeAssistantEntity>> entry : byDomain.entrySet()) {
+                List<HomeAssistantEntity> domainEntities = new ArrayList<>(entry.getValue());
+                Collections.sort(domainEntities, BY_FRIENDLY_NAME);
+                sortedByDomain.put(entry.getKey(), Collections.unmodifiableList(domainEntities));
+            }
+            return new EntityCatalog(
+                    Collections.unmodifiableList(new ArrayList<>(entities)),
+                    Collections.unmodifiableMap(new HashMap<>(byId)),
+                    Collections.unmodifiableMap(sortedByDomain));
+        }
+    }
+}
\ No newline at end of file
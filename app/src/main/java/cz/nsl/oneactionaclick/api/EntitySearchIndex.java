@@ -0,0 +1,345 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory search index over entity_id and friendly name.
+ *
+ * Entities are stored grouped by domain in the same order as
+ * {@link EntityCatalog#getEntitiesForDomain}, so a domain is a contiguous range of
+ * positions. Queries shorter than three characters match word prefixes through a
+ * sorted token table; longer queries are answered from trigram posting lists and
+ * verified as substrings. Results are written into a caller-supplied buffer.
+ *
+ * The index is immutable once built, but {@link #search} reuses internal scratch
+ * state and must only be called from one thread (the main thread).
+ */
+public final class EntitySearchIndex {
+    private static final int MIN_TRIGRAM_QUERY = 3;
+
+    private static final ExecutorService BUILD_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    public interface BuildCallback {
+        /**
+         * Called on the main thread once the index is ready
+         */
+        void onIndexBuilt(EntitySearchIndex index);
+    }
+
+    private final EntityCatalog catalog;
+    private final HomeAssistantEntity[] entities;
+    private final String[] keys;
+
+    // Domain ranges: entities of domainNames[i] are at [domainStarts[i], domainStarts[i + 1])
+    private final String[] domainNames;
+    private final int[] domainStarts;
+
+    // Word tokens sorted alphabetically, with the position of the entity they belong to
+    private final String[] tokens;
+    private final int[] tokenOwners;
+
+    // Trigram code -> ascending entity positions, keys sorted for binary search
+    private final int[] trigramCodes;
+    private final int[][] trigramPostings;
+
+    // Scratch space for de-duplicating prefix matches without clearing an array per query
+    private final int[] seenStamps;
+    private int stamp;
+
+    private EntitySearchIndex(EntityCatalog catalog) {
+        this.catalog = catalog;
+
+        List<String> sortedDomains = new ArrayList<>(catalog.getDomains());
+        Collections.sort(sortedDomains);
+        domainNames = sortedDomains.toArray(new String[0]);
+        domainStarts = new int[domainNames.length + 1];
+
+        entities = new HomeAssistantEntity[catalog.size()];
+        keys = new String[entities.length];
+        int position = 0;
+        for (int d = 0; d < domainNames.length; d++) {
+            domainStarts[d] = position;
+            for (HomeAssistantEntity entity : catalog.getEntitiesForDomain(domainNames[d])) {
+                entities[position] = entity;
+                keys[position] = normalize(entity.getFriendlyName() + " " + entity.getEntityId());
+                position++;
+            }
+        }
+        domainStarts[domainNames.length] = position;
+
+        // Word tokens for prefix matching
+        final List<String> tokenList = new ArrayList<>();
+        final List<Integer> ownerList = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            int start = -1;
+            for (int c = 0; c <= key.length(); c++) {
+                boolean wordChar = c < key.length() && Character.isLetterOrDigit(key.charAt(c));
+                if (wordChar && start < 0) {
+                    start = c;
+                } else if (!wordChar && start >= 0) {
+                    tokenList.add(key.substring(start, c));
+                    ownerList.add(i);
+                    start = -1;
+                }
+            }
+        }
+        Integer[] order = new Integer[tokenList.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return tokenList.get(a).compareTo(tokenList.get(b));
+            }
+        });
+        tokens = new String[order.length];
+        tokenOwners = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            tokens[i] = tokenList.get(order[i]);
+            tokenOwners[i] = ownerList.get(order[i]);
+        }
+
+        // Trigram posting lists: count first, then fill, so every list is exactly sized.
+        // Entities are visited in ascending order, which keeps each list sorted.
+        Map<Integer, int[]> counts = new HashMap<>(); // code -> {count, last entity}
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            for (int c = 0; c + MIN_TRIGRAM_QUERY <= key.length(); c++) {
+                int code = trigram(key, c);
+                int[] entry = counts.get(code);
+                if (entry == null) {
+                    counts.put(code, new int[]{1, i});
+                } else if (entry[1] != i) {
+                    entry[0]++;
+                    entry[1] = i;
+                }
+            }
+        }
+        trigramCodes = new int[counts.size()];
+        int t = 0;
+        for (Integer code : counts.keySet()) {
+            trigramCodes[t++] = code;
+        }
+        Arrays.sort(trigramCodes);
+        trigramPostings = new int[trigramCodes.length][];
+        int[] fill = new int[trigramCodes.length];
+        int[] last = new int[trigramCodes.length];
+        for (int i = 0; i < trigramCodes.length; i++) {
+            trigramPostings[i] = new int[counts.get(trigramCodes[i])[0]];
+            last[i] = -1;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            for (int c = 0; c + MIN_TRIGRAM_QUERY <= key.length(); c++) {
+                int slot = Arrays.binarySearch(trigramCodes, trigram(key, c));
+                if (last[slot] != i) {
+                    last[slot] = i;
+                    trigramPostings[slot][fill[slot]++] = i;
+                }
+            }
+        }
+
+        seenStamps = new int[entities.length];
+    }
+
+    /**
+     * Build an index synchronously. Prefer {@link #buildAsync} from the UI.
+     */
+    public static EntitySearchIndex build(EntityCatalog catalog) {
+        return new EntitySearchIndex(catalog);
+    }
+
+    /**
+     * Build an index on a background thread and deliver it on the main thread
+     */
+    public static void buildAsync(final EntityCatalog catalog, final BuildCallback callback) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        BUILD_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final EntitySearchIndex index = new EntitySearchIndex(catalog);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onIndexBuilt(index);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Get the catalog this index was built from
+     */
+    public EntityCatalog getCatalog() {
+        return catalog;
+    }
+
+    public int size() {
+        return entities.length;
+    }
+
+    public HomeAssistantEntity getEntity(int position) {
+        return entities[position];
+    }
+
+    /**
+     * Allocate a result buffer large enough for any query against this index
+     */
+    public int[] newResultBuffer() {
+        return new int[entities.length];
+    }
+
+    /**
+     * Search the entities of one domain.
+     * Every whitespace-separated term must match: terms shorter than three characters
+     * as a word prefix, longer terms as a substring of the friendly name or entity_id.
+     *
+     * @param query  text typed by the user
+     * @param domain domain to search in
+     * @param out    buffer from {@link #newResultBuffer()}, receives entity positions
+     *               in friendly name order
+     * @return number of positions written to out
+     */
+    public int search(String query, String domain, int[] out) {
+        int d = Arrays.binarySearch(domainNames, domain);
+        if (d < 0) {
+            return 0;
+        }
+        int from = domainStarts[d];
+        int to = domainStarts[d + 1];
+
+        String[] terms = normalize(query).trim().split("\\s+");
+        String longest = "";
+        for (String term : terms) {
+            if (term.length() > longest.length()) {
+                longest = term;
+            }
+        }
+
+        int count = 0;
+        if (longest.isEmpty()) {
+            for (int i = from; i < to; i++) {
+                out[count++] = i;
+            }
+            return count;
+        }
+
+        if (longest.length() >= MIN_TRIGRAM_QUERY) {
+            // Walk the shortest posting list among the term's trigrams
+            int[] candidates = null;
+            for (int c = 0; c + MIN_TRIGRAM_QUERY <= longest.length(); c++) {
+                int slot = Arrays.binarySearch(trigramCodes, trigram(longest, c));
+                if (slot < 0) {
+                    return 0;
+                }
+                if (candidates == null || trigramPostings[slot].length < candidates.length) {
+                    candidates = trigramPostings[slot];
+                }
+            }
+            int start = lowerBound(candidates, from);
+            for (int k = start; k < candidates.length && candidates[k] < to; k++) {
+                if (matchesAll(keys[candidates[k]], terms)) {
+                    out[count++] = candidates[k];
+                }
+            }
+            return count;
+        }
+
+        // Short term: scan the tokens that start with it
+        if (++stamp == 0) {
+            Arrays.fill(seenStamps, 0);
+            stamp = 1;
+        }
+        for (int k = lowerBound(tokens, longest); k < tokens.length && tokens[k].startsWith(longest); k++) {
+            int owner = tokenOwners[k];
+            if (owner >= from && owner < to && seenStamps[owner] != stamp) {
+                seenStamps[owner] = stamp;
+                if (matchesAll(keys[owner], terms)) {
+                    out[count++] = owner;
+                }
+            }
+        }
+        Arrays.sort(out, 0, count);
+        return count;
+    }
+
+    private static boolean matchesAll(String key, String[] terms) {
+        for (String term : terms) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (term.length() < MIN_TRIGRAM_QUERY ? !containsWordPrefix(key, term) : !key.contains(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsWordPrefix(String key, String term) {
+        int i = key.indexOf(term);
+        while (i >= 0) {
+            if (i == 0 || !Character.isLetterOrDigit(key.charAt(i - 1))) {
+                return true;
+            }
+            i = key.indexOf(term, i + 1);
+        }
+        return false;
+    }
+
+    private static int lowerBound(int[] values, int target) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int lowerBound(String[] values, String target) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid].compareTo(target) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Pack three characters into an int. Characters outside the low 10 bits fold
+     * together, which only adds candidates that the substring check then rejects.
+     */
+    private static int trigram(String s, int offset) {
+        return (s.charAt(offset) & 0x3FF) << 20
+                | (s.charAt(offset + 1) & 0x3FF) << 10
+                | (s.charAt(offset + 2) & 0x3FF);
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+}
\ No newline at end of file
@@ -7,13 +7,21 @@ import android.util.Log;
 
 import cz.nsl.oneactionaclick.SettingsActivity;
 
+import org.json.JSONObject;
+
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
@@ -21,18 +29,43 @@ import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
+import okio.Okio;
 
 public class HomeAssistantApiClient {
     private static final String TAG = "HomeAssistantApiClient";
     
     private Context context;
     private OkHttpClient client;
+    // Same client, for requests to an internal URL that may not answer on this network
+    private OkHttpClient unconfirmedClient;
     private Handler mainHandler;
     private OAuth2Manager oauth2Manager;
+    private ConnectionProfile connectionProfile;
     
+    // Long enough for any server on the local network, short enough to fail over before the user gives up
+    private static final long UNCONFIRMED_CONNECT_TIMEOUT_MS = 2000;
+
     // Request logging
-    private static List<ApiRequestLog> requestLogs = new ArrayList<>();
-    private static final int MAX_LOGS = 50;
+    private static final int MAX_LOGS = 64;
+    private static final RequestLogBuffer requestLogs = new RequestLogBuffer(MAX_LOGS);
+
+    // Persistent copy of the log, null until openRequestJournal() succeeds
+    private static volatile RequestJournal requestJournal;
+
+    // Entries logged before the journal was mapped, oldest first. Guarded by the class lock.
+    private static final List<ApiRequestLog> unjournaledLogs = new ArrayList<>();
+    private static boolean journalOpening = false;
+
+    // Maps and reads the journal, so the first client of a process never waits for the disk
+    private static final ExecutorService journalOpener = Executors.newSingleThreadExecutor();
+
+    // Fetches currently on the network, keyed by inFlightKey(), with the callbacks waiting for them.
+    // Identical concurrent fetches share one call and one parse.
+    private static final Map<String, List<Object>> inFlightCalls = new HashMap<>();
+
+    // Runs retries after their backoff; off the main thread, as rebuilding a request may refresh the OAuth token
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
 
     public interface ServiceCallback {
         void onServicesLoaded(Map<String, List<HomeAssistantService>> services);
@@ -41,11 +74,24 @@ public class HomeAssistantApiClient {
             // Default implementation falls back to the simple error method
             onError(error);
         }
+        /**
+         * Called instead of onDetailedError when the server could not be reached or
+         * answered with a server error, i.e. the same request may succeed later
+         */
+        default void onTransientError(String error, String detailedInfo) {
+            onDetailedError(error, detailedInfo);
+        }
+        /**
+         * Called instead of onTransientError when the request provably never reached the
+         * server (DNS or connect failure), so sending it again cannot run it twice
+         */
+        default void onNotSent(String error, String detailedInfo) {
+            onTransientError(error, detailedInfo);
+        }
     }
 
     public interface EntityCallback {
-        void onEntitiesLoaded(List<HomeAssistantEntity> entities);
-        void onEntitiesByDomainLoaded(Map<String, List<HomeAssistantEntity>> entities);
+        void onEntitiesLoaded(EntityCatalog catalog);
         void onError(String error);
         default void onDetailedError(String error, String detailedInfo) {
             // Default implementation falls back to the simple error method
@@ -53,6 +99,14 @@ public class HomeAssistantApiClient {
         }
     }
 
+    public interface RequestLogListener {
+        /**
+         * Called on the main thread, at most once per frame, with the entries that were
+         * added or updated since the last call, in the order they were first changed
+         */
+        void onRequestLogChanged(List<ApiRequestLog> changed);
+    }
+
     public enum AuthMethod {
         LONG_LIVED_TOKEN,
         OAUTH2
@@ -62,16 +116,34 @@ public class HomeAssistantApiClient {
      * Class to store API request logs
      */
     public static class ApiRequestLog {
-        private String timestamp;
-        private String method;
-        private String url;
-        private int statusCode;
-        private String responseSize;
-        private long durationMs;
-        private String errorMessage;
+        // Formatting happens when an entry is displayed, not for every request
+        private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+            }
+        };
+
+        private final long timestampMs;
+        private final String method;
+        private final String url;
+        // Filled in from callback threads while the UI may be reading
+        private volatile int statusCode;
+        private volatile String responseSize;
+        private volatile long durationMs;
+        private volatile String errorMessage;
+
+        // Position in the ring buffer, assigned when the entry is added
+        long sequence = -1;
+        // Record in the request journal, -1 if not journaled
+        long journalSequence = -1;
         
         public ApiRequestLog(String method, String url) {
-            this.timestamp = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date());
+            this(method, url, System.currentTimeMillis());
+        }
+
+        ApiRequestLog(String method, String url, long timestampMs) {
+            this.timestampMs = timestampMs;
             this.method = method;
             this.url = url;
             this.statusCode = 0;
@@ -84,15 +156,27 @@ public class HomeAssistantApiClient {
             this.statusCode = statusCode;
             this.responseSize = responseSize;
             this.durationMs = durationMs;
+            writeToJournal(this);
+            if (sequence >= 0) {
+                RequestLogDispatcher.changed(this);
+            }
         }
         
         public void setError(String errorMessage, long durationMs) {
-            this.errorMessage = errorMessage;
+            this.errorMessage = errorMessage != null ? errorMessage : "";
             this.durationMs = durationMs;
+            writeToJournal(this);
+            if (sequence >= 0) {
+                RequestLogDispatcher.changed(this);
+            }
         }
         
         public String getTimestamp() {
-            return timestamp;
+            return TIME_FORMAT.get().format(new Date(timestampMs));
+        }
+
+        public long getTimestampMillis() {
+            return timestampMs;
         }
         
         public String getMethod() {
@@ -130,7 +214,7 @@ public class HomeAssistantApiClient {
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
-            sb.append(timestamp).append(" | ");
+            sb.append(getTimestamp()).append(" | ");
             sb.append(method).append(" ");
             sb.append(url);
             
@@ -158,41 +242,366 @@ public class HomeAssistantApiClient {
      * Get all recorded API request logs
      */
     public static List<ApiRequestLog> getRequestLogs() {
-        return new ArrayList<>(requestLogs);
+        return requestLogs.snapshot();
     }
     
+    /**
+     * Map the request journal and show the entries of previous processes in the log.
+     * Only does work on the first call in a process, and does it on a background thread;
+     * entries logged until the journal is ready are written to it once it is.
+     */
+    public static void openRequestJournal(Context context) {
+        if (requestJournal != null) {
+            return;
+        }
+        synchronized (HomeAssistantApiClient.class) {
+            if (requestJournal != null || journalOpening) {
+                return;
+            }
+            journalOpening = true;
+        }
+
+        final File file = new File(context.getApplicationContext().getFilesDir(), RequestJournal.JOURNAL_FILE);
+        journalOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                RequestJournal journal;
+                List<ApiRequestLog> restored;
+                try {
+                    journal = RequestJournal.open(file);
+                    restored = journal.readRecent(MAX_LOGS);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error opening request journal, logging in memory only", e);
+                    synchronized (HomeAssistantApiClient.class) {
+                        unjournaledLogs.clear();
+                        journalOpening = false;
+                    }
+                    return;
+                }
+
+                synchronized (HomeAssistantApiClient.class) {
+                    // Previous processes' entries go behind the ones this process logged meanwhile,
+                    // so the ring is rebuilt oldest first
+                    requestLogs.clear();
+                    int keep = Math.max(0, MAX_LOGS - unjournaledLogs.size());
+                    for (int i = Math.min(keep, restored.size()) - 1; i >= 0; i--) {
+                        requestLogs.add(restored.get(i));
+                    }
+                    for (ApiRequestLog log : unjournaledLogs) {
+                        requestLogs.add(log);
+                        journal.append(log);
+                    }
+                    unjournaledLogs.clear();
+                    journalOpening = false;
+                    requestJournal = journal;
+                }
+            }
+        });
+    }
+
+    /**
+     * Get up to max of the most recent requests from the journal, including those of
+     * previous processes, most recent first. Falls back to the in-memory log.
+     */
+    public static List<ApiRequestLog> getJournaledRequestLogs(int max) {
+        RequestJournal journal = requestJournal;
+        return journal != null ? journal.readRecent(max) : getRequestLogs();
+    }
+
+    private static void writeToJournal(ApiRequestLog log) {
+        RequestJournal journal = requestJournal;
+        if (journal != null && log.journalSequence >= 0) {
+            journal.write(log);
+        }
+    }
+
+    /**
+     * Get notified about new and updated log entries instead of polling getRequestLogs()
+     */
+    public static void addRequestLogListener(RequestLogListener listener) {
+        RequestLogDispatcher.addListener(listener);
+    }
+
+    public static void removeRequestLogListener(RequestLogListener listener) {
+        RequestLogDispatcher.removeListener(listener);
+    }
+
     /**
      * Clear all recorded API request logs
      */
     public static void clearRequestLogs() {
+        synchronized (HomeAssistantApiClient.class) {
+            unjournaledLogs.clear();
+        }
         requestLogs.clear();
     }
     
+    /**
+     * Add a log entry for something that is not an HTTP request, such as a cache or queue event
+     */
+    public static void logEvent(String type, String description, long durationMs) {
+        logRequest(type, description).setResponse(0, "", durationMs);
+    }
+    
     /**
      * Add a log entry for a new API request
      */
-    private static ApiRequestLog logRequest(String method, String url) {
+    static ApiRequestLog logRequest(String method, String url) {
         ApiRequestLog log = new ApiRequestLog(method, url);
-        
-        // Add to the beginning of the list to show most recent first
-        requestLogs.add(0, log);
-        
-        // Trim the log if it exceeds the maximum size
-        if (requestLogs.size() > MAX_LOGS) {
-            requestLogs.remove(requestLogs.size() - 1);
+
+        RequestJournal journal = requestJournal;
+        if (journal != null) {
+            // Overwrites the oldest entry once the ring is full
+            requestLogs.add(log);
+            journal.append(log);
+        } else {
+            // Only until the journal is open; the opener rebuilds the ring under the same lock
+            synchronized (HomeAssistantApiClient.class) {
+                requestLogs.add(log);
+                journal = requestJournal;
+                if (journal != null) {
+                    journal.append(log);
+                } else if (journalOpening) {
+                    unjournaledLogs.add(log);
+                    if (unjournaledLogs.size() > MAX_LOGS) {
+                        unjournaledLogs.remove(0);
+                    }
+                }
+            }
         }
+        RequestLogDispatcher.changed(log);
         
         return log;
     }
 
+    /**
+     * Key identifying a fetch: endpoint, base URL and the credentials it is made with
+     */
+    private String inFlightKey(String endpoint) {
+        String credentials;
+        if (getAuthMethod() == AuthMethod.OAUTH2) {
+            credentials = "oauth:" + SettingsActivity.getOAuthClientId(context);
+        } else {
+            String token = SettingsActivity.getHomeAssistantToken(context);
+            credentials = "token:" + Integer.toHexString(token != null ? token.hashCode() : 0);
+        }
+        return endpoint + " " + SettingsActivity.getHomeAssistantUrl(context) + " " + credentials;
+    }
+
+    /**
+     * Register a callback for a fetch
+     *
+     * @return true if the caller should make the network call, false if an identical
+     *         call is already running and the callback will receive its result
+     */
+    private static boolean joinInFlight(String key, Object callback) {
+        synchronized (inFlightCalls) {
+            List<Object> waiting = inFlightCalls.get(key);
+            if (waiting != null) {
+                waiting.add(callback);
+                // Drop the credentials part of the key before it is shown anywhere
+                String description = key.substring(0, key.lastIndexOf(' '));
+                Log.d(TAG, "Joining in-flight fetch: " + description);
+                ApiRequestLog log = logRequest("JOIN", description);
+                log.setResponse(0, "shared", 0);
+                return false;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            inFlightCalls.put(key, waiting);
+            return true;
+        }
+    }
+
+    /**
+     * Remove a finished fetch and get every callback that was waiting for it
+     */
+    private static List<Object> completeInFlight(String key) {
+        synchronized (inFlightCalls) {
+            List<Object> waiting = inFlightCalls.remove(key);
+            return waiting != null ? waiting : Collections.emptyList();
+        }
+    }
+
+    /**
+     * Delivers one entity fetch result to every callback that joined it
+     */
+    private static class FanOutEntityCallback implements EntityCallback {
+        private final String key;
+
+        FanOutEntityCallback(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onEntitiesLoaded(EntityCatalog catalog) {
+            for (Object waiting : completeInFlight(key)) {
+                ((EntityCallback) waiting).onEntitiesLoaded(catalog);
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            for (Object waiting : completeInFlight(key)) {
+                ((EntityCallback) waiting).onError(error);
+            }
+        }
+
+        @Override
+        public void onDetailedError(String error, String detailedInfo) {
+            for (Object waiting : completeInFlight(key)) {
+                ((EntityCallback) waiting).onDetailedError(error, detailedInfo);
+            }
+        }
+    }
+
+    /**
+     * Receives the outcome of the last attempt of a {@link RetryingCall}, together with
+     * that attempt's log entry and start time
+     */
+    private interface AttemptCallback {
+        void onFailure(IOException e, ApiRequestLog requestLog, long startTime);
+        void onResponse(Response response, ApiRequestLog requestLog, long startTime) throws IOException;
+    }
+
+    /**
+     * Runs a request under a {@link RetryPolicy}. Every attempt is logged as its own entry;
+     * failures that get retried end there, only the final outcome reaches the callback.
+     * A request that cannot connect is first sent once to the other URL of the
+     * {@link ConnectionProfile}, right away and without counting as an attempt.
+     */
+    private class RetryingCall implements Callback {
+        private final String method;
+        private final String logUrl;
+        private final RetryPolicy policy;
+        private final AttemptCallback callback;
+
+        // Replaced on every attempt, which happen one after another
+        private Request request;
+        private ApiRequestLog requestLog;
+        private long startTime;
+        private int attempt = 1;
+        private boolean failedOver = false;
+
+        RetryingCall(Request request, String method, String logUrl, ApiRequestLog requestLog, long startTime,
+                     RetryPolicy policy, AttemptCallback callback) {
+            this.request = request;
+            this.method = method;
+            this.logUrl = logUrl;
+            this.requestLog = requestLog;
+            this.startTime = startTime;
+            this.policy = policy;
+            this.callback = callback;
+        }
+
+        void start() {
+            if (getAuthMethod() != AuthMethod.OAUTH2) {
+                send();
+                return;
+            }
+
+            // Getting the token may take a refresh, which runs on the token manager's thread
+            oauth2Manager.getAccessToken(new OAuth2Manager.TokenCallback() {
+                @Override
+                public void onToken(String token) {
+                    request = request.newBuilder().header("Authorization", "Bearer " + token).build();
+                    send();
+                }
+
+                @Override
+                public void onError(String error) {
+                    callback.onFailure(new TokenUnavailableException(error), requestLog, startTime);
+                }
+            });
+        }
+
+        private void send() {
+            boolean unconfirmed = connectionProfile.isUnconfirmed(request.url().toString());
+            (unconfirmed ? unconfirmedClient : client).newCall(request).enqueue(this);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            RetryPolicy.FailureKind kind = RetryPolicy.classify(e);
+            if (kind == RetryPolicy.FailureKind.DNS || kind == RetryPolicy.FailureKind.CONNECT_TIMEOUT) {
+                if (failOver(e)) {
+                    return;
+                }
+            }
+            if (canRetry(kind)) {
+                requestLog.setError(e.getMessage(), System.currentTimeMillis() - startTime);
+                scheduleRetry(kind);
+                return;
+            }
+            callback.onFailure(e, requestLog, startTime);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            connectionProfile.reportReachable(request.url().toString());
+            if (!response.isSuccessful()) {
+                RetryPolicy.FailureKind kind = RetryPolicy.classify(response.code());
+                if (canRetry(kind)) {
+                    response.close();
+                    requestLog.setResponse(response.code(), "", System.currentTimeMillis() - startTime);
+                    scheduleRetry(kind);
+                    return;
+                }
+            }
+            callback.onResponse(response, requestLog, startTime);
+        }
+
+        private boolean failOver(IOException e) {
+            if (failedOver) {
+                return false;
+            }
+            String alternative = connectionProfile.failOver(request.url().toString());
+            if (alternative == null) {
+                return false;
+            }
+            failedOver = true;
+            requestLog.setError(e.getMessage(), System.currentTimeMillis() - startTime);
+            Log.w(TAG, method + " " + logUrl + " could not connect, trying " + alternative);
+
+            request = request.newBuilder().url(alternative).build();
+            requestLog = logRequest(method, alternative + " (other URL)");
+            startTime = System.currentTimeMillis();
+            start();
+            return true;
+        }
+
+        private boolean canRetry(RetryPolicy.FailureKind kind) {
+            return policy.shouldRetry(kind, attempt);
+        }
+
+        private void scheduleRetry(final RetryPolicy.FailureKind kind) {
+            long delay = policy.backoffMs(attempt);
+            Log.w(TAG, method + " " + logUrl + " failed (" + kind + "), retrying in " + delay + "ms");
+
+            retryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt++;
+                    requestLog = logRequest(method, logUrl + " (attempt " + attempt + "/" + policy.getMaxAttempts() + ")");
+                    startTime = System.currentTimeMillis();
+
+                    // An OAuth token is fetched again, it may have been refreshed meanwhile
+                    start();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
     public HomeAssistantApiClient(Context context) {
         this.context = context;
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(30, TimeUnit.SECONDS)
+        this.client = SharedHttpClient.get(context);
+        this.unconfirmedClient = client.newBuilder()
+                .connectTimeout(UNCONFIRMED_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
                 .build();
         this.mainHandler = new Handler(Looper.getMainLooper());
-        this.oauth2Manager = new OAuth2Manager(context);
+        this.oauth2Manager = OAuth2Manager.getInstance(context);
+        this.connectionProfile = ConnectionProfile.getInstance(context);
+        openRequestJournal(context);
     }
 
     /**
@@ -203,23 +612,15 @@ public class HomeAssistantApiClient {
     }
 
     /**
-     * Add authentication headers to a request based on the current auth method
+     * Add authentication headers to a request based on the current auth method.
+     * OAuth2 tokens are added by {@link RetryingCall} when it starts each attempt,
+     * so getting or refreshing one never blocks the calling thread.
      */
     private Request.Builder addAuthHeaders(Request.Builder builder) throws IOException {
         AuthMethod authMethod = getAuthMethod();
         
         if (authMethod == AuthMethod.OAUTH2) {
-            // Ensure token is valid before making the request
-            if (!oauth2Manager.refreshTokenIfNeeded()) {
-                throw new IOException("Failed to refresh OAuth2 token");
-            }
-            
-            String accessToken = oauth2Manager.getAccessToken();
-            if (accessToken == null || accessToken.isEmpty()) {
-                throw new IOException("No valid OAuth2 token available");
-            }
-            
-            return builder.addHeader("Authorization", "Bearer " + accessToken);
+            return builder;
         } else {
             // Use long-lived token
             String token = SettingsActivity.getHomeAssistantToken(context);
@@ -234,8 +635,38 @@ public class HomeAssistantApiClient {
     /**
      * Fetch all available services from Home Assistant
      */
-    public void fetchServices(final ServiceCallback callback) {
-        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+    public void fetchServices(ServiceCallback callback) {
+        final String key = inFlightKey("/api/services");
+        if (!joinInFlight(key, callback)) {
+            return;
+        }
+
+        fetchServicesFromNetwork(new ServiceCallback() {
+            @Override
+            public void onServicesLoaded(Map<String, List<HomeAssistantService>> services) {
+                for (Object waiting : completeInFlight(key)) {
+                    ((ServiceCallback) waiting).onServicesLoaded(services);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                for (Object waiting : completeInFlight(key)) {
+                    ((ServiceCallback) waiting).onError(error);
+                }
+            }
+
+            @Override
+            public void onDetailedError(String error, String detailedInfo) {
+                for (Object waiting : completeInFlight(key)) {
+                    ((ServiceCallback) waiting).onDetailedError(error, detailedInfo);
+                }
+            }
+        });
+    }
+
+    private void fetchServicesFromNetwork(final ServiceCallback callback) {
+        String baseUrl = connectionProfile.getBaseUrl();
         String url = baseUrl + "/api/services";
         
         ApiRequestLog requestLog = logRequest("GET", url);
@@ -249,9 +680,9 @@ public class HomeAssistantApiClient {
             
             Log.d(TAG, "Fetching services from: " + url);
             
-            client.newCall(request).enqueue(new Callback() {
+            new RetryingCall(request, "GET", url, requestLog, startTime, RetryPolicy.forRead(), new AttemptCallback() {
                 @Override
-                public void onFailure(Call call, IOException e) {
+                public void onFailure(IOException e, ApiRequestLog requestLog, long startTime) {
                     final String errorMessage = e.getMessage();
                     Log.e(TAG, "Error fetching services", e);
                     
@@ -286,7 +717,7 @@ public class HomeAssistantApiClient {
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) throws IOException {
+                public void onResponse(Response response, ApiRequestLog requestLog, long startTime) throws IOException {
                     long duration = System.currentTimeMillis() - startTime;
                     
                     if (!response.isSuccessful()) {
@@ -330,11 +761,17 @@ public class HomeAssistantApiClient {
                     }
 
                     try {
-                        final String responseBody = response.body().string();
-                        final Map<String, List<HomeAssistantService>> services =
-                                HomeAssistantService.parseServices(responseBody);
+                        // Decode straight from the response stream
+                        HomeAssistantJsonDecoder.CountingSource counter =
+                                new HomeAssistantJsonDecoder.CountingSource(response.body().source());
+                        final Map<String, List<HomeAssistantService>> services;
+                        try (BufferedSource source = Okio.buffer(counter)) {
+                            services = HomeAssistantJsonDecoder.decodeServices(source);
+                        }
+                        Log.d(TAG, "Found " + services.size() + " service domains");
 
-                        requestLog.setResponse(response.code(), responseBody.length() + " bytes", duration);
+                        requestLog.setResponse(response.code(), counter.getBytesRead() + " bytes",
+                                System.currentTimeMillis() - startTime);
 
                         mainHandler.post(new Runnable() {
                             @Override
@@ -359,7 +796,7 @@ public class HomeAssistantApiClient {
                         });
                     }
                 }
-            });
+            }).start();
         } catch (IOException e) {
             Log.e(TAG, "Error preparing request", e);
             final String errorMessage = e.getMessage();
@@ -390,8 +827,17 @@ public class HomeAssistantApiClient {
     /**
      * Fetch all entities from Home Assistant
      */
-    public void fetchEntities(final EntityCallback callback) {
-        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+    public void fetchEntities(EntityCallback callback) {
+        final String key = inFlightKey("/api/states");
+        if (!joinInFlight(key, callback)) {
+            return;
+        }
+
+        fetchEntitiesFromNetwork(new FanOutEntityCallback(key));
+    }
+
+    private void fetchEntitiesFromNetwork(final EntityCallback callback) {
+        String baseUrl = connectionProfile.getBaseUrl();
         String url = baseUrl + "/api/states";
 
         ApiRequestLog requestLog = logRequest("GET", url);
@@ -405,9 +851,9 @@ public class HomeAssistantApiClient {
             
             Log.d(TAG, "Fetching entities from: " + url);
             
-            client.newCall(request).enqueue(new Callback() {
+            new RetryingCall(request, "GET", url, requestLog, startTime, RetryPolicy.forRead(), new AttemptCallback() {
                 @Override
-                public void onFailure(Call call, IOException e) {
+                public void onFailure(IOException e, ApiRequestLog requestLog, long startTime) {
                     final String errorMessage = e.getMessage();
                     Log.e(TAG, "Error fetching entities", e);
                     
@@ -442,7 +888,7 @@ public class HomeAssistantApiClient {
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) throws IOException {
+                public void onResponse(Response response, ApiRequestLog requestLog, long startTime) throws IOException {
                     long duration = System.currentTimeMillis() - startTime;
                     
                     if (!response.isSuccessful()) {
@@ -486,19 +932,22 @@ public class HomeAssistantApiClient {
                     }
 
                     try {
-                        final String responseBody = response.body().string();
-                        final List<HomeAssistantEntity> entities =
-                                HomeAssistantEntity.parseEntitiesList(responseBody);
-                        final Map<String, List<HomeAssistantEntity>> entitiesByDomain =
-                                HomeAssistantEntity.groupByDomain(entities);
+                        // Decode straight from the response stream, indexing entities as they arrive
+                        HomeAssistantJsonDecoder.CountingSource counter =
+                                new HomeAssistantJsonDecoder.CountingSource(response.body().source());
+                        EntityCatalog.Builder builder = new EntityCatalog.Builder();
+                        try (BufferedSource source = Okio.buffer(counter)) {
+                            HomeAssistantJsonDecoder.decodeEntities(source, builder);
+                        }
+                        final EntityCatalog catalog = builder.build();
 
-                        requestLog.setResponse(response.code(), responseBody.length() + " bytes", duration);
+                        requestLog.setResponse(response.code(), counter.getBytesRead() + " bytes",
+                                System.currentTimeMillis() - startTime);
 
                         mainHandler.post(new Runnable() {
                             @Override
                             public void run() {
-                                callback.onEntitiesLoaded(entities);
-                                callback.onEntitiesByDomainLoaded(entitiesByDomain);
+                                callback.onEntitiesLoaded(catalog);
                             }
                         });
                     } catch (Exception e) {
@@ -518,7 +967,7 @@ public class HomeAssistantApiClient {
                         });
                     }
                 }
-            });
+            }).start();
         } catch (IOException e) {
             Log.e(TAG, "Error preparing request", e);
             final String errorMessage = e.getMessage();
@@ -546,11 +995,172 @@ public class HomeAssistantApiClient {
         }
     }
     
+    /**
+     * Fetch only the entities of one domain by rendering a template on the server.
+     * The result has the same shape as /api/states, but only carries entity_id, state
+     * and the friendly name, so it is a fraction of the size on large installations.
+     */
+    public void fetchEntitiesForDomain(String domain, EntityCallback callback) {
+        final String key = inFlightKey("/api/template " + domain);
+        if (!joinInFlight(key, callback)) {
+            return;
+        }
+
+        fetchEntitiesForDomainFromNetwork(domain, new FanOutEntityCallback(key));
+    }
+
+    private void fetchEntitiesForDomainFromNetwork(final String domain, final EntityCallback callback) {
+        String baseUrl = connectionProfile.getBaseUrl();
+        String url = baseUrl + "/api/template";
+
+        // The domain ends up inside the template, so only accept plain domain names
+        if (domain == null || !domain.matches("[a-z0-9_]+")) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError("Invalid domain: " + domain);
+                }
+            });
+            return;
+        }
+
+        ApiRequestLog requestLog = logRequest("POST", url + " (" + domain + ")");
+        long startTime = System.currentTimeMillis();
+        
+        try {
+            String template = "[{% for s in states." + domain + " %}"
+                    + "{{ {\"entity_id\": s.entity_id, \"state\": s.state, \"attributes\": {\"friendly_name\": s.name}} | to_json }}"
+                    + "{{ \",\" if not loop.last }}{% endfor %}]";
+            JSONObject jsonBody = new JSONObject();
+            jsonBody.put("template", template);
+
+            okhttp3.RequestBody body = okhttp3.RequestBody.create(
+                    okhttp3.MediaType.parse("application/json"), jsonBody.toString());
+
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(url)
+                    .post(body);
+            requestBuilder = addAuthHeaders(requestBuilder);
+            
+            final Request request = requestBuilder.build();
+            
+            Log.d(TAG, "Fetching entities of domain " + domain + " from: " + url);
+            
+            new RetryingCall(request, "POST", url + " (" + domain + ")", requestLog, startTime, RetryPolicy.forRead(), new AttemptCallback() {
+                @Override
+                public void onFailure(IOException e, ApiRequestLog requestLog, long startTime) {
+                    final String errorMessage = e.getMessage();
+                    Log.e(TAG, "Error fetching entities of domain " + domain, e);
+                    
+                    long duration = System.currentTimeMillis() - startTime;
+                    requestLog.setError(errorMessage, duration);
+                    
+                    final StringBuilder detailedInfo = new StringBuilder();
+                    detailedInfo.append("Request URL: ").append(url).append("\n\n");
+                    detailedInfo.append("Domain: ").append(domain).append("\n\n");
+                    detailedInfo.append("Error Type: ").append(e.getClass().getSimpleName()).append("\n\n");
+                    detailedInfo.append("Error Message: ").append(errorMessage).append("\n");
+                    
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onDetailedError(errorMessage, detailedInfo.toString());
+                        }
+                    });
+                }
+
+                @Override
+                public void onResponse(Response response, ApiRequestLog requestLog, long startTime) throws IOException {
+                    long duration = System.currentTimeMillis() - startTime;
+                    
+                    if (!response.isSuccessful()) {
+                        final String errorBody = response.body() != null ? response.body().string() : "Unknown error";
+                        final String errorMessage = "API Error: HTTP " + response.code();
+                        
+                        Log.e(TAG, "API error: " + response.code() + " - " + errorBody);
+                        
+                        requestLog.setResponse(response.code(), errorBody.length() + " bytes", duration);
+                        
+                        final StringBuilder detailedInfo = new StringBuilder();
+                        detailedInfo.append("Request URL: ").append(url).append("\n\n");
+                        detailedInfo.append("Status Code: ").append(response.code()).append("\n\n");
+                        detailedInfo.append("Response Body:\n").append(errorBody);
+                        if (response.code() == 401 || response.code() == 403) {
+                            detailedInfo.append("\n\nDiagnostic Suggestion: Template rendering was refused. "
+                                    + "Disable per-domain entity loading in settings to use the states API instead.");
+                        }
+                        
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onDetailedError(errorMessage, detailedInfo.toString());
+                            }
+                        });
+                        return;
+                    }
+
+                    try {
+                        HomeAssistantJsonDecoder.CountingSource counter =
+                                new HomeAssistantJsonDecoder.CountingSource(response.body().source());
+                        EntityCatalog.Builder builder = new EntityCatalog.Builder();
+                        try (BufferedSource source = Okio.buffer(counter)) {
+                            HomeAssistantJsonDecoder.decodeEntities(source, builder);
+                        }
+                        final EntityCatalog catalog = builder.build();
+
+                        requestLog.setResponse(response.code(), counter.getBytesRead() + " bytes",
+                                System.currentTimeMillis() - startTime);
+
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onEntitiesLoaded(catalog);
+                            }
+                        });
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error parsing template response", e);
+                        final String errorMessage = "Error parsing response: " + e.getMessage();
+                        requestLog.setError(errorMessage, duration);
+
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onError(errorMessage);
+                            }
+                        });
+                    }
+                }
+            }).start();
+        } catch (IOException | org.json.JSONException e) {
+            Log.e(TAG, "Error preparing request", e);
+            final String errorMessage = e.getMessage();
+            requestLog.setError(errorMessage, System.currentTimeMillis() - startTime);
+            
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(errorMessage);
+                }
+            });
+        }
+    }
+    
     /**
      * Call a service on an entity
      */
     public void callService(String domain, String service, String entityId, final ServiceCallback callback) {
-        String baseUrl = SettingsActivity.getHomeAssistantUrl(context);
+        String baseUrl = connectionProfile.getBaseUrl();
+
+        // Prefer the persistent WebSocket session when it is enabled and open
+        if (SettingsActivity.isWebSocketEnabled(context)) {
+            HomeAssistantWebSocket webSocket = HomeAssistantWebSocket.getInstance(context);
+            if (callServiceOverWebSocket(webSocket, baseUrl, domain, service, entityId, callback)) {
+                return;
+            }
+            // Not connected yet, open the session for the next call and use REST for this one
+            webSocket.connect();
+        }
+
         String url = baseUrl + "/api/services/" + domain + "/" + service;
         
         // Build JSON request body
@@ -573,9 +1183,9 @@ public class HomeAssistantApiClient {
             
             Log.d(TAG, "Calling service: " + domain + "." + service + " on entity: " + entityId);
             
-            client.newCall(request).enqueue(new Callback() {
+            new RetryingCall(request, "POST", url, requestLog, startTime, RetryPolicy.forServiceCall(service), new AttemptCallback() {
                 @Override
-                public void onFailure(Call call, IOException e) {
+                public void onFailure(IOException e, ApiRequestLog requestLog, long startTime) {
                     final String errorMessage = e.getMessage();
                     Log.e(TAG, "Error calling service", e);
                     
@@ -605,23 +1215,39 @@ public class HomeAssistantApiClient {
                         detailedInfo.append("\nDiagnostic Suggestion: Connection timed out. Home Assistant server might be down or unreachable.\n");
                     } else if (e instanceof javax.net.ssl.SSLHandshakeException) {
                         detailedInfo.append("\nDiagnostic Suggestion: SSL certificate error. You might be using a self-signed certificate or there's an SSL configuration issue.\n");
+                    } else if (e instanceof TokenUnavailableException) {
+                        detailedInfo.append("\nDiagnostic Suggestion: The call was not sent because no access token could be obtained. Check your connection or log in to Home Assistant again in the settings.\n");
                     }
                     
+                    // Only a failure before the request went out proves Home Assistant never saw
+                    // the call; after e.g. a read timeout it may well have run it
+                    RetryPolicy.FailureKind kind = RetryPolicy.classify(e);
+                    final boolean notSent = kind == RetryPolicy.FailureKind.DNS
+                            || kind == RetryPolicy.FailureKind.CONNECT_TIMEOUT
+                            || kind == RetryPolicy.FailureKind.NO_TOKEN;
+                    final boolean transientFailure = !(e instanceof javax.net.ssl.SSLHandshakeException);
                     mainHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            callback.onDetailedError(errorMessage, detailedInfo.toString());
+                            if (notSent) {
+                                callback.onNotSent(errorMessage, detailedInfo.toString());
+                            } else if (transientFailure) {
+                                callback.onTransientError(errorMessage, detailedInfo.toString());
+                            } else {
+                                callback.onDetailedError(errorMessage, detailedInfo.toString());
+                            }
                         }
                     });
                 }
 
                 @Override
-                public void onResponse(Call call, Response response) throws IOException {
+                public void onResponse(Response response, ApiRequestLog requestLog, long startTime) throws IOException {
                     long duration = System.currentTimeMillis() - startTime;
                     
                     if (!response.isSuccessful()) {
                         final String errorBody = response.body() != null ? response.body().string() : "Unknown error";
                         final String errorMessage = "API Error: HTTP " + response.code();
+                        final boolean serverError = response.code() >= 500;
                         
                         Log.e(TAG, "API error calling service: " + response.code() + " - " + errorBody);
                         
@@ -654,13 +1280,19 @@ public class HomeAssistantApiClient {
                         mainHandler.post(new Runnable() {
                             @Override
                             public void run() {
-                                callback.onDetailedError(errorMessage, detailedInfo.toString());
+                                if (serverError) {
+                                    callback.onTransientError(errorMessage, detailedInfo.toString());
+                                } else {
+                                    callback.onDetailedError(errorMessage, detailedInfo.toString());
+                                }
                             }
                         });
                         return;
                     }
 
                     requestLog.setResponse(response.code(), "Success", duration);
+                    LatencyStats.getInstance(context).record(
+                            LatencyStats.endpointKey("POST", "/api/services/" + domain + "/" + service), duration);
 
                     mainHandler.post(new Runnable() {
                         @Override
@@ -669,7 +1301,7 @@ public class HomeAssistantApiClient {
                         }
                     });
                 }
-            });
+            }).start();
         } catch (IOException e) {
             Log.e(TAG, "Error preparing request", e);
             final String errorMessage = e.getMessage();
@@ -700,4 +1332,80 @@ public class HomeAssistantApiClient {
             });
         }
     }
+
+    /**
+     * Send a service call through the WebSocket session
+     *
+     * @return false if the session is not ready and the caller should use REST instead
+     */
+    private boolean callServiceOverWebSocket(HomeAssistantWebSocket webSocket, String baseUrl,
+                                             String domain, String service, String entityId,
+                                             final ServiceCallback callback) {
+        if (!webSocket.isReady()) {
+            return false;
+        }
+
+        final ApiRequestLog requestLog = logRequest("WS", baseUrl + "/api/websocket call_service "
+                + domain + "." + service + " " + entityId);
+        final long startTime = System.currentTimeMillis();
+
+        Log.d(TAG, "Calling service over WebSocket: " + domain + "." + service + " on entity: " + entityId);
+
+        boolean sent = webSocket.callService(domain, service, entityId, new HomeAssistantWebSocket.ResultCallback() {
+            @Override
+            public void onSuccess(JSONObject result) {
+                long duration = System.currentTimeMillis() - startTime;
+                requestLog.setResponse(200, "Success", duration);
+                LatencyStats.getInstance(context).record(
+                        LatencyStats.endpointKey("WS", "call_service " + domain + "." + service), duration);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onServicesLoaded(null); // Success with no data to return
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                fail(error, false);
+            }
+
+            @Override
+            public void onResultLost(String error) {
+                // The connection dropped or the result timed out, the call may succeed later
+                fail(error, true);
+            }
+
+            private void fail(final String error, final boolean transientFailure) {
+                Log.e(TAG, "WebSocket service call failed: " + error);
+                requestLog.setError(error, System.currentTimeMillis() - startTime);
+
+                final StringBuilder detailedInfo = new StringBuilder();
+                detailedInfo.append("Transport: WebSocket\n\n");
+                detailedInfo.append("Error Message: ").append(error).append("\n\n");
+                detailedInfo.append("Service Call Details:\n");
+                detailedInfo.append("- Domain: ").append(domain).append("\n");
+                detailedInfo.append("- Service: ").append(service).append("\n");
+                detailedInfo.append("- Entity ID: ").append(entityId).append("\n");
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (transientFailure) {
+                            callback.onTransientError(error, detailedInfo.toString());
+                        } else {
+                            callback.onDetailedError(error, detailedInfo.toString());
+                        }
+                    }
+                });
+            }
+        });
+
+        if (!sent) {
+            // The session dropped between the readiness check and the send
+            requestLog.setError("WebSocket not ready, falling back to REST", System.currentTimeMillis() - startTime);
+        }
+        return sent;
+    }
 }
\ No newline at end of file
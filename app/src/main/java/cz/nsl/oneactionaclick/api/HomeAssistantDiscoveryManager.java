@@ -7,20 +7,53 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.net.InetAddress;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Manager class to handle discovery of Home Assistant instances on the local network
  * using Android's Network Service Discovery (NSD) API.
+ *
+ * Found services are resolved one at a time from a queue, with retries. Resolved
+ * instances are remembered for {@link #CACHE_TTL_MS}, so known servers can be listed
+ * right away while a new scan refreshes them.
+ *
+ * Every listed instance is probed for reachability and round trip time, and the list is
+ * kept sorted by {@link HomeAssistantInstance#RANKING}, so the first entry is the fastest
+ * server or address that answers.
  */
 public class HomeAssistantDiscoveryManager {
     private static final String TAG = "HADiscoveryManager";
     private static final String SERVICE_TYPE = "_home-assistant._tcp.";
     private static final int DISCOVERY_TIMEOUT_MS = 10000; // 10 seconds
 
+    // Resolve retries, the delay grows with each attempt
+    private static final int MAX_RESOLVE_ATTEMPTS = 3;
+    private static final long RESOLVE_RETRY_DELAY_MS = 250;
+
+    // Resolved instances not seen again for this long are forgotten
+    private static final long CACHE_TTL_MS = 24 * 60 * 60 * 1000L;
+    private static final String CACHE_PREFS_NAME = "cz.nsl.oneactionaclick.Discovery";
+    private static final String PREF_INSTANCES = "instances";
+
+    // Resolved instances by URL, shared by all managers. Main thread only.
+    private static final Map<String, CachedInstance> sCache = new LinkedHashMap<>();
+    private static boolean sCacheLoaded = false;
+
     private final Context mContext;
     private final NsdManager mNsdManager;
     private NsdManager.DiscoveryListener mDiscoveryListener;
@@ -29,31 +62,116 @@ public class HomeAssistantDiscoveryManager {
     private final Handler mHandler;
     private boolean mIsDiscovering = false;
 
+    // Services waiting to be resolved and whether one is being resolved. Main thread only.
+    private final ArrayDeque<PendingResolve> mResolveQueue = new ArrayDeque<>();
+    private boolean mResolving = false;
+
+    // URLs with a probe in flight. Main thread only.
+    private final Set<String> mProbing = new HashSet<>();
+    private final InstanceProber mProber;
+
+    private final Runnable mDiscoveryTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsDiscovering) {
+                stopDiscovery();
+                if (mListener != null) {
+                    mListener.onDiscoveryFinished(new ArrayList<>(mDiscoveredInstances));
+                }
+            }
+        }
+    };
+
     public HomeAssistantDiscoveryManager(Context context) {
         mContext = context.getApplicationContext();
         mNsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
         mDiscoveredInstances = new ArrayList<>();
         mHandler = new Handler(Looper.getMainLooper());
+        mProber = new InstanceProber(mContext);
     }
 
     public interface HomeAssistantDiscoveryListener {
         void onDiscoveryStarted();
-        void onInstanceFound(HomeAssistantInstance instance);
+        // Called whenever an instance is found, moves or has been probed, with the ranked list
+        void onInstancesChanged(List<HomeAssistantInstance> instances);
         void onDiscoveryFinished(List<HomeAssistantInstance> instances);
         void onDiscoveryFailed(String errorMessage);
     }
 
     public static class HomeAssistantInstance {
+        public enum Reachability {
+            UNKNOWN,
+            REACHABLE,
+            UNREACHABLE
+        }
+
+        /**
+         * Answering instances first, fastest first, then the ones not probed yet,
+         * then the ones that did not answer
+         */
+        public static final Comparator<HomeAssistantInstance> RANKING = new Comparator<HomeAssistantInstance>() {
+            @Override
+            public int compare(HomeAssistantInstance a, HomeAssistantInstance b) {
+                int byReachability = Integer.compare(rank(a.reachability), rank(b.reachability));
+                if (byReachability != 0) {
+                    return byReachability;
+                }
+                if (a.reachability == Reachability.REACHABLE) {
+                    int byRtt = Long.compare(a.medianRttMs, b.medianRttMs);
+                    if (byRtt != 0) {
+                        return byRtt;
+                    }
+                }
+                return a.serviceName.compareToIgnoreCase(b.serviceName);
+            }
+
+            private int rank(Reachability reachability) {
+                switch (reachability) {
+                    case REACHABLE:
+                        return 0;
+                    case UNKNOWN:
+                        return 1;
+                    default:
+                        return 2;
+                }
+            }
+        };
+
         private final String serviceName;
         private final String hostAddress;
         private final int port;
         private final String url;
+        private final String version;
+        private final Reachability reachability;
+        private final long medianRttMs;
 
         public HomeAssistantInstance(String serviceName, String hostAddress, int port) {
+            this(serviceName, hostAddress, port, "http://" + hostAddress + ":" + port, null);
+        }
+
+        HomeAssistantInstance(String serviceName, String hostAddress, int port, String url, String version) {
+            this(serviceName, hostAddress, port, url, version, Reachability.UNKNOWN, -1);
+        }
+
+        private HomeAssistantInstance(String serviceName, String hostAddress, int port, String url,
+                                      String version, Reachability reachability, long medianRttMs) {
             this.serviceName = serviceName;
             this.hostAddress = hostAddress;
             this.port = port;
-            this.url = "http://" + hostAddress + ":" + port;
+            this.url = url;
+            this.version = version;
+            this.reachability = reachability;
+            this.medianRttMs = medianRttMs;
+        }
+
+        /**
+         * Copy of this instance annotated with the outcome of a probe
+         *
+         * @param medianRttMs median round trip time, or -1 if the instance did not answer
+         */
+        HomeAssistantInstance withProbeResult(long medianRttMs) {
+            return new HomeAssistantInstance(serviceName, hostAddress, port, url, version,
+                    medianRttMs < 0 ? Reachability.UNREACHABLE : Reachability.REACHABLE, medianRttMs);
         }
 
         public String getServiceName() {
@@ -72,9 +190,55 @@ public class HomeAssistantDiscoveryManager {
             return url;
         }
 
+        /**
+         * Home Assistant version from the service announcement, or null if unknown
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        public Reachability getReachability() {
+            return reachability;
+        }
+
+        /**
+         * Median round trip time of the last probe in milliseconds, or -1 if not reachable
+         */
+        public long getMedianRttMs() {
+            return medianRttMs;
+        }
+
         @Override
         public String toString() {
-            return serviceName + " (" + url + ")";
+            StringBuilder text = new StringBuilder(serviceName).append(" (").append(url).append(")");
+            if (version != null) {
+                text.append(" ").append(version);
+            }
+            if (reachability == Reachability.REACHABLE) {
+                text.append(", ").append(medianRttMs).append(" ms");
+            } else if (reachability == Reachability.UNREACHABLE) {
+                text.append(", not reachable");
+            }
+            return text.toString();
+        }
+    }
+
+    private static class PendingResolve {
+        final NsdServiceInfo serviceInfo;
+        int attempts = 0;
+
+        PendingResolve(NsdServiceInfo serviceInfo) {
+            this.serviceInfo = serviceInfo;
+        }
+    }
+
+    private static class CachedInstance {
+        final HomeAssistantInstance instance;
+        final long lastSeen;
+
+        CachedInstance(HomeAssistantInstance instance, long lastSeen) {
+            this.instance = instance;
+            this.lastSeen = lastSeen;
         }
     }
 
@@ -82,9 +246,16 @@ public class HomeAssistantDiscoveryManager {
         if (mIsDiscovering) {
             stopDiscovery();
         }
+        mHandler.removeCallbacks(mDiscoveryTimeout);
 
         mListener = listener;
+
+        // Start from what earlier scans found, the scan refreshes it
         mDiscoveredInstances.clear();
+        mDiscoveredInstances.addAll(getCachedInstances());
+        for (HomeAssistantInstance instance : mDiscoveredInstances) {
+            probe(instance);
+        }
 
         mDiscoveryListener = new NsdManager.DiscoveryListener() {
             @Override
@@ -111,14 +282,7 @@ public class HomeAssistantDiscoveryManager {
                 }
 
                 // Set a timeout for discovery
-                mHandler.postDelayed(() -> {
-                    if (mIsDiscovering) {
-                        stopDiscovery();
-                        if (mListener != null) {
-                            mListener.onDiscoveryFinished(mDiscoveredInstances);
-                        }
-                    }
-                }, DISCOVERY_TIMEOUT_MS);
+                mHandler.postDelayed(mDiscoveryTimeout, DISCOVERY_TIMEOUT_MS);
             }
 
             @Override
@@ -128,53 +292,19 @@ public class HomeAssistantDiscoveryManager {
             }
 
             @Override
-            public void onServiceFound(NsdServiceInfo serviceInfo) {
+            public void onServiceFound(final NsdServiceInfo serviceInfo) {
                 Log.d(TAG, "Service found: " + serviceInfo.getServiceName());
                 
                 // Only resolve if it looks like a Home Assistant service
                 if (serviceInfo.getServiceType().equals(SERVICE_TYPE)) {
-                    mNsdManager.resolveService(serviceInfo, new NsdManager.ResolveListener() {
-                        @Override
-                        public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                            Log.e(TAG, "Resolve failed for " + serviceInfo.getServiceName() + ": " + errorCode);
-                        }
-
-                        @Override
-                        public void onServiceResolved(NsdServiceInfo serviceInfo) {
-                            Log.d(TAG, "Resolved service: " + serviceInfo.getServiceName());
-                            
-                            InetAddress host = serviceInfo.getHost();
-                            int port = serviceInfo.getPort();
-                            
-                            HomeAssistantInstance instance = new HomeAssistantInstance(
-                                    serviceInfo.getServiceName(),
-                                    host.getHostAddress(),
-                                    port
-                            );
-                            
-                            // Add to our list if not already there
-                            boolean alreadyDiscovered = false;
-                            for (HomeAssistantInstance discovered : mDiscoveredInstances) {
-                                if (discovered.getUrl().equals(instance.getUrl())) {
-                                    alreadyDiscovered = true;
-                                    break;
-                                }
-                            }
-                            
-                            if (!alreadyDiscovered) {
-                                mDiscoveredInstances.add(instance);
-                                if (mListener != null) {
-                                    mListener.onInstanceFound(instance);
-                                }
-                            }
-                        }
-                    });
+                    mHandler.post(() -> enqueueResolve(serviceInfo));
                 }
             }
 
             @Override
-            public void onServiceLost(NsdServiceInfo serviceInfo) {
+            public void onServiceLost(final NsdServiceInfo serviceInfo) {
                 Log.d(TAG, "Service lost: " + serviceInfo.getServiceName());
+                mHandler.post(() -> removeQueuedResolve(serviceInfo.getServiceName()));
             }
         };
 
@@ -189,6 +319,7 @@ public class HomeAssistantDiscoveryManager {
     }
 
     public void stopDiscovery() {
+        mHandler.removeCallbacks(mDiscoveryTimeout);
         if (mDiscoveryListener != null && mIsDiscovering) {
             try {
                 mNsdManager.stopServiceDiscovery(mDiscoveryListener);
@@ -199,6 +330,292 @@ public class HomeAssistantDiscoveryManager {
         }
     }
 
+    /**
+     * Stop discovering, drop the queued resolves and stop reporting to the listener
+     */
+    public void close() {
+        stopDiscovery();
+        mResolveQueue.clear();
+        mListener = null;
+    }
+
+    /**
+     * Add an instance that was not discovered, such as a manually entered one, to the
+     * list and probe it like the discovered ones. Main thread only.
+     */
+    public void probeInstance(HomeAssistantInstance instance) {
+        if (indexOfUrl(instance.getUrl()) < 0) {
+            mDiscoveredInstances.add(instance);
+            sortAndNotify();
+        }
+        probe(instance);
+    }
+
+    /**
+     * Instances found by earlier scans within {@link #CACHE_TTL_MS}, most recently seen first.
+     * Main thread only.
+     */
+    public List<HomeAssistantInstance> getCachedInstances() {
+        loadCache();
+
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        for (Iterator<CachedInstance> it = sCache.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen > CACHE_TTL_MS) {
+                it.remove();
+                expired = true;
+            }
+        }
+        if (expired) {
+            saveCache();
+        }
+
+        List<CachedInstance> cached = new ArrayList<>(sCache.values());
+        Collections.sort(cached, new Comparator<CachedInstance>() {
+            @Override
+            public int compare(CachedInstance a, CachedInstance b) {
+                return Long.compare(b.lastSeen, a.lastSeen);
+            }
+        });
+        List<HomeAssistantInstance> instances = new ArrayList<>(cached.size());
+        for (CachedInstance entry : cached) {
+            instances.add(entry.instance);
+        }
+        return instances;
+    }
+
+    /**
+     * Queue a found service for resolving, unless it is already queued. Main thread only.
+     */
+    private void enqueueResolve(NsdServiceInfo serviceInfo) {
+        for (PendingResolve pending : mResolveQueue) {
+            if (pending.serviceInfo.getServiceName().equals(serviceInfo.getServiceName())) {
+                return;
+            }
+        }
+        mResolveQueue.add(new PendingResolve(serviceInfo));
+        resolveNext();
+    }
+
+    private void removeQueuedResolve(String serviceName) {
+        for (Iterator<PendingResolve> it = mResolveQueue.iterator(); it.hasNext(); ) {
+            if (it.next().serviceInfo.getServiceName().equals(serviceName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Start resolving the next queued service. NSD only runs one resolve at a time on many
+     * Android versions, so they are strictly sequential. Main thread only.
+     */
+    private void resolveNext() {
+        if (mResolving || mResolveQueue.isEmpty()) {
+            return;
+        }
+        final PendingResolve pending = mResolveQueue.poll();
+        pending.attempts++;
+        mResolving = true;
+
+        try {
+            mNsdManager.resolveService(pending.serviceInfo, new NsdManager.ResolveListener() {
+                @Override
+                public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+                    Log.e(TAG, "Resolve failed for " + serviceInfo.getServiceName() + ": " + errorCode
+                            + " (attempt " + pending.attempts + ")");
+                    mHandler.post(() -> onResolveFinished(pending, null));
+                }
+
+                @Override
+                public void onServiceResolved(NsdServiceInfo serviceInfo) {
+                    Log.d(TAG, "Resolved service: " + serviceInfo.getServiceName());
+                    mHandler.post(() -> onResolveFinished(pending, serviceInfo));
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Error resolving " + pending.serviceInfo.getServiceName(), e);
+            onResolveFinished(pending, null);
+        }
+    }
+
+    private void onResolveFinished(final PendingResolve pending, NsdServiceInfo resolved) {
+        mResolving = false;
+
+        if (resolved != null && resolved.getHost() != null) {
+            onInstanceResolved(resolved);
+        } else if (pending.attempts < MAX_RESOLVE_ATTEMPTS) {
+            // Usually FAILURE_ALREADY_ACTIVE from a resolve of another app, try again shortly
+            mHandler.postDelayed(() -> {
+                mResolveQueue.add(pending);
+                resolveNext();
+            }, RESOLVE_RETRY_DELAY_MS * pending.attempts);
+        }
+
+        resolveNext();
+    }
+
+    private void onInstanceResolved(NsdServiceInfo resolved) {
+        String serviceName = resolved.getServiceName();
+        String version = getAttribute(resolved, "version");
+
+        // The resolved address is one way to reach the host, the internal URL it announces
+        // may be another one, e.g. on a different interface. Both are probed and ranked.
+        List<HomeAssistantInstance> candidates = new ArrayList<>();
+        String hostAddress = resolved.getHost().getHostAddress();
+        candidates.add(new HomeAssistantInstance(serviceName, hostAddress, resolved.getPort(),
+                "http://" + hostAddress + ":" + resolved.getPort(), version));
+        HomeAssistantInstance internal = parseInstance(serviceName, getAttribute(resolved, "internal_url"), version);
+        if (internal != null && !internal.getUrl().equals(candidates.get(0).getUrl())) {
+            candidates.add(internal);
+        }
+
+        loadCache();
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedInstance> it = sCache.values().iterator(); it.hasNext(); ) {
+            if (it.next().instance.getServiceName().equals(serviceName)) {
+                it.remove();
+            }
+        }
+        for (HomeAssistantInstance candidate : candidates) {
+            sCache.put(candidate.getUrl(), new CachedInstance(candidate, now));
+        }
+        saveCache();
+
+        // Replace what a previous scan found for this service, keeping probe results
+        // of addresses that did not change
+        List<HomeAssistantInstance> previous = new ArrayList<>();
+        for (Iterator<HomeAssistantInstance> it = mDiscoveredInstances.iterator(); it.hasNext(); ) {
+            HomeAssistantInstance discovered = it.next();
+            if (discovered.getServiceName().equals(serviceName)) {
+                previous.add(discovered);
+                it.remove();
+            }
+        }
+        for (HomeAssistantInstance candidate : candidates) {
+            HomeAssistantInstance kept = null;
+            for (HomeAssistantInstance old : previous) {
+                if (old.getUrl().equals(candidate.getUrl())
+                        && old.getReachability() != HomeAssistantInstance.Reachability.UNKNOWN) {
+                    kept = old;
+                }
+            }
+            if (kept != null && equalsNullable(kept.getVersion(), candidate.getVersion())) {
+                mDiscoveredInstances.add(kept);
+            } else {
+                mDiscoveredInstances.add(candidate);
+                probe(candidate);
+            }
+        }
+        sortAndNotify();
+    }
+
+    /**
+     * Probe an instance unless a probe of its URL is already running. Main thread only.
+     */
+    private void probe(HomeAssistantInstance instance) {
+        final String url = instance.getUrl();
+        if (!mProbing.add(url)) {
+            return;
+        }
+        mProber.probe(url, new InstanceProber.ProbeCallback() {
+            @Override
+            public void onProbed(final long medianRttMs) {
+                mHandler.post(() -> onProbeFinished(url, medianRttMs));
+            }
+        });
+    }
+
+    private void onProbeFinished(String url, long medianRttMs) {
+        mProbing.remove(url);
+        Log.d(TAG, "Probed " + url + ": " + (medianRttMs < 0 ? "not reachable" : medianRttMs + " ms"));
+
+        int index = indexOfUrl(url);
+        if (index < 0) {
+            return; // Replaced by a newer resolve in the meantime
+        }
+        mDiscoveredInstances.set(index, mDiscoveredInstances.get(index).withProbeResult(medianRttMs));
+        sortAndNotify();
+    }
+
+    private int indexOfUrl(String url) {
+        for (int i = 0; i < mDiscoveredInstances.size(); i++) {
+            if (mDiscoveredInstances.get(i).getUrl().equals(url)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void sortAndNotify() {
+        Collections.sort(mDiscoveredInstances, HomeAssistantInstance.RANKING);
+        if (mListener != null) {
+            mListener.onInstancesChanged(new ArrayList<>(mDiscoveredInstances));
+        }
+    }
+
+    private static String getAttribute(NsdServiceInfo serviceInfo, String key) {
+        byte[] value = serviceInfo.getAttributes().get(key);
+        if (value == null || value.length == 0) {
+            return null;
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static boolean equalsNullable(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void loadCache() {
+        if (sCacheLoaded) {
+            return;
+        }
+        sCacheLoaded = true;
+
+        String json = mContext.getSharedPreferences(CACHE_PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(PREF_INSTANCES, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONArray entries = new JSONArray(json);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                String host = entry.getString("host");
+                int port = entry.getInt("port");
+                HomeAssistantInstance instance = new HomeAssistantInstance(entry.getString("name"), host, port,
+                        entry.optString("url", "http://" + host + ":" + port),
+                        entry.has("version") ? entry.getString("version") : null);
+                sCache.put(instance.getUrl(), new CachedInstance(instance, entry.getLong("seen")));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring unreadable discovery cache", e);
+        }
+    }
+
+    private void saveCache() {
+        JSONArray entries = new JSONArray();
+        try {
+            for (CachedInstance cached : sCache.values()) {
+                JSONObject entry = new JSONObject();
+                entry.put("name", cached.instance.getServiceName());
+                entry.put("host", cached.instance.getHostAddress());
+                entry.put("port", cached.instance.getPort());
+                entry.put("url", cached.instance.getUrl());
+                if (cached.instance.getVersion() != null) {
+                    entry.put("version", cached.instance.getVersion());
+                }
+                entry.put("seen", cached.lastSeen);
+                entries.put(entry);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error saving discovery cache", e);
+            return;
+        }
+        mContext.getSharedPreferences(CACHE_PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(PREF_INSTANCES, entries.toString())
+                .apply();
+    }
+
     public boolean isDiscovering() {
         return mIsDiscovering;
     }
@@ -218,18 +635,36 @@ public class HomeAssistantDiscoveryManager {
         if (url == null || url.isEmpty()) {
             return null;
         }
-        
+
+        url = url.trim();
+
+        // Add http:// prefix if missing
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            url = "http://" + url;
+        }
+
+        HomeAssistantInstance instance = parseInstance(null, url, null);
+        if (instance == null) {
+            Log.e(TAG, "Error parsing manual instance URL " + url);
+        }
+        return instance;
+    }
+
+    /**
+     * Turn an absolute URL into an instance, named after its host if no name is given
+     *
+     * @return the instance, or null if the URL is missing or not valid
+     */
+    private static HomeAssistantInstance parseInstance(String serviceName, String url, String version) {
+        if (url == null) {
+            return null;
+        }
         try {
-            url = url.trim();
-            
-            // Add http:// prefix if missing
-            if (!url.startsWith("http://") && !url.startsWith("https://")) {
-                url = "http://" + url;
-            }
-            
-            // Parse the URL
             URL parsedUrl = new URL(url);
             String host = parsedUrl.getHost();
+            if (host == null || host.isEmpty()) {
+                return null;
+            }
             int port = parsedUrl.getPort();
             if (port == -1) {
                 port = parsedUrl.getDefaultPort();
@@ -238,16 +673,15 @@ public class HomeAssistantDiscoveryManager {
                     port = 8123;
                 }
             }
-            
-            HomeAssistantInstance instance = new HomeAssistantInstance(
-                    host,
+
+            return new HomeAssistantInstance(
+                    serviceName != null ? serviceName : host,
                     host,
-                    port
+                    port,
+                    parsedUrl.getProtocol() + "://" + host + ":" + port,
+                    version
             );
-            
-            return instance;
         } catch (Exception e) {
-            Log.e(TAG, "Error parsing manual instance URL", e);
             return null;
         }
     }
@@ -1,13 +1,9 @@
 package cz.nsl.oneactionaclick.api;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 public class HomeAssistantEntity {
@@ -15,13 +11,17 @@ public class HomeAssistantEntity {
     private String domain;
     private String entityName;
     private String friendlyName;
-    private Map<String, Object> attributes;
     private String state;
     
+    // Attributes are kept as the compact raw JSON object from the API and decoded on demand.
+    // Once getAttributes() has decoded everything the raw text is dropped.
+    private String rawAttributes;
+    private Map<String, Object> attributes;
+    private Map<String, Object> decodedAttributeCache;
+    
     public HomeAssistantEntity(String entityId, String state) {
         this.entityId = entityId;
         this.state = state;
-        this.attributes = new HashMap<>();
         
         // Parse domain and entity name from the entity ID
         String[] parts = entityId.split("\\.", 2);
@@ -54,131 +54,109 @@ public class HomeAssistantEntity {
         this.friendlyName = friendlyName;
     }
     
-    public Map<String, Object> getAttributes() {
-        return attributes;
-    }
-    
-    public void setAttributes(Map<String, Object> attributes) {
-        this.attributes = attributes;
-        if (attributes.containsKey("friendly_name")) {
-            this.friendlyName = (String) attributes.get("friendly_name");
+    /**
+     * Get all attributes, decoding the raw attribute object on first access
+     */
+    public synchronized Map<String, Object> getAttributes() {
+        if (attributes == null) {
+            Map<String, Object> decoded = null;
+            if (rawAttributes != null) {
+                try {
+                    decoded = HomeAssistantJsonDecoder.decodeObject(rawAttributes);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            attributes = decoded != null ? decoded : new HashMap<>();
+            rawAttributes = null;
+            decodedAttributeCache = null;
         }
-    }
-    
-    public String getState() {
-        return state;
-    }
-    
-    @Override
-    public String toString() {
-        return getFriendlyName() + " (" + entityId + ")";
+        return attributes;
     }
     
     /**
-     * Parse the Home Assistant states API response
+     * Get a single attribute, decoding only that key from the raw attribute object
      * 
-     * @param jsonString JSON string response from Home Assistant API
-     * @return Map of domain to list of entities
+     * @return the attribute value, or null if the entity has no such attribute
      */
-    public static Map<String, List<HomeAssistantEntity>> parseEntities(String jsonString) {
-        Map<String, List<HomeAssistantEntity>> entitiesByDomain = new HashMap<>();
+    public synchronized Object getAttribute(String key) {
+        if (attributes != null) {
+            return attributes.get(key);
+        }
+        if (rawAttributes == null) {
+            return null;
+        }
+        if (decodedAttributeCache != null && decodedAttributeCache.containsKey(key)) {
+            return decodedAttributeCache.get(key);
+        }
         
+        Object value = null;
         try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-            
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject entityObject = jsonArray.getJSONObject(i);
-                String entityId = entityObject.getString("entity_id");
-                String state = entityObject.getString("state");
-                
-                HomeAssistantEntity entity = new HomeAssistantEntity(entityId, state);
-                
-                // Parse attributes if available
-                if (entityObject.has("attributes")) {
-                    JSONObject attributesObj = entityObject.getJSONObject("attributes");
-                    Map<String, Object> attributes = new HashMap<>();
-                    
-                    // Extract all attributes
-                    for (Iterator<String> it = attributesObj.keys(); it.hasNext(); ) {
-                        String key = it.next();
-                        attributes.put(key, attributesObj.get(key));
-                    }
-                    
-                    entity.setAttributes(attributes);
-                }
-                
-                // Group entities by domain
-                if (!entitiesByDomain.containsKey(entity.getDomain())) {
-                    entitiesByDomain.put(entity.getDomain(), new ArrayList<>());
-                }
-                entitiesByDomain.get(entity.getDomain()).add(entity);
-            }
-        } catch (JSONException e) {
+            value = HomeAssistantJsonDecoder.decodeObjectKey(rawAttributes, key);
+        } catch (IOException | RuntimeException e) {
             e.printStackTrace();
         }
         
-        return entitiesByDomain;
+        if (decodedAttributeCache == null) {
+            decodedAttributeCache = new HashMap<>(4);
+        }
+        decodedAttributeCache.put(key, value);
+        return value;
     }
     
     /**
-     * Parse the Home Assistant states API response and return a list of entities
+     * Get a single attribute as a string
      * 
-     * @param jsonString JSON string response from Home Assistant API
-     * @return List of all entities
+     * @return the attribute rendered as text, or the fallback if it is missing or null
      */
-    public static List<HomeAssistantEntity> parseEntitiesList(String jsonString) {
-        List<HomeAssistantEntity> entities = new ArrayList<>();
-        
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-            
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject entityObject = jsonArray.getJSONObject(i);
-                String entityId = entityObject.getString("entity_id");
-                String state = entityObject.getString("state");
-                
-                HomeAssistantEntity entity = new HomeAssistantEntity(entityId, state);
-                
-                // Parse attributes if available
-                if (entityObject.has("attributes")) {
-                    JSONObject attributesObj = entityObject.getJSONObject("attributes");
-                    Map<String, Object> attributes = new HashMap<>();
-                    
-                    // Extract all attributes
-                    for (Iterator<String> it = attributesObj.keys(); it.hasNext(); ) {
-                        String key = it.next();
-                        attributes.put(key, attributesObj.get(key));
-                    }
-                    
-                    entity.setAttributes(attributes);
-                }
-                
-                entities.add(entity);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+    public String getStringAttribute(String key, String fallback) {
+        Object value = getAttribute(key);
+        if (value == null || value == JSONObject.NULL) {
+            return fallback;
+        }
+        return value.toString();
+    }
+    
+    public synchronized void setAttributes(Map<String, Object> attributes) {
+        this.attributes = attributes;
+        this.rawAttributes = null;
+        this.decodedAttributeCache = null;
+        if (attributes.containsKey("friendly_name")) {
+            this.friendlyName = (String) attributes.get("friendly_name");
         }
-        
-        return entities;
     }
     
     /**
-     * Group a list of entities by their domain
+     * Get the attributes as a JSON object string without decoding them
      * 
-     * @param entities List of entities to group
-     * @return Map of domain to list of entities
+     * @return the raw attribute object, or null if the entity has no attributes
      */
-    public static Map<String, List<HomeAssistantEntity>> groupByDomain(List<HomeAssistantEntity> entities) {
-        Map<String, List<HomeAssistantEntity>> entitiesByDomain = new HashMap<>();
-        
-        for (HomeAssistantEntity entity : entities) {
-            String domain = entity.getDomain();
-            if (!entitiesByDomain.containsKey(domain)) {
-                entitiesByDomain.put(domain, new ArrayList<>());
-            }
-            entitiesByDomain.get(domain).add(entity);
+    synchronized String getRawAttributesJson() {
+        if (rawAttributes != null) {
+            return rawAttributes;
         }
-        
-        return entitiesByDomain;
+        if (attributes != null && !attributes.isEmpty()) {
+            return new JSONObject(attributes).toString();
+        }
+        return null;
+    }
+    
+    /**
+     * Keep the attributes as a raw JSON object to be decoded lazily
+     */
+    synchronized void setRawAttributes(String rawAttributes) {
+        this.rawAttributes = rawAttributes;
+        this.attributes = null;
+        this.decodedAttributeCache = null;
     }
+    
+    public String getState() {
+        return state;
+    }
+    
+    @Override
+    public String toString() {
+        return getFriendlyName() + " (" + entityId + ")";
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,483 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * Streaming decoder for the /api/states and /api/services responses.
+ * Entities and services are produced while the response body is being read,
+ * so the payload is never held as a String or a full JSON tree.
+ */
+public final class HomeAssistantJsonDecoder {
+
+    /**
+     * Receives entities one by one as they are decoded
+     */
+    public interface EntityVisitor {
+        void onEntity(HomeAssistantEntity entity);
+    }
+
+    private static volatile JsonStreamReader.Factory sReaderFactory = AndroidJsonStreamReader.FACTORY;
+
+    private HomeAssistantJsonDecoder() {
+    }
+
+    /**
+     * Replace the JSON codec used for all decoding
+     */
+    public static void setReaderFactory(JsonStreamReader.Factory factory) {
+        sReaderFactory = factory != null ? factory : AndroidJsonStreamReader.FACTORY;
+    }
+
+    public static JsonStreamReader newReader(BufferedSource source) {
+        return sReaderFactory.create(source);
+    }
+
+    /**
+     * Decode a states array, handing each entity to the visitor as soon as it is complete
+     *
+     * @return number of entities decoded
+     */
+    public static int decodeEntities(BufferedSource source, EntityVisitor visitor) throws IOException {
+        int count = 0;
+        // Scratch buffer for raw attribute objects, reused across entities
+        StringBuilder rawBuffer = new StringBuilder(256);
+        try (JsonStreamReader reader = newReader(source)) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                HomeAssistantEntity entity = readEntity(reader, rawBuffer);
+                if (entity != null) {
+                    visitor.onEntity(entity);
+                    count++;
+                }
+            }
+            reader.endArray();
+        }
+        return count;
+    }
+
+    /**
+     * Decode a services response in either the array format (newer Home Assistant
+     * versions) or the object format (older versions)
+     *
+     * @return Map of domain to list of services
+     */
+    public static Map<String, List<HomeAssistantService>> decodeServices(BufferedSource source) throws IOException {
+        Map<String, List<HomeAssistantService>> servicesByDomain = new HashMap<>();
+
+        try (JsonStreamReader reader = newReader(source)) {
+            if (reader.peek() == JsonStreamReader.Token.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readDomainEntry(reader, servicesByDomain);
+                }
+                reader.endArray();
+            } else {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String domain = reader.nextName();
+                    servicesByDomain.put(domain, readServices(reader, domain));
+                }
+                reader.endObject();
+            }
+        }
+
+        return servicesByDomain;
+    }
+
+    /**
+     * Decode a whole raw JSON object into a map
+     */
+    static Map<String, Object> decodeObject(String rawObject) throws IOException {
+        try (JsonStreamReader reader = newReader(sourceOf(rawObject))) {
+            return readObjectAsMap(reader);
+        }
+    }
+
+    /**
+     * Decode the value of a single key from a raw JSON object, skipping everything else
+     *
+     * @return the decoded value, or null if the key is not present
+     */
+    static Object decodeObjectKey(String rawObject, String key) throws IOException {
+        try (JsonStreamReader reader = newReader(sourceOf(rawObject))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (key.equals(reader.nextName())) {
+                    return readValue(reader);
+                }
+                reader.skipValue();
+            }
+            reader.endObject();
+        }
+        return null;
+    }
+
+    /**
+     * Read one element of a states array. Attributes are not decoded; they are re-serialized
+     * compactly into rawBuffer and only friendly_name is extracted up front.
+     */
+    private static HomeAssistantEntity readEntity(JsonStreamReader reader, StringBuilder rawBuffer) throws IOException {
+        String entityId = null;
+        String state = null;
+        String friendlyName = null;
+        String rawAttributes = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonStreamReader.Token.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "entity_id":
+                    entityId = reader.nextString();
+                    break;
+                case "state":
+                    state = reader.nextString();
+                    break;
+                case "attributes":
+                    if (reader.peek() != JsonStreamReader.Token.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        break;
+                    }
+                    rawBuffer.setLength(0);
+                    friendlyName = copyAttributes(reader, rawBuffer);
+                    // An empty object is just "{}", no need to keep it around
+                    if (rawBuffer.length() > 2) {
+                        rawAttributes = rawBuffer.toString();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (entityId == null) {
+            return null;
+        }
+
+        HomeAssistantEntity entity = new HomeAssistantEntity(entityId, state != null ? state : "");
+        if (friendlyName != null) {
+            entity.setFriendlyName(friendlyName);
+        }
+        if (rawAttributes != null) {
+            entity.setRawAttributes(rawAttributes);
+        }
+        return entity;
+    }
+
+    /**
+     * Copy an attributes object into out as compact JSON
+     *
+     * @return the friendly_name attribute if present
+     */
+    private static String copyAttributes(JsonStreamReader reader, StringBuilder out) throws IOException {
+        String friendlyName = null;
+        boolean first = true;
+
+        out.append('{');
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            appendQuoted(out, key);
+            out.append(':');
+
+            if ("friendly_name".equals(key) && reader.peek() == JsonStreamReader.Token.STRING) {
+                friendlyName = reader.nextString();
+                appendQuoted(out, friendlyName);
+            } else {
+                copyValue(reader, out);
+            }
+        }
+        reader.endObject();
+        out.append('}');
+
+        return friendlyName;
+    }
+
+    /**
+     * Copy any JSON value into out as compact JSON without building intermediate objects
+     */
+    private static void copyValue(JsonStreamReader reader, StringBuilder out) throws IOException {
+        boolean first = true;
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                out.append('{');
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    appendQuoted(out, reader.nextName());
+                    out.append(':');
+                    copyValue(reader, out);
+                }
+                reader.endObject();
+                out.append('}');
+                break;
+            case BEGIN_ARRAY:
+                out.append('[');
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    copyValue(reader, out);
+                }
+                reader.endArray();
+                out.append(']');
+                break;
+            case NUMBER:
+                out.append(reader.nextString());
+                break;
+            case BOOLEAN:
+                out.append(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                out.append("null");
+                break;
+            default:
+                appendQuoted(out, reader.nextString());
+                break;
+        }
+    }
+
+    private static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Read one {"domain": ..., "services": {...}} element of the array format
+     */
+    private static void readDomainEntry(JsonStreamReader reader,
+                                        Map<String, List<HomeAssistantService>> servicesByDomain) throws IOException {
+        String domain = null;
+        List<String> serviceNames = null;
+        List<Map<String, Object>> serviceFields = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("domain".equals(name)) {
+                domain = reader.nextString();
+            } else if ("services".equals(name)) {
+                // The domain key is not guaranteed to come first, so collect the services
+                // and build them once the whole entry has been read
+                serviceNames = new ArrayList<>();
+                serviceFields = new ArrayList<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    serviceNames.add(reader.nextName());
+                    serviceFields.add(readServiceFields(reader));
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (domain == null || serviceNames == null) {
+            return;
+        }
+
+        List<HomeAssistantService> services = new ArrayList<>(serviceNames.size());
+        for (int i = 0; i < serviceNames.size(); i++) {
+            HomeAssistantService service = new HomeAssistantService(domain, serviceNames.get(i));
+            if (serviceFields.get(i) != null) {
+                service.setServiceAttributes(serviceFields.get(i));
+            }
+            services.add(service);
+        }
+        servicesByDomain.put(domain, services);
+    }
+
+    /**
+     * Read a {"service_name": {...}} object of the object format
+     */
+    private static List<HomeAssistantService> readServices(JsonStreamReader reader, String domain) throws IOException {
+        List<HomeAssistantService> services = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            HomeAssistantService service = new HomeAssistantService(domain, reader.nextName());
+            Map<String, Object> fields = readServiceFields(reader);
+            if (fields != null) {
+                service.setServiceAttributes(fields);
+            }
+            services.add(service);
+        }
+        reader.endObject();
+
+        return services;
+    }
+
+    /**
+     * Read a service definition and return its fields, or null if it declares none
+     */
+    private static Map<String, Object> readServiceFields(JsonStreamReader reader) throws IOException {
+        if (reader.peek() != JsonStreamReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        Map<String, Object> fields = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("fields".equals(name) && reader.peek() == JsonStreamReader.Token.BEGIN_OBJECT) {
+                fields = readObjectAsMap(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return fields;
+    }
+
+    private static Map<String, Object> readObjectAsMap(JsonStreamReader reader) throws IOException {
+        Map<String, Object> map = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            map.put(key, readValue(reader));
+        }
+        reader.endObject();
+        return map;
+    }
+
+    /**
+     * Read any JSON value into the same types org.json produces
+     * (JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL)
+     */
+    static Object readValue(JsonStreamReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    try {
+                        object.put(key, readValue(reader));
+                    } catch (JSONException e) {
+                        throw new IOException("Invalid value for key " + key, e);
+                    }
+                }
+                reader.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            }
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static Object parseNumber(String literal) {
+        try {
+            long value = Long.parseLong(literal);
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(literal);
+        }
+    }
+
+    /**
+     * Wrap an in-memory JSON string so it can go through the streaming decoder
+     */
+    static BufferedSource sourceOf(String json) {
+        return new Buffer().writeUtf8(json);
+    }
+
+    /**
+     * Source wrapper that counts the bytes read through it, used for request logging
+     */
+    public static class CountingSource extends ForwardingSource {
+        private long bytesRead;
+
+        public CountingSource(Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) {
+                bytesRead += read;
+            }
+            return read;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.nsl.oneactionaclick.SettingsActivity;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Persistent, authenticated connection to the Home Assistant WebSocket API.
+ * Service calls sent over an open session cost a single frame round trip
+ * instead of a full REST request. Callers are expected to fall back to REST
+ * whenever {@link #isReady()} returns false.
+ *
+ * Event subscriptions stay registered across reconnects and are sent again
+ * every time a new session is authenticated.
+ */
+public class HomeAssistantWebSocket {
+    private static final String TAG = "HomeAssistantWebSocket";
+
+    // Heartbeat and timeout settings in milliseconds
+    private static final long HEARTBEAT_INTERVAL_MS = 30000;
+    private static final long PONG_TIMEOUT_MS = 10000;
+    private static final long CALL_TIMEOUT_MS = 10000;
+
+    // Reconnect backoff bounds in milliseconds
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 60000;
+
+    private enum State {
+        DISCONNECTED,
+        CONNECTING,
+        AUTHENTICATING,
+        READY
+    }
+
+    /**
+     * Callback for the result of a single command
+     */
+    public interface ResultCallback {
+        void onSuccess(JSONObject result);
+        void onError(String error);
+        /**
+         * Called instead of onError when the command was sent but no result arrived,
+         * so it may or may not have been executed
+         */
+        default void onResultLost(String error) {
+            onError(error);
+        }
+    }
+
+    /**
+     * Receiver of the events of one subscription
+     */
+    public interface EventListener {
+        /**
+         * Build the subscribe command, without an id. Called for every new session.
+         */
+        JSONObject buildSubscribeCommand() throws JSONException;
+
+        void onEvent(JSONObject event);
+    }
+
+    private static HomeAssistantWebSocket sInstance;
+
+    private final Context context;
+    private final OkHttpClient client;
+    private final OAuth2Manager oauth2Manager;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, PendingCall> pendingCalls = new ConcurrentHashMap<>();
+
+    // Registered subscriptions, with the id of their subscribe command in the current
+    // session or -1 if it was not sent yet. Guarded by this.
+    private final Map<EventListener, Integer> subscriptions = new HashMap<>();
+    private final Map<Integer, EventListener> subscriptionsById = new ConcurrentHashMap<>();
+
+    private WebSocket webSocket;
+    private State state = State.DISCONNECTED;
+    private String connectedBaseUrl;
+    private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    private boolean reconnectEnabled = false;
+    private ScheduledFuture<?> heartbeatTask;
+    private ScheduledFuture<?> reconnectTask;
+    private int outstandingPingId = -1;
+    private String authToken; // Token sent with the last auth message
+    private boolean authRetried = false; // A rejected OAuth token was already replaced once
+
+    private static class PendingCall {
+        final ResultCallback callback;
+        final ScheduledFuture<?> timeout;
+
+        PendingCall(ResultCallback callback, ScheduledFuture<?> timeout) {
+            this.callback = callback;
+            this.timeout = timeout;
+        }
+    }
+
+    public static synchronized HomeAssistantWebSocket getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HomeAssistantWebSocket(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private HomeAssistantWebSocket(Context context) {
+        this.context = context;
+        this.client = SharedHttpClient.get(context);
+        this.oauth2Manager = OAuth2Manager.getInstance(context);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Check whether the session is authenticated and can accept commands
+     * for the currently configured Home Assistant instance
+     */
+    public synchronized boolean isReady() {
+        return state == State.READY
+                && ConnectionProfile.getInstance(context).getBaseUrl().equals(connectedBaseUrl);
+    }
+
+    /**
+     * Open the session if it is not already open or being opened.
+     * Connecting happens on a background thread so it is safe to call from the UI.
+     */
+    public synchronized void connect() {
+        reconnectEnabled = true;
+        String baseUrl = ConnectionProfile.getInstance(context).getBaseUrl();
+        if (state != State.DISCONNECTED && baseUrl.equals(connectedBaseUrl)) {
+            return;
+        }
+        if (state != State.DISCONNECTED) {
+            // Settings changed under us, drop the old session first
+            closeSocket("Base URL changed");
+        }
+        cancelReconnect();
+        state = State.CONNECTING;
+        connectedBaseUrl = baseUrl;
+        scheduler.execute(this::openSocket);
+    }
+
+    /**
+     * Close the session and stop reconnecting
+     */
+    public synchronized void disconnect() {
+        reconnectEnabled = false;
+        cancelReconnect();
+        closeSocket("Disconnect requested");
+    }
+
+    /**
+     * Call a service over the open session.
+     *
+     * @return false if the session is not ready and nothing was sent
+     */
+    public boolean callService(String domain, String service, String entityId, ResultCallback callback) {
+        JSONObject message = new JSONObject();
+        try {
+            JSONObject serviceData = new JSONObject();
+            serviceData.put("entity_id", entityId);
+            message.put("type", "call_service");
+            message.put("domain", domain);
+            message.put("service", service);
+            message.put("service_data", serviceData);
+        } catch (JSONException e) {
+            callback.onError(e.getMessage());
+            return true;
+        }
+        return sendCommand(message, callback);
+    }
+
+    /**
+     * Send a command, assigning it the next message id and registering the callback
+     * that will receive the matching result frame.
+     *
+     * @return false if the session is not ready and nothing was sent
+     */
+    public boolean sendCommand(JSONObject message, ResultCallback callback) {
+        final int id = nextId.getAndIncrement();
+        synchronized (this) {
+            if (!isReady()) {
+                return false;
+            }
+            try {
+                message.put("id", id);
+            } catch (JSONException e) {
+                callback.onError(e.getMessage());
+                return true;
+            }
+
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+                PendingCall expired = pendingCalls.remove(id);
+                if (expired != null) {
+                    expired.callback.onResultLost("WebSocket command timed out");
+                }
+            }, CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            pendingCalls.put(id, new PendingCall(callback, timeout));
+
+            if (!webSocket.send(message.toString())) {
+                pendingCalls.remove(id);
+                timeout.cancel(false);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Register a subscription, or send it again if it is already registered.
+     * It is sent right away if the session is ready, otherwise once it is.
+     */
+    public synchronized void subscribe(EventListener listener) {
+        unsubscribe(listener);
+        subscriptions.put(listener, -1);
+        if (state == State.READY) {
+            sendSubscribe(listener);
+        }
+    }
+
+    /**
+     * Drop a subscription. Events still in flight for it are ignored.
+     */
+    public synchronized void unsubscribe(EventListener listener) {
+        Integer id = subscriptions.remove(listener);
+        if (id == null || id < 0) {
+            return;
+        }
+        subscriptionsById.remove(id);
+
+        if (state == State.READY) {
+            JSONObject message = new JSONObject();
+            try {
+                message.put("type", "unsubscribe_events");
+                message.put("subscription", id);
+            } catch (JSONException e) {
+                return;
+            }
+            sendCommand(message, new ResultCallback() {
+                @Override
+                public void onSuccess(JSONObject result) {
+                }
+
+                @Override
+                public void onError(String error) {
+                    Log.w(TAG, "Unsubscribe failed: " + error);
+                }
+            });
+        }
+    }
+
+    private synchronized void sendSubscribe(EventListener listener) {
+        JSONObject message;
+        try {
+            message = listener.buildSubscribeCommand();
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot build subscribe command", e);
+            return;
+        }
+
+        // Registered before sending, so no event can arrive ahead of its listener
+        int id = nextId.getAndIncrement();
+        try {
+            message.put("id", id);
+        } catch (JSONException e) {
+            return;
+        }
+        subscriptions.put(listener, id);
+        subscriptionsById.put(id, listener);
+        webSocket.send(message.toString());
+    }
+
+    private void openSocket() {
+        String baseUrl;
+        synchronized (this) {
+            if (state != State.CONNECTING) {
+                return;
+            }
+            baseUrl = connectedBaseUrl;
+        }
+
+        // OkHttp upgrades http(s) URLs to ws(s) on its own
+        String url = baseUrl + "/api/websocket";
+        Log.d(TAG, "Opening WebSocket: " + url);
+
+        Request request;
+        try {
+            request = new Request.Builder().url(url).build();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid WebSocket URL: " + url, e);
+            synchronized (this) {
+                state = State.DISCONNECTED;
+            }
+            return;
+        }
+
+        WebSocket socket = client.newWebSocket(request, new Listener());
+        synchronized (this) {
+            webSocket = socket;
+        }
+    }
+
+    private class Listener extends WebSocketListener {
+        @Override
+        public void onMessage(WebSocket socket, String text) {
+            synchronized (HomeAssistantWebSocket.this) {
+                if (socket != webSocket) {
+                    return;
+                }
+            }
+
+            JSONObject message;
+            try {
+                message = new JSONObject(text);
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring malformed WebSocket frame", e);
+                return;
+            }
+
+            String type = message.optString("type");
+            switch (type) {
+                case "auth_required":
+                    sendAuth(socket);
+                    break;
+                case "auth_ok":
+                    onAuthenticated();
+                    break;
+                case "auth_invalid":
+                    Log.e(TAG, "WebSocket authentication rejected: " + message.optString("message"));
+                    synchronized (HomeAssistantWebSocket.this) {
+                        closeSocket("Authentication rejected");
+                        if (SettingsActivity.isUsingOAuth(context) && !authRetried) {
+                            // The OAuth token may have been revoked or expired early, try once with a new one
+                            authRetried = true;
+                            oauth2Manager.invalidateAccessToken(authToken);
+                            scheduleReconnect();
+                        } else {
+                            // Retrying with the same credentials would only be rejected again
+                            reconnectEnabled = false;
+                        }
+                    }
+                    break;
+                case "pong":
+                    synchronized (HomeAssistantWebSocket.this) {
+                        if (message.optInt("id") == outstandingPingId) {
+                            outstandingPingId = -1;
+                        }
+                    }
+                    break;
+                case "result":
+                    dispatchResult(message);
+                    break;
+                case "event":
+                    dispatchEvent(message);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onClosed(WebSocket socket, int code, String reason) {
+            Log.d(TAG, "WebSocket closed: " + code + " " + reason);
+            onConnectionLost(socket, "WebSocket closed: " + reason);
+        }
+
+        @Override
+        public void onFailure(WebSocket socket, Throwable t, Response response) {
+            Log.w(TAG, "WebSocket failure: " + t.getMessage());
+            if (response == null && t instanceof IOException) {
+                RetryPolicy.FailureKind kind = RetryPolicy.classify((IOException) t);
+                if (kind == RetryPolicy.FailureKind.DNS || kind == RetryPolicy.FailureKind.CONNECT_TIMEOUT) {
+                    // The reconnect goes to the other URL
+                    ConnectionProfile.getInstance(context).failOver(socket.request().url().toString());
+                }
+            }
+            onConnectionLost(socket, "WebSocket failure: " + t.getMessage());
+        }
+    }
+
+    private void sendAuth(final WebSocket socket) {
+        synchronized (this) {
+            state = State.AUTHENTICATING;
+        }
+
+        if (!SettingsActivity.isUsingOAuth(context)) {
+            sendAuth(socket, SettingsActivity.getHomeAssistantToken(context));
+            return;
+        }
+
+        // Don't hold up the socket's thread while the token is refreshed
+        oauth2Manager.getAccessToken(new OAuth2Manager.TokenCallback() {
+            @Override
+            public void onToken(String accessToken) {
+                sendAuth(socket, accessToken);
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "No token available for WebSocket authentication: " + error);
+                socket.close(1000, "No token");
+            }
+        });
+    }
+
+    private void sendAuth(WebSocket socket, String token) {
+        synchronized (this) {
+            authToken = token;
+        }
+        if (token == null || token.isEmpty()) {
+            Log.e(TAG, "No token available for WebSocket authentication");
+            socket.close(1000, "No token");
+            return;
+        }
+
+        JSONObject auth = new JSONObject();
+        try {
+            auth.put("type", "auth");
+            auth.put("access_token", token);
+        } catch (JSONException e) {
+            socket.close(1000, "Auth message error");
+            return;
+        }
+        socket.send(auth.toString());
+    }
+
+    private synchronized void onAuthenticated() {
+        Log.d(TAG, "WebSocket authenticated");
+        state = State.READY;
+        authRetried = false;
+        reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        outstandingPingId = -1;
+
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+        }
+        heartbeatTask = scheduler.scheduleWithFixedDelay(this::heartbeat,
+                HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        // Subscriptions do not outlive a session, renew them on the new one
+        for (EventListener listener : new ArrayList<>(subscriptions.keySet())) {
+            sendSubscribe(listener);
+        }
+    }
+
+    private synchronized void heartbeat() {
+        if (state != State.READY) {
+            return;
+        }
+
+        if (outstandingPingId != -1) {
+            return; // The check scheduled with it is still pending
+        }
+
+        final int id = nextId.getAndIncrement();
+        final WebSocket socket = webSocket;
+        outstandingPingId = id;
+        socket.send("{\"id\":" + id + ",\"type\":\"ping\"}");
+        // Checked on its own schedule, so calls stop going into a dead session right away
+        scheduler.schedule(() -> checkPong(id, socket), PONG_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void checkPong(int pingId, WebSocket socket) {
+        if (outstandingPingId != pingId || webSocket != socket) {
+            return; // Answered, or the session is gone already
+        }
+        Log.w(TAG, "WebSocket heartbeat missed, reconnecting");
+        outstandingPingId = -1;
+        socket.cancel();
+    }
+
+    private void dispatchResult(JSONObject message) {
+        int id = message.optInt("id", -1);
+        PendingCall call = pendingCalls.remove(id);
+        if (call == null) {
+            if (!message.optBoolean("success") && subscriptionsById.containsKey(id)) {
+                Log.e(TAG, "Subscription rejected: " + message.optJSONObject("error"));
+            }
+            return;
+        }
+        call.timeout.cancel(false);
+
+        if (message.optBoolean("success")) {
+            call.callback.onSuccess(message.optJSONObject("result"));
+        } else {
+            JSONObject error = message.optJSONObject("error");
+            String errorMessage = error != null
+                    ? error.optString("code") + ": " + error.optString("message")
+                    : "Unknown WebSocket error";
+            call.callback.onError(errorMessage);
+        }
+    }
+
+    private void dispatchEvent(JSONObject message) {
+        EventListener listener = subscriptionsById.get(message.optInt("id", -1));
+        JSONObject event = message.optJSONObject("event");
+        if (listener != null && event != null) {
+            listener.onEvent(event);
+        }
+    }
+
+    private void onConnectionLost(WebSocket socket, String reason) {
+        synchronized (this) {
+            if (socket != webSocket) {
+                return;
+            }
+            webSocket = null;
+            state = State.DISCONNECTED;
+            if (heartbeatTask != null) {
+                heartbeatTask.cancel(false);
+                heartbeatTask = null;
+            }
+            resetSubscriptions();
+            scheduleReconnect();
+        }
+        failPendingCalls(reason);
+    }
+
+    private void closeSocket(String reason) {
+        if (webSocket != null) {
+            webSocket.close(1000, reason);
+            webSocket = null;
+        }
+        state = State.DISCONNECTED;
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+        resetSubscriptions();
+        failPendingCalls(reason);
+    }
+
+    private void resetSubscriptions() {
+        subscriptionsById.clear();
+        for (Map.Entry<EventListener, Integer> entry : subscriptions.entrySet()) {
+            entry.setValue(-1);
+        }
+    }
+
+    private void failPendingCalls(String reason) {
+        // A command whose result never arrived may or may not have been executed,
+        // so report the failure instead of silently resending it
+        Iterator<Map.Entry<Integer, PendingCall>> it = pendingCalls.entrySet().iterator();
+        while (it.hasNext()) {
+            PendingCall call = it.next().getValue();
+            it.remove();
+            call.timeout.cancel(false);
+            call.callback.onResultLost(reason);
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (!reconnectEnabled || reconnectTask != null) {
+            return;
+        }
+
+        long delay = reconnectDelayMs;
+        reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        Log.d(TAG, "Reconnecting WebSocket in " + delay + "ms");
+
+        reconnectTask = scheduler.schedule(() -> {
+            synchronized (HomeAssistantWebSocket.this) {
+                reconnectTask = null;
+                if (!reconnectEnabled || state != State.DISCONNECTED) {
+                    return;
+                }
+                state = State.CONNECTING;
+                connectedBaseUrl = ConnectionProfile.getInstance(context).getBaseUrl();
+            }
+            openSocket();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelReconnect() {
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+    }
+}
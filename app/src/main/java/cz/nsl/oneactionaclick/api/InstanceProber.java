@@ -0,0 +1,95 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Checks whether a Home Assistant instance answers and how fast.
+ *
+ * A probe sends {@link #SAMPLES} unauthenticated GETs to /api/ one after another. Any HTTP
+ * response counts, a 401 included, since it shows the server is up. The first request may
+ * include connecting, the later ones reuse the connection, and the median of their round
+ * trip times is reported. Probes of different instances run in parallel on the shared
+ * client's dispatcher without blocking any thread.
+ */
+final class InstanceProber {
+    interface ProbeCallback {
+        /**
+         * Called on a background thread once all samples are in
+         *
+         * @param medianRttMs median round trip time, or -1 if the instance never answered
+         */
+        void onProbed(long medianRttMs);
+    }
+
+    private static final int SAMPLES = 3;
+
+    // A server on the local network that takes longer than this is not worth picking
+    private static final long PROBE_TIMEOUT_MS = 2000;
+
+    private final OkHttpClient client;
+
+    InstanceProber(Context context) {
+        // Shares the connection pool and dispatcher, only the timeouts are shorter
+        this.client = SharedHttpClient.get(context).newBuilder()
+                .connectTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+    /**
+     * @param baseUrl URL of the instance, without a trailing slash
+     */
+    void probe(String baseUrl, final ProbeCallback callback) {
+        final Request request;
+        try {
+            request = new Request.Builder().url(baseUrl + "/api/").build();
+        } catch (IllegalArgumentException e) {
+            callback.onProbed(-1);
+            return;
+        }
+
+        client.newCall(request).enqueue(new Callback() {
+            private final long[] rtts = new long[SAMPLES];
+            private int sample = 0;
+            private int answered = 0;
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                // Nothing to gain from more samples if it cannot even connect
+                finish();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                rtts[answered++] = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+                response.close();
+                if (++sample < SAMPLES) {
+                    client.newCall(request).enqueue(this);
+                } else {
+                    finish();
+                }
+            }
+
+            private void finish() {
+                if (answered == 0) {
+                    callback.onProbed(-1);
+                    return;
+                }
+                long[] answeredRtts = Arrays.copyOf(rtts, answered);
+                Arrays.sort(answeredRtts);
+                callback.onProbed(answeredRtts[answered / 2]);
+            }
+        });
+    }
+}
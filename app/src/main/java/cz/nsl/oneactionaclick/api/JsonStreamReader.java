@@ -0,0 +1,60 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import okio.BufferedSource;
+
+/**
+ * Pull-style JSON reader used to decode Home Assistant responses without
+ * materializing the whole payload as a String or a JSON tree first.
+ * The default implementation is {@link AndroidJsonStreamReader}; a faster
+ * streaming codec can be plugged in through {@link HomeAssistantJsonDecoder#setReaderFactory}.
+ */
+public interface JsonStreamReader extends Closeable {
+
+    enum Token {
+        BEGIN_ARRAY,
+        END_ARRAY,
+        BEGIN_OBJECT,
+        END_OBJECT,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    /**
+     * Creates readers over a response body
+     */
+    interface Factory {
+        JsonStreamReader create(BufferedSource source);
+    }
+
+    void beginArray() throws IOException;
+
+    void endArray() throws IOException;
+
+    void beginObject() throws IOException;
+
+    void endObject() throws IOException;
+
+    boolean hasNext() throws IOException;
+
+    Token peek() throws IOException;
+
+    String nextName() throws IOException;
+
+    /**
+     * Returns the next string value, or the literal text of a number
+     */
+    String nextString() throws IOException;
+
+    boolean nextBoolean() throws IOException;
+
+    void nextNull() throws IOException;
+
+    void skipValue() throws IOException;
+}
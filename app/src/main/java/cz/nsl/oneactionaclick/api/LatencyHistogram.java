@@ -0,0 +1,143 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * Fixed-size latency histogram with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Values below 16 ms get a bucket each; above that, every power of two is split into
+ * eight buckets, so a reported percentile is within 1/8 (12.5%) of the recorded value.
+ * Values are clamped to {@link #MAX_VALUE_MS}, which keeps the histogram at 152 counters
+ * no matter how many values are recorded.
+ *
+ * Not thread-safe.
+ */
+public final class LatencyHistogram {
+    private static final int LINEAR_LIMIT = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int MAX_EXPONENT = 20;
+
+    // About 35 minutes, anything slower is a timeout anyway
+    public static final long MAX_VALUE_MS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    static final int BUCKET_COUNT = bucketIndex(MAX_VALUE_MS) + 1;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private long totalCount;
+    private long maxValue;
+
+    public void record(long valueMs) {
+        long value = Math.max(0, Math.min(valueMs, MAX_VALUE_MS));
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    /**
+     * Add all values recorded in another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        maxValue = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Get the value below which the given percentage of recorded values fall
+     *
+     * @param percentile 0 to 100
+     * @return the highest value of the bucket the percentile lands in, or 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(totalCount * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueInBucket(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Write the non-empty buckets
+     */
+    void writeTo(BufferedSink sink) throws IOException {
+        int used = 0;
+        for (int count : counts) {
+            if (count != 0) {
+                used++;
+            }
+        }
+        sink.writeLong(maxValue);
+        sink.writeShort(used);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0) {
+                sink.writeShort(i);
+                sink.writeInt(counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Replace the contents with a histogram written by {@link #writeTo}
+     */
+    void readFrom(BufferedSource source) throws IOException {
+        clear();
+        maxValue = source.readLong();
+        int used = source.readShort();
+        for (int n = 0; n < used; n++) {
+            int index = source.readShort();
+            int count = source.readInt();
+            if (index < 0 || index >= BUCKET_COUNT || count < 0) {
+                throw new IOException("Corrupt histogram bucket " + index);
+            }
+            counts[index] = count;
+            totalCount += count;
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - 3; // Keep the top four bits, the leading one plus three sub-bucket bits
+        return SUB_BUCKETS * shift + (int) (value >> shift);
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - (long) SUB_BUCKETS * shift;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,329 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * Latency histograms for the last seven days, keyed by widget and by endpoint.
+ *
+ * Each key keeps one {@link LatencyHistogram} per day in a ring, so memory stays fixed
+ * while old days fall out on their own. All state is owned by a single background
+ * thread: recording never blocks the caller, and the histograms are saved to app
+ * storage a few seconds after the last change so they survive process restarts.
+ * Callers that may be killed before then, such as a widget tap, {@link #flush} instead.
+ */
+public class LatencyStats {
+    private static final String TAG = "LatencyStats";
+
+    private static final String STATS_FILE = "latency_stats.bin";
+    private static final int FILE_VERSION = 1;
+
+    private static final int DAYS = 7;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    // Bounds memory and file size, the least recently updated key is dropped first
+    private static final int MAX_KEYS = 64;
+
+    private static final long SAVE_DELAY_MS = 5000;
+
+    /**
+     * Percentiles of one key over the whole window
+     */
+    public static class Summary {
+        private final String key;
+        private final long count;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        Summary(String key, LatencyHistogram histogram) {
+            this.key = key;
+            this.count = histogram.getTotalCount();
+            this.p50 = histogram.getValueAtPercentile(50);
+            this.p95 = histogram.getValueAtPercentile(95);
+            this.p99 = histogram.getValueAtPercentile(99);
+            this.max = histogram.getMaxValue();
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return key + ": n=" + count + " p50 " + p50 + "ms p95 " + p95 + "ms p99 " + p99
+                    + "ms max " + max + "ms";
+        }
+    }
+
+    /**
+     * Daily histograms of one key, slot = day % DAYS
+     */
+    private static class Series {
+        final LatencyHistogram[] histograms = new LatencyHistogram[DAYS];
+        final long[] days = new long[DAYS];
+
+        Series() {
+            for (int i = 0; i < DAYS; i++) {
+                histograms[i] = new LatencyHistogram();
+                days[i] = -1;
+            }
+        }
+
+        void record(long day, long valueMs) {
+            int slot = (int) (day % DAYS);
+            if (days[slot] != day) {
+                histograms[slot].clear();
+                days[slot] = day;
+            }
+            histograms[slot].record(valueMs);
+        }
+
+        LatencyHistogram merge(long today) {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (int i = 0; i < DAYS; i++) {
+                if (days[i] >= 0 && today - days[i] < DAYS) {
+                    merged.add(histograms[i]);
+                }
+            }
+            return merged;
+        }
+    }
+
+    private static LatencyStats sInstance;
+
+    private final AtomicFile file;
+    private final ScheduledExecutorService executor;
+
+    // Only touched on executor, in access order for eviction
+    private final LinkedHashMap<String, Series> series = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean saveScheduled;
+    private boolean dirty;
+
+    // Rebuilt on executor after every change, read from any thread
+    private volatile List<Summary> summaries = Collections.emptyList();
+
+    public static synchronized LatencyStats getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LatencyStats(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LatencyStats(Context context) {
+        this.file = new AtomicFile(new File(context.getFilesDir(), STATS_FILE));
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                updateSummaries();
+            }
+        });
+    }
+
+    public static String widgetKey(int appWidgetId) {
+        return "widget " + appWidgetId;
+    }
+
+    public static String endpointKey(String method, String path) {
+        return method + " " + path;
+    }
+
+    /**
+     * Record a latency. Returns immediately, the histogram is updated in the background.
+     */
+    public void record(final String key, final long durationMs) {
+        final long day = System.currentTimeMillis() / DAY_MS;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Series entry = series.get(key);
+                if (entry == null) {
+                    if (series.size() >= MAX_KEYS) {
+                        Iterator<String> eldest = series.keySet().iterator();
+                        eldest.next();
+                        eldest.remove();
+                    }
+                    entry = new Series();
+                    series.put(key, entry);
+                }
+                entry.record(day, durationMs);
+                changed();
+            }
+        });
+    }
+
+    /**
+     * Forget a key, e.g. when its widget is deleted
+     */
+    public void remove(final String key) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (series.remove(key) != null) {
+                    changed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Save what was recorded so far right away, in the background. Recordings made
+     * before this call are included.
+     */
+    public void flush() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                saveIfDirty();
+            }
+        });
+    }
+
+    /**
+     * Get the percentiles of every key, widgets first, as of the last change
+     */
+    public List<Summary> getSummaries() {
+        return summaries;
+    }
+
+    // Everything below runs on executor
+
+    private void changed() {
+        updateSummaries();
+        dirty = true;
+        if (!saveScheduled) {
+            saveScheduled = true;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    saveScheduled = false;
+                    saveIfDirty();
+                }
+            }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void saveIfDirty() {
+        if (dirty) {
+            dirty = false;
+            save();
+        }
+    }
+
+    private void updateSummaries() {
+        long today = System.currentTimeMillis() / DAY_MS;
+        List<Summary> widgets = new ArrayList<>();
+        List<Summary> endpoints = new ArrayList<>();
+        // Iterating an access-ordered map with get() would reorder it, use the entries
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            LatencyHistogram merged = entry.getValue().merge(today);
+            if (merged.getTotalCount() == 0) {
+                continue;
+            }
+            Summary summary = new Summary(entry.getKey(), merged);
+            if (entry.getKey().startsWith("widget ")) {
+                widgets.add(summary);
+            } else {
+                endpoints.add(summary);
+            }
+        }
+        widgets.addAll(endpoints);
+        summaries = Collections.unmodifiableList(widgets);
+    }
+
+    private void save() {
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            BufferedSink sink = Okio.buffer(Okio.sink(out));
+            sink.writeInt(FILE_VERSION);
+            sink.writeInt(DAYS);
+            sink.writeInt(series.size());
+            for (Map.Entry<String, Series> entry : series.entrySet()) {
+                ByteString key = ByteString.encodeUtf8(entry.getKey());
+                sink.writeInt(key.size());
+                sink.write(key);
+                Series value = entry.getValue();
+                for (int i = 0; i < DAYS; i++) {
+                    sink.writeLong(value.days[i]);
+                    value.histograms[i].writeTo(sink);
+                }
+            }
+            sink.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving latency stats", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    private void load() {
+        try (BufferedSource source = Okio.buffer(Okio.source(file.openRead()))) {
+            if (source.readInt() != FILE_VERSION || source.readInt() != DAYS) {
+                Log.w(TAG, "Ignoring latency stats in an old format");
+                return;
+            }
+            int keyCount = source.readInt();
+            for (int k = 0; k < keyCount && k < MAX_KEYS; k++) {
+                String key = source.readUtf8(source.readInt());
+                Series value = new Series();
+                for (int i = 0; i < DAYS; i++) {
+                    value.days[i] = source.readLong();
+                    value.histograms[i].readFrom(source);
+                }
+                series.put(key, value);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading latency stats, starting over", e);
+            series.clear();
+        }
+    }
+}
\ No newline at end of file
@@ -10,7 +10,16 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cz.nsl.oneactionaclick.SettingsActivity;
 
 import okhttp3.FormBody;
 import okhttp3.OkHttpClient;
@@ -18,9 +27,18 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
+/**
+ * OAuth2 sign-in and access tokens for Home Assistant.
+ *
+ * Tokens are kept in memory and handed out asynchronously. Loading them from preferences,
+ * refreshing and saving all happen on one background thread, so callers never wait on disk
+ * or network, and a refresh is never run twice at the same time: requests arriving while
+ * one is in flight wait for its result. While tokens are being used, they are refreshed in
+ * the background before they get within {@link #REFRESH_MARGIN_MS} of expiring.
+ */
 public class OAuth2Manager {
     private static final String TAG = "OAuth2Manager";
-    
+
     // SharedPreferences keys
     private static final String PREFS_NAME = "cz.nsl.oneactionaclick.AppSettings";
     private static final String PREF_ACCESS_TOKEN = "oauth2_access_token";
@@ -28,37 +46,69 @@ public class OAuth2Manager {
     private static final String PREF_TOKEN_EXPIRY = "oauth2_token_expiry";
     private static final String PREF_CLIENT_ID = "oauth2_client_id";
     private static final String PREF_CLIENT_SECRET = "oauth2_client_secret";
-    
+
     // OAuth2 Constants
     public static final String REDIRECT_URI = "homeassistant://auth-callback";
-    
-    private Context context;
-    private OkHttpClient client;
-    
-    public OAuth2Manager(Context context) {
+
+    // Tokens this close to expiring are not handed out anymore
+    private static final long REFRESH_MARGIN_MS = 5 * 60 * 1000;
+    // Background refreshes start this long before the margin
+    private static final long PROACTIVE_LEAD_MS = 60 * 1000;
+
+    /**
+     * Receives an access token, or why none is available. Called on a background
+     * thread, or right away on the caller's thread if a valid token is in memory.
+     */
+    public interface TokenCallback {
+        void onToken(String accessToken);
+        void onError(String error);
+    }
+
+    private static OAuth2Manager sInstance;
+
+    private final Context context;
+    private final OkHttpClient client;
+    private final ScheduledExecutorService executor;
+
+    // Guarded by this
+    private boolean loaded = false;
+    private String accessToken;
+    private String refreshToken;
+    private long expiryTime;
+    private boolean refreshInFlight = false;
+    private final List<TokenCallback> waiting = new ArrayList<>();
+    private boolean usedSinceRefresh = false;
+    private ScheduledFuture<?> proactiveRefresh;
+
+    public static synchronized OAuth2Manager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OAuth2Manager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private OAuth2Manager(Context context) {
         this.context = context;
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(30, TimeUnit.SECONDS)
-                .build();
+        this.client = SharedHttpClient.get(context);
+        this.executor = Executors.newSingleThreadScheduledExecutor();
     }
-    
+
     /**
      * Generate the authorization URL for Home Assistant OAuth2
      */
     public String getAuthorizationUrl(String baseUrl, String clientId, String redirectUri) {
         // Save client ID for later token requests
         saveClientId(clientId);
-        
+
         // Build the authorization URL
         Uri.Builder builder = Uri.parse(baseUrl + "/auth/authorize").buildUpon()
                 .appendQueryParameter("client_id", clientId)
                 .appendQueryParameter("redirect_uri", redirectUri)
                 .appendQueryParameter("response_type", "code");
-        
+
         return builder.build().toString();
     }
-    
+
     /**
      * Open the authorization URL in a browser
      */
@@ -67,218 +117,343 @@ public class OAuth2Manager {
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         context.startActivity(intent);
     }
-    
+
     /**
-     * Exchange authorization code for tokens
+     * Exchange authorization code for tokens in the background
      */
-    public boolean exchangeCodeForTokens(String baseUrl, String clientId, String clientSecret, String code) {
-        // Save client credentials
-        saveClientId(clientId);
-        saveClientSecret(clientSecret);
-        
-        String redirectUri = REDIRECT_URI;
-        
-        RequestBody formBody = new FormBody.Builder()
-                .add("grant_type", "authorization_code")
-                .add("code", code)
-                .add("client_id", clientId)
-                .add("redirect_uri", redirectUri)
-                .build();
-        
-        if (clientSecret != null && !clientSecret.isEmpty()) {
-            FormBody.Builder newFormBodyBuilder = new FormBody.Builder();
-            for (int i = 0; i < ((FormBody) formBody).size(); i++) {
-                newFormBodyBuilder.addEncoded(((FormBody) formBody).name(i), ((FormBody) formBody).value(i));
+    public void exchangeCodeForTokens(final String baseUrl, final String clientId, final String clientSecret,
+                                      final String code, final TokenCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Save client credentials
+                saveClientId(clientId);
+                getSharedPreferences().edit().putString(PREF_CLIENT_SECRET, clientSecret).commit();
+
+                RequestBody formBody = new FormBody.Builder()
+                        .add("grant_type", "authorization_code")
+                        .add("code", code)
+                        .add("client_id", clientId != null ? clientId : "")
+                        .add("redirect_uri", REDIRECT_URI)
+                        .build();
+
+                if (clientSecret != null && !clientSecret.isEmpty()) {
+                    FormBody.Builder newFormBodyBuilder = new FormBody.Builder();
+                    for (int i = 0; i < ((FormBody) formBody).size(); i++) {
+                        newFormBodyBuilder.addEncoded(((FormBody) formBody).name(i), ((FormBody) formBody).value(i));
+                    }
+                    newFormBodyBuilder.add("client_secret", clientSecret);
+                    formBody = newFormBodyBuilder.build();
+                }
+
+                String token = requestTokens(baseUrl, formBody, "Token exchange");
+                if (token != null) {
+                    callback.onToken(token);
+                } else {
+                    callback.onError("Token exchange failed");
+                }
+            }
+        });
+    }
+
+    /**
+     * Get a valid access token, refreshing it first if it expires within the margin
+     */
+    public void getAccessToken(TokenCallback callback) {
+        String token = null;
+        synchronized (this) {
+            usedSinceRefresh = true;
+            if (loaded && accessToken != null && !accessToken.isEmpty()
+                    && expiryTime - System.currentTimeMillis() > REFRESH_MARGIN_MS) {
+                token = accessToken;
+            } else {
+                waiting.add(callback);
+                startRefresh(false);
             }
-            newFormBodyBuilder.add("client_secret", clientSecret);
-            formBody = newFormBodyBuilder.build();
         }
-        
-        Request request = new Request.Builder()
-                .url(baseUrl + "/auth/token")
-                .post(formBody)
-                .build();
-        
+        if (token != null) {
+            callback.onToken(token);
+        }
+    }
+
+    /**
+     * Get a valid access token, waiting up to timeoutMs for a refresh. Only for background
+     * threads that have nothing else to do meanwhile, like an OkHttp call being authenticated.
+     *
+     * @return the token, or null if there is none or the refresh did not finish in time
+     */
+    public String getAccessTokenBlocking(long timeoutMs) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> result = new AtomicReference<>();
+        getAccessToken(new TokenCallback() {
+            @Override
+            public void onToken(String accessToken) {
+                result.set(accessToken);
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                done.countDown();
+            }
+        });
         try {
-            Response response = client.newCall(request).execute();
-            if (response.isSuccessful() && response.body() != null) {
-                String responseBody = response.body().string();
-                parseAndSaveTokenResponse(responseBody);
-                return true;
-            } else {
-                Log.e(TAG, "Token exchange failed: " + (response.body() != null ? response.body().string() : "Unknown error"));
-                return false;
+            done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result.get();
+    }
+
+    /**
+     * Report that the server rejected a token before its expiry time, so the next request
+     * gets a new one. Ignored if the token was already replaced, so requests that failed
+     * together cause a single refresh.
+     */
+    public void invalidateAccessToken(String rejectedToken) {
+        synchronized (this) {
+            if (rejectedToken == null || !rejectedToken.equals(accessToken)) {
+                return;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Token exchange error", e);
-            return false;
+            expiryTime = 0;
         }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getSharedPreferences().edit().putLong(PREF_TOKEN_EXPIRY, 0).commit();
+            }
+        });
     }
-    
+
     /**
-     * Refresh access token if expired
+     * Clear all auth tokens
      */
-    public boolean refreshTokenIfNeeded() {
-        // Check if token is expired or will expire soon (within 5 minutes)
-        long expiryTime = getTokenExpiryTime();
-        long currentTime = System.currentTimeMillis();
-        
-        if (expiryTime - currentTime > 5 * 60 * 1000) {
-            // Token is still valid
-            return true;
+    public void clearTokens() {
+        synchronized (this) {
+            loaded = true;
+            accessToken = null;
+            refreshToken = null;
+            expiryTime = 0;
+            cancelProactiveRefresh();
         }
-        
-        String refreshToken = getRefreshToken();
-        if (refreshToken == null || refreshToken.isEmpty()) {
-            return false;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences.Editor editor = getSharedPreferences().edit();
+                editor.remove(PREF_ACCESS_TOKEN);
+                editor.remove(PREF_REFRESH_TOKEN);
+                editor.remove(PREF_TOKEN_EXPIRY);
+                editor.commit();
+            }
+        });
+    }
+
+    // Called with the lock held
+    private void startRefresh(final boolean force) {
+        if (refreshInFlight) {
+            return;
         }
-        
-        String baseUrl = getBaseUrl();
-        String clientId = getClientId();
-        
-        RequestBody formBody = new FormBody.Builder()
-                .add("grant_type", "refresh_token")
-                .add("refresh_token", refreshToken)
-                .add("client_id", clientId)
-                .build();
-        
+        refreshInFlight = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refresh(force);
+            }
+        });
+    }
+
+    /**
+     * Runs on the executor: load the tokens if needed, refresh them if they are about to
+     * expire or force is set, and hand the result to everyone who waited for it
+     */
+    private void refresh(boolean force) {
+        load();
+
+        String token = null;
+        String error = null;
+        String currentRefreshToken;
+        synchronized (this) {
+            if (!force && accessToken != null && !accessToken.isEmpty()
+                    && expiryTime - System.currentTimeMillis() > REFRESH_MARGIN_MS) {
+                token = accessToken;
+            }
+            currentRefreshToken = refreshToken;
+        }
+
+        if (token == null) {
+            if (currentRefreshToken == null || currentRefreshToken.isEmpty()) {
+                error = "No OAuth2 refresh token, sign in again";
+            } else {
+                String clientId = getClientId();
+                RequestBody formBody = new FormBody.Builder()
+                        .add("grant_type", "refresh_token")
+                        .add("refresh_token", currentRefreshToken)
+                        .add("client_id", clientId != null ? clientId : "")
+                        .build();
+                token = requestTokens(ConnectionProfile.getInstance(context).getBaseUrl(), formBody, "Token refresh");
+                if (token == null) {
+                    error = "Failed to refresh OAuth2 token";
+                }
+            }
+        }
+
+        List<TokenCallback> callbacks;
+        synchronized (this) {
+            // A token inside the margin still works until it actually expires
+            if (token == null && accessToken != null && !accessToken.isEmpty()
+                    && expiryTime > System.currentTimeMillis()) {
+                token = accessToken;
+            }
+            refreshInFlight = false;
+            callbacks = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (TokenCallback callback : callbacks) {
+            if (token != null) {
+                callback.onToken(token);
+            } else {
+                callback.onError(error);
+            }
+        }
+    }
+
+    /**
+     * Post a token request and keep the tokens it returns. Runs on the executor.
+     *
+     * @return the new access token, or null if the request failed
+     */
+    private String requestTokens(String baseUrl, RequestBody formBody, String what) {
         Request request = new Request.Builder()
                 .url(baseUrl + "/auth/token")
                 .post(formBody)
                 .build();
-        
-        try {
-            Response response = client.newCall(request).execute();
+
+        try (Response response = client.newCall(request).execute()) {
             if (response.isSuccessful() && response.body() != null) {
-                String responseBody = response.body().string();
-                parseAndSaveTokenResponse(responseBody);
-                return true;
+                return parseAndSaveTokenResponse(response.body().string());
             } else {
-                Log.e(TAG, "Token refresh failed: " + (response.body() != null ? response.body().string() : "Unknown error"));
-                return false;
+                Log.e(TAG, what + " failed: " + (response.body() != null ? response.body().string() : "Unknown error"));
+                return null;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Token refresh error", e);
-            return false;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, what + " error", e);
+            return null;
         }
     }
-    
+
     /**
-     * Parse and save token response
+     * Parse a token response into memory, save it and schedule its background refresh
      */
-    private void parseAndSaveTokenResponse(String responseBody) throws IOException {
+    private String parseAndSaveTokenResponse(String responseBody) throws IOException {
+        String newAccessToken;
+        String savedRefreshToken;
+        long newExpiryTime;
         try {
             JSONObject json = new JSONObject(responseBody);
-            String accessToken = json.getString("access_token");
-            String refreshToken = json.optString("refresh_token", null);
+            newAccessToken = json.getString("access_token");
+            String newRefreshToken = json.optString("refresh_token", null);
             long expiresIn = json.getLong("expires_in");
-            
-            SharedPreferences.Editor editor = getSharedPreferences().edit();
-            editor.putString(PREF_ACCESS_TOKEN, accessToken);
-            
-            // Save refresh token only if it's included in the response
-            // (token refresh responses might not include a new refresh token)
-            if (refreshToken != null && !refreshToken.isEmpty()) {
-                editor.putString(PREF_REFRESH_TOKEN, refreshToken);
+            newExpiryTime = System.currentTimeMillis() + (expiresIn * 1000);
+
+            synchronized (this) {
+                loaded = true;
+                accessToken = newAccessToken;
+                // Token refresh responses might not include a new refresh token
+                if (newRefreshToken != null && !newRefreshToken.isEmpty()) {
+                    refreshToken = newRefreshToken;
+                }
+                savedRefreshToken = refreshToken;
+                expiryTime = newExpiryTime;
+                usedSinceRefresh = false;
+                scheduleProactiveRefresh();
             }
-            
-            // Calculate token expiry time
-            long expiryTime = System.currentTimeMillis() + (expiresIn * 1000);
-            editor.putLong(PREF_TOKEN_EXPIRY, expiryTime);
-            
-            editor.apply();
         } catch (JSONException e) {
             throw new IOException("Failed to parse token response", e);
         }
+
+        // Outside the lock, so callers with a valid token never wait for the disk
+        SharedPreferences.Editor editor = getSharedPreferences().edit();
+        editor.putString(PREF_ACCESS_TOKEN, newAccessToken);
+        editor.putString(PREF_REFRESH_TOKEN, savedRefreshToken);
+        editor.putLong(PREF_TOKEN_EXPIRY, newExpiryTime);
+        editor.commit();
+        return newAccessToken;
     }
-    
+
     /**
-     * Get current access token
+     * Read the saved tokens the first time they are needed. Runs on the executor.
      */
-    public String getAccessToken() {
-        return getSharedPreferences().getString(PREF_ACCESS_TOKEN, null);
+    private void load() {
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+        }
+        SharedPreferences prefs = getSharedPreferences();
+        String savedAccessToken = prefs.getString(PREF_ACCESS_TOKEN, null);
+        String savedRefreshToken = prefs.getString(PREF_REFRESH_TOKEN, null);
+        long savedExpiryTime = prefs.getLong(PREF_TOKEN_EXPIRY, 0);
+
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            accessToken = savedAccessToken;
+            refreshToken = savedRefreshToken;
+            expiryTime = savedExpiryTime;
+            scheduleProactiveRefresh();
+        }
     }
-    
-    /**
-     * Get refresh token
-     */
-    private String getRefreshToken() {
-        return getSharedPreferences().getString(PREF_REFRESH_TOKEN, null);
+
+    // Called with the lock held
+    private void scheduleProactiveRefresh() {
+        cancelProactiveRefresh();
+        if (refreshToken == null || refreshToken.isEmpty()) {
+            return;
+        }
+        long delay = Math.max(0, expiryTime - REFRESH_MARGIN_MS - PROACTIVE_LEAD_MS - System.currentTimeMillis());
+        proactiveRefresh = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (OAuth2Manager.this) {
+                    proactiveRefresh = null;
+                    // Nobody asked for a token since the last refresh, so nobody is waiting for the next one
+                    if (!usedSinceRefresh) {
+                        return;
+                    }
+                    startRefresh(true);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
-    
-    /**
-     * Get token expiry time
-     */
-    private long getTokenExpiryTime() {
-        return getSharedPreferences().getLong(PREF_TOKEN_EXPIRY, 0);
+
+    // Called with the lock held
+    private void cancelProactiveRefresh() {
+        if (proactiveRefresh != null) {
+            proactiveRefresh.cancel(false);
+            proactiveRefresh = null;
+        }
     }
-    
+
     /**
      * Get client ID
      */
     private String getClientId() {
         return getSharedPreferences().getString(PREF_CLIENT_ID, null);
     }
-    
+
     /**
      * Save client ID
      */
     private void saveClientId(String clientId) {
         getSharedPreferences().edit().putString(PREF_CLIENT_ID, clientId).apply();
     }
-    
-    /**
-     * Get client secret
-     */
-    private String getClientSecret() {
-        return getSharedPreferences().getString(PREF_CLIENT_SECRET, null);
-    }
-    
-    /**
-     * Save client secret
-     */
-    public void saveClientSecret(String clientSecret) {
-        getSharedPreferences().edit().putString(PREF_CLIENT_SECRET, clientSecret).apply();
-    }
-    
-    /**
-     * Check if we have valid tokens
-     */
-    public boolean hasValidTokens() {
-        String accessToken = getAccessToken();
-        return accessToken != null && !accessToken.isEmpty() && !isTokenExpired();
-    }
-    
-    /**
-     * Check if token is expired
-     */
-    public boolean isTokenExpired() {
-        long expiryTime = getTokenExpiryTime();
-        return System.currentTimeMillis() >= expiryTime;
-    }
-    
-    /**
-     * Clear all auth tokens
-     */
-    public void clearTokens() {
-        SharedPreferences.Editor editor = getSharedPreferences().edit();
-        editor.remove(PREF_ACCESS_TOKEN);
-        editor.remove(PREF_REFRESH_TOKEN);
-        editor.remove(PREF_TOKEN_EXPIRY);
-        editor.apply();
-    }
-    
-    /**
-     * Get base URL from settings
-     */
-    private String getBaseUrl() {
-        return getSharedPreferences().getString("home_assistant_url", null);
-    }
-    
+
     /**
      * Get shared preferences
      */
     private SharedPreferences getSharedPreferences() {
         return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk copy of the request log that survives the process being killed.
+ *
+ * The journal is a fixed-size file of 256-byte records, memory-mapped once. Entry n goes to
+ * slot n % capacity and overwrites the oldest one. Writing a record is a handful of stores
+ * into the mapping; the kernel writes the pages back on its own, so a record is safe as soon
+ * as the store returns, even if the process dies right after.
+ *
+ * A record starts with its sequence number plus one. It is zeroed while the record is being
+ * rewritten, so readers skip half-written records instead of showing mixed fields.
+ */
+final class RequestJournal {
+    static final String JOURNAL_FILE = "request_journal.bin";
+
+    private static final int MAGIC = 0x48414a31; // "HAJ1"
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 256;
+    static final int CAPACITY = 4096; // 1 MB of records
+
+    // Record layout
+    private static final int OFF_SEQUENCE = 0;  // long, sequence + 1, 0 while empty or being written
+    private static final int OFF_TIMESTAMP = 8; // long
+    private static final int OFF_DURATION = 16; // long
+    private static final int OFF_STATUS = 24;   // int
+    private static final int OFF_LENGTHS = 28;  // one unsigned byte per text field
+    private static final int OFF_TEXT = 32;     // method, url, response size, error, truncated to fit
+
+    private static final int MAX_METHOD = 8;
+    private static final int MAX_URL = 128;
+    private static final int MAX_SIZE = 24;
+    private static final int MAX_ERROR = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+    private final AtomicLong nextSequence;
+
+    private RequestJournal(MappedByteBuffer buffer, long nextSequence) {
+        this.buffer = buffer;
+        this.nextSequence = new AtomicLong(nextSequence);
+    }
+
+    /**
+     * Map the journal file, creating or resetting it if it is missing or in another format
+     */
+    static RequestJournal open(File file) throws IOException {
+        long size = HEADER_SIZE + (long) RECORD_SIZE * CAPACITY;
+        // The mapping stays valid after the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size) {
+                raf.setLength(0);
+                raf.setLength(size); // Zero filled, i.e. all records empty
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != RECORD_SIZE || buffer.getInt(8) != CAPACITY) {
+                for (int slot = 0; slot < CAPACITY; slot++) {
+                    buffer.putLong(HEADER_SIZE + slot * RECORD_SIZE + OFF_SEQUENCE, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, RECORD_SIZE);
+                buffer.putInt(8, CAPACITY);
+            }
+
+            // Continue after the newest record
+            long next = 0;
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                next = Math.max(next, buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + OFF_SEQUENCE));
+            }
+            return new RequestJournal(buffer, next);
+        }
+    }
+
+    /**
+     * Give a new entry a slot and write it
+     */
+    void append(HomeAssistantApiClient.ApiRequestLog log) {
+        log.journalSequence = nextSequence.getAndIncrement();
+        write(log);
+    }
+
+    /**
+     * Rewrite an entry's record after it changed
+     */
+    void write(HomeAssistantApiClient.ApiRequestLog log) {
+        long sequence = log.journalSequence;
+        if (sequence < 0) {
+            return;
+        }
+        int offset = offsetOf(sequence);
+        long stored = buffer.getLong(offset + OFF_SEQUENCE);
+        if (stored > sequence + 1) {
+            return; // The journal wrapped, the slot belongs to a newer entry now
+        }
+
+        buffer.putLong(offset + OFF_SEQUENCE, 0);
+        buffer.putLong(offset + OFF_TIMESTAMP, log.getTimestampMillis());
+        buffer.putLong(offset + OFF_DURATION, log.getDurationMs());
+        buffer.putInt(offset + OFF_STATUS, log.getStatusCode());
+
+        // Absolute stores only touch this record, a duplicate keeps the position private
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + OFF_TEXT);
+        putText(view, offset + OFF_LENGTHS, log.getMethod(), MAX_METHOD);
+        putText(view, offset + OFF_LENGTHS + 1, log.getUrl(), MAX_URL);
+        putText(view, offset + OFF_LENGTHS + 2, log.getResponseSize(), MAX_SIZE);
+        putText(view, offset + OFF_LENGTHS + 3, log.getErrorMessage(), MAX_ERROR);
+
+        buffer.putLong(offset + OFF_SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Read back up to max of the newest entries, most recent first
+     */
+    List<HomeAssistantApiClient.ApiRequestLog> readRecent(int max) {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - Math.min(max, CAPACITY));
+        List<HomeAssistantApiClient.ApiRequestLog> result = new ArrayList<>((int) (end - start));
+        for (long sequence = end - 1; sequence >= start; sequence--) {
+            HomeAssistantApiClient.ApiRequestLog log = read(sequence);
+            if (log != null) {
+                result.add(log);
+            }
+        }
+        return result;
+    }
+
+    private HomeAssistantApiClient.ApiRequestLog read(long sequence) {
+        int offset = offsetOf(sequence);
+        if (buffer.getLong(offset + OFF_SEQUENCE) != sequence + 1) {
+            return null;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + OFF_TEXT);
+        String method = getText(view, offset + OFF_LENGTHS, MAX_METHOD);
+        String url = getText(view, offset + OFF_LENGTHS + 1, MAX_URL);
+        String responseSize = getText(view, offset + OFF_LENGTHS + 2, MAX_SIZE);
+        String errorMessage = getText(view, offset + OFF_LENGTHS + 3, MAX_ERROR);
+
+        HomeAssistantApiClient.ApiRequestLog log = new HomeAssistantApiClient.ApiRequestLog(
+                method, url, buffer.getLong(offset + OFF_TIMESTAMP));
+        log.setResponse(buffer.getInt(offset + OFF_STATUS), responseSize, buffer.getLong(offset + OFF_DURATION));
+        if (!errorMessage.isEmpty()) {
+            log.setError(errorMessage, log.getDurationMs());
+        }
+        log.journalSequence = sequence;
+
+        // Rewritten while we were reading
+        if (buffer.getLong(offset + OFF_SEQUENCE) != sequence + 1) {
+            return null;
+        }
+        return log;
+    }
+
+    private int offsetOf(long sequence) {
+        return HEADER_SIZE + (int) (sequence % CAPACITY) * RECORD_SIZE;
+    }
+
+    private void putText(ByteBuffer view, int lengthIndex, String text, int max) {
+        byte[] bytes = text != null ? text.getBytes(UTF_8) : new byte[0];
+        int length = Math.min(bytes.length, max);
+        view.put(bytes, 0, length);
+        view.position(view.position() + max - length);
+        buffer.put(lengthIndex, (byte) length);
+    }
+
+    private String getText(ByteBuffer view, int lengthIndex, int max) {
+        int length = Math.min(buffer.get(lengthIndex) & 0xFF, max);
+        byte[] bytes = new byte[length];
+        int start = view.position();
+        view.get(bytes);
+        view.position(start + max);
+        return new String(bytes, UTF_8);
+    }
+}
\ No newline at end of file
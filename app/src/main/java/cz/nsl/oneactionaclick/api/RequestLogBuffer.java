@@ -0,0 +1,59 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of request log entries that any number of threads can write without locks.
+ *
+ * A writer claims the next sequence number and stores its entry in slot sequence % capacity.
+ * Readers walk back from the newest claimed sequence and keep only entries whose own sequence
+ * matches the one they were looked up for, so a slot that is not filled yet or is being
+ * overwritten is skipped rather than waited for. Neither side ever blocks the other.
+ */
+final class RequestLogBuffer {
+    private final AtomicReferenceArray<HomeAssistantApiClient.ApiRequestLog> slots;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    // Entries with a lower sequence were cleared
+    private volatile long clearedBefore;
+
+    RequestLogBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    void add(HomeAssistantApiClient.ApiRequestLog log) {
+        long sequence = nextSequence.getAndIncrement();
+        log.sequence = sequence; // Published by the volatile store below
+        slots.set((int) (sequence & mask), log);
+    }
+
+    /**
+     * Copy the entries currently in the ring, most recent first
+     */
+    List<HomeAssistantApiClient.ApiRequestLog> snapshot() {
+        long end = nextSequence.get();
+        long start = Math.max(Math.max(0, end - capacity), clearedBefore);
+        List<HomeAssistantApiClient.ApiRequestLog> result = new ArrayList<>((int) Math.max(0, end - start));
+        for (long sequence = end - 1; sequence >= start; sequence--) {
+            HomeAssistantApiClient.ApiRequestLog log = slots.get((int) (sequence & mask));
+            if (log != null && log.sequence == sequence) {
+                result.add(log);
+            }
+        }
+        return result;
+    }
+
+    void clear() {
+        clearedBefore = nextSequence.get();
+    }
+}
\ No newline at end of file
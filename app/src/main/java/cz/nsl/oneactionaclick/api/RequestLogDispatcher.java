@@ -0,0 +1,96 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes request log changes to listeners on the main thread.
+ *
+ * Writers only enqueue the changed entry; the first change after a delivery schedules one
+ * Choreographer frame callback that hands everything collected so far to the listeners,
+ * so a burst of requests costs at most one UI update per frame. Without listeners a
+ * change costs a single volatile read.
+ */
+final class RequestLogDispatcher {
+    private static final CopyOnWriteArrayList<HomeAssistantApiClient.RequestLogListener> listeners =
+            new CopyOnWriteArrayList<>();
+    private static final ConcurrentLinkedQueue<HomeAssistantApiClient.ApiRequestLog> pending =
+            new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean frameScheduled = new AtomicBoolean(false);
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final Choreographer.FrameCallback deliverCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            deliver();
+        }
+    };
+
+    private static final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            // Choreographer is per looper, so get it on the main thread
+            Choreographer.getInstance().postFrameCallback(deliverCallback);
+        }
+    };
+
+    private RequestLogDispatcher() {
+    }
+
+    static void addListener(HomeAssistantApiClient.RequestLogListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    static void removeListener(HomeAssistantApiClient.RequestLogListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty()) {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Record that an entry was added or updated, from any thread
+     */
+    static void changed(HomeAssistantApiClient.ApiRequestLog log) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        pending.add(log);
+        if (frameScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                scheduleFrame.run();
+            } else {
+                mainHandler.post(scheduleFrame);
+            }
+        }
+    }
+
+    private static void deliver() {
+        // Changes arriving from here on schedule the next frame
+        frameScheduled.set(false);
+
+        // An entry that changed several times is delivered once, at its first position
+        Set<HomeAssistantApiClient.ApiRequestLog> changed = new LinkedHashSet<>();
+        HomeAssistantApiClient.ApiRequestLog log;
+        while ((log = pending.poll()) != null) {
+            changed.add(log);
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        List<HomeAssistantApiClient.ApiRequestLog> entries = new ArrayList<>(changed);
+        for (HomeAssistantApiClient.RequestLogListener listener : listeners) {
+            listener.onRequestLogChanged(entries);
+        }
+    }
+}
\ No newline at end of file
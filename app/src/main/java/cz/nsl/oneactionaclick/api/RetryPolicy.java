@@ -0,0 +1,144 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed request is worth another attempt and how long to wait before it.
+ *
+ * Failures where the request never reached the server (DNS, connect errors) are retried
+ * for every request. Server errors are only retried when repeating the request cannot
+ * change the outcome, i.e. for reads and idempotent service calls. Rejected credentials
+ * are not retried here, {@link TokenAuthenticator} has already replayed those once, and
+ * neither is a request that could not get an access token: it was not sent, but asking
+ * for the token again right away would only fail the same way.
+ */
+public final class RetryPolicy {
+    public enum FailureKind {
+        DNS,
+        CONNECT_TIMEOUT,
+        NO_TOKEN,
+        SERVER_ERROR,
+        UNAUTHORIZED,
+        OTHER
+    }
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BASE_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 8000;
+
+    // Services that leave the entity in the same state no matter how often they are called.
+    // toggle, press, trigger, increment and the like are deliberately missing.
+    private static final Set<String> IDEMPOTENT_SERVICES = new HashSet<>(Arrays.asList(
+            "turn_on", "turn_off",
+            "open_cover", "close_cover", "stop_cover",
+            "open_valve", "close_valve",
+            "lock", "unlock",
+            "reload"
+    ));
+
+    private final boolean idempotent;
+
+    private RetryPolicy(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * Policy for requests that only read data, such as /api/states and /api/services
+     */
+    public static RetryPolicy forRead() {
+        return new RetryPolicy(true);
+    }
+
+    /**
+     * Policy for a service call, which may only be repeated if the service is idempotent
+     */
+    public static RetryPolicy forServiceCall(String service) {
+        return new RetryPolicy(isIdempotentService(service));
+    }
+
+    /**
+     * Check whether calling a service twice has the same effect as calling it once
+     */
+    public static boolean isIdempotentService(String service) {
+        return service != null && (IDEMPOTENT_SERVICES.contains(service) || service.startsWith("set_"));
+    }
+
+    /**
+     * Classify a failure to get any response
+     */
+    public static FailureKind classify(IOException e) {
+        if (e instanceof TokenUnavailableException) {
+            return FailureKind.NO_TOKEN;
+        }
+        if (e instanceof UnknownHostException) {
+            return FailureKind.DNS;
+        }
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException) {
+            return FailureKind.CONNECT_TIMEOUT;
+        }
+        if (e instanceof SocketTimeoutException) {
+            // Connect and read timeouts share a type; only a connect timeout means nothing was sent
+            String message = e.getMessage();
+            if (message != null && message.toLowerCase(Locale.ROOT).contains("connect")) {
+                return FailureKind.CONNECT_TIMEOUT;
+            }
+        }
+        return FailureKind.OTHER;
+    }
+
+    /**
+     * Classify an unsuccessful HTTP status code
+     */
+    public static FailureKind classify(int statusCode) {
+        if (statusCode == 401) {
+            return FailureKind.UNAUTHORIZED;
+        }
+        if (statusCode >= 500) {
+            return FailureKind.SERVER_ERROR;
+        }
+        return FailureKind.OTHER;
+    }
+
+    public int getMaxAttempts() {
+        return MAX_ATTEMPTS;
+    }
+
+    /**
+     * @param kind    what went wrong
+     * @param attempt number of the attempt that failed, starting at 1
+     * @return true if the request should be made again
+     */
+    public boolean shouldRetry(FailureKind kind, int attempt) {
+        if (attempt >= MAX_ATTEMPTS) {
+            return false;
+        }
+        switch (kind) {
+            case DNS:
+            case CONNECT_TIMEOUT:
+                return true; // The request never left the device
+            case SERVER_ERROR:
+                return idempotent;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Delay before the attempt after the given one: exponential backoff with jitter
+     * over the upper half of the interval, so clients that failed together spread out.
+     */
+    public long backoffMs(int attempt) {
+        long ceiling = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt - 1, 16));
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * Process-wide HTTP runtime shared by every Home Assistant request.
+ * Keeping a single OkHttpClient means widget taps, the configuration screen
+ * and OAuth2 token refreshes all reuse the same warm keep-alive connections
+ * and dispatcher threads instead of paying a new TCP/TLS handshake each time.
+ * Requests rejected with 401 get one replay with a refreshed OAuth2 token,
+ * see {@link TokenAuthenticator}.
+ * TLS sessions outlive the process, see {@link TlsSessionCache}, so the first
+ * HTTPS request after a cold start can still skip the full handshake.
+ */
+public final class SharedHttpClient {
+    // Connection pool tuning: a handful of idle sockets is plenty for a single
+    // Home Assistant host, kept around long enough to span consecutive taps
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    // Dispatcher limits
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 8;
+
+    // Timeouts in seconds
+    private static final int CONNECT_TIMEOUT = 30;
+    private static final int READ_TIMEOUT = 30;
+
+    private static volatile OkHttpClient sClient;
+
+    private SharedHttpClient() {
+    }
+
+    /**
+     * Get the shared client, creating it on first use
+     */
+    public static OkHttpClient get(Context context) {
+        OkHttpClient client = sClient;
+        if (client == null) {
+            synchronized (SharedHttpClient.class) {
+                client = sClient;
+                if (client == null) {
+                    client = createClient(context);
+                    sClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private static OkHttpClient createClient(Context context) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .authenticator(new TokenAuthenticator(context));
+        TlsSessionCache.getInstance(context).install(builder);
+        return builder.build();
+    }
+}
@@ -0,0 +1,338 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import org.conscrypt.Conscrypt;
+import org.conscrypt.SSLClientSessionCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Keeps TLS sessions on disk, so the first HTTPS request after the process was started
+ * can resume a session instead of doing a full handshake.
+ *
+ * The platform TLS stack keeps sessions in memory only, so the shared client uses Conscrypt,
+ * whose client session cache can be backed by our own storage. Each host gets one file in
+ * the no-backup directory, encrypted with an AES-GCM key that never leaves the Android
+ * Keystore. Below Android 6 there is no such key and sessions stay in memory.
+ *
+ * Handshakes on sockets of the shared client are counted as resumed or full.
+ */
+public final class TlsSessionCache {
+    private static final String TAG = "TlsSessionCache";
+
+    private static final String DIRECTORY = "tls_sessions";
+    private static final String KEY_ALIAS = "tls_session_cache";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH_BITS = 128;
+
+    // Servers stop accepting session tickets long before this, older files are just deleted
+    private static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static TlsSessionCache sInstance;
+
+    private final File directory;
+    private final ExecutorService writeExecutor;
+
+    private final AtomicInteger resumedHandshakes = new AtomicInteger();
+    private final AtomicInteger fullHandshakes = new AtomicInteger();
+
+    // Loaded on first use, guarded by this
+    private SecretKey key;
+
+    public static synchronized TlsSessionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TlsSessionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TlsSessionCache(Context context) {
+        this.directory = new File(context.getNoBackupFilesDir(), DIRECTORY);
+        this.writeExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Make the client use Conscrypt with the persistent session cache. If that fails
+     * the client keeps the platform's TLS stack.
+     */
+    void install(OkHttpClient.Builder builder) {
+        try {
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init((KeyStore) null);
+            X509TrustManager trustManager = null;
+            for (TrustManager candidate : trustManagerFactory.getTrustManagers()) {
+                if (candidate instanceof X509TrustManager) {
+                    trustManager = (X509TrustManager) candidate;
+                    break;
+                }
+            }
+            if (trustManager == null) {
+                Log.w(TAG, "No X509 trust manager, keeping the platform TLS stack");
+                return;
+            }
+
+            Provider provider = Conscrypt.newProvider();
+            SSLContext sslContext = SSLContext.getInstance("TLS", provider);
+            sslContext.init(null, new TrustManager[]{trustManager}, null);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Conscrypt.setClientSessionCache(sslContext, new Store());
+            }
+
+            builder.sslSocketFactory(new CountingSocketFactory(sslContext.getSocketFactory()), trustManager);
+        } catch (GeneralSecurityException | RuntimeException | UnsatisfiedLinkError e) {
+            Log.w(TAG, "Conscrypt not available, keeping the platform TLS stack", e);
+        }
+    }
+
+    public int getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
+    public int getFullHandshakeCount() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Session data by host and port, read from and written to encrypted files
+     */
+    @RequiresApi(Build.VERSION_CODES.M)
+    private class Store implements SSLClientSessionCache {
+        @Override
+        public byte[] getSessionData(String host, int port) {
+            File file = fileFor(host, port);
+            if (!file.exists()) {
+                return null;
+            }
+            if (System.currentTimeMillis() - file.lastModified() > MAX_AGE_MS) {
+                file.delete();
+                return null;
+            }
+
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        decrypt(new AtomicFile(file).readFully())));
+                // The file name is a hash, make sure the session is for this very host
+                if (!in.readUTF().equals(host) || in.readInt() != port) {
+                    return null;
+                }
+                byte[] sessionData = new byte[in.readInt()];
+                in.readFully(sessionData);
+                return sessionData;
+            } catch (IOException | GeneralSecurityException e) {
+                // E.g. the key was lost with a backup restore, the session is worthless then
+                Log.w(TAG, "Dropping unreadable TLS session for " + host, e);
+                file.delete();
+                return null;
+            }
+        }
+
+        @Override
+        public void putSessionData(SSLSession session, final byte[] sessionData) {
+            final String host = session.getPeerHost();
+            final int port = session.getPeerPort();
+            if (host == null || sessionData == null) {
+                return;
+            }
+
+            // Called during the handshake, the request should not wait for the disk
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    AtomicFile file = new AtomicFile(fileFor(host, port));
+                    FileOutputStream out = null;
+                    try {
+                        ByteArrayOutputStream plain = new ByteArrayOutputStream(sessionData.length + 64);
+                        DataOutputStream data = new DataOutputStream(plain);
+                        data.writeUTF(host);
+                        data.writeInt(port);
+                        data.writeInt(sessionData.length);
+                        data.write(sessionData);
+                        byte[] encrypted = encrypt(plain.toByteArray());
+
+                        if (!directory.isDirectory() && !directory.mkdirs()) {
+                            throw new IOException("Cannot create " + directory);
+                        }
+                        out = file.startWrite();
+                        out.write(encrypted);
+                        file.finishWrite(out);
+                    } catch (IOException | GeneralSecurityException e) {
+                        Log.w(TAG, "Error saving TLS session for " + host, e);
+                        if (out != null) {
+                            file.failWrite(out);
+                        }
+                    }
+                }
+            });
+        }
+
+        private File fileFor(String host, int port) {
+            String name = host.toLowerCase(Locale.ROOT) + ":" + port;
+            return new File(directory, Integer.toHexString(name.hashCode()));
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private byte[] encrypt(byte[] plain) throws GeneralSecurityException, IOException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getKey());
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(plain);
+
+        byte[] result = new byte[1 + iv.length + encrypted.length];
+        result[0] = (byte) iv.length;
+        System.arraycopy(iv, 0, result, 1, iv.length);
+        System.arraycopy(encrypted, 0, result, 1 + iv.length, encrypted.length);
+        return result;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private byte[] decrypt(byte[] stored) throws GeneralSecurityException, IOException {
+        if (stored.length < 1 || stored.length < 1 + stored[0]) {
+            throw new IOException("Truncated TLS session file");
+        }
+        int ivLength = stored[0];
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_LENGTH_BITS, stored, 1, ivLength));
+        return cipher.doFinal(stored, 1 + ivLength, stored.length - 1 - ivLength);
+    }
+
+    /**
+     * Get the Keystore key, creating it the first time
+     */
+    @RequiresApi(Build.VERSION_CODES.M)
+    private synchronized SecretKey getKey() throws GeneralSecurityException, IOException {
+        if (key != null) {
+            return key;
+        }
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        Key existing = keyStore.getKey(KEY_ALIAS, null);
+        if (existing instanceof SecretKey) {
+            key = (SecretKey) existing;
+            return key;
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        key = generator.generateKey();
+        return key;
+    }
+
+    /**
+     * Hands out the factory's sockets with a listener that counts their handshakes.
+     * A resumed session keeps the creation time of the handshake that made it, so
+     * a session older than its socket was resumed.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long createdAt = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        if (event.getSession().getCreationTime() < createdAt) {
+                            resumedHandshakes.incrementAndGet();
+                        } else {
+                            fullHandshakes.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return count(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
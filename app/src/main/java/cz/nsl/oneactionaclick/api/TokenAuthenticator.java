@@ -0,0 +1,68 @@
+package cz.nsl.oneactionaclick.api;
+
+import android.content.Context;
+import android.util.Log;
+
+import cz.nsl.oneactionaclick.SettingsActivity;
+
+import okhttp3.Authenticator;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.Route;
+
+/**
+ * Answers a 401 from Home Assistant by refreshing the OAuth2 token and replaying the
+ * request once with the new one, so an expired or revoked token costs a round trip
+ * instead of a failed request.
+ *
+ * Home Assistant checks the token before it handles a request, so replaying is safe
+ * even for service calls that are not idempotent. Long-lived tokens cannot be renewed
+ * and their 401s are passed on as they are.
+ */
+final class TokenAuthenticator implements Authenticator {
+    private static final String TAG = "TokenAuthenticator";
+
+    private static final String BEARER = "Bearer ";
+
+    // How long a replay waits for the refresh, in milliseconds
+    private static final long REFRESH_TIMEOUT_MS = 30000;
+
+    private final Context context;
+
+    TokenAuthenticator(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public Request authenticate(Route route, Response response) {
+        String authorization = response.request().header("Authorization");
+
+        // Token endpoint requests and other requests we did not authorize are not ours to retry
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return null;
+        }
+        // Already replayed once, the fresh token was rejected as well
+        if (response.priorResponse() != null) {
+            return null;
+        }
+        if (!SettingsActivity.isUsingOAuth(context)) {
+            return null;
+        }
+
+        OAuth2Manager oauth2Manager = OAuth2Manager.getInstance(context);
+        String rejectedToken = authorization.substring(BEARER.length());
+        oauth2Manager.invalidateAccessToken(rejectedToken);
+
+        // Runs on the call's own thread, which is free to wait for the refresh
+        String token = oauth2Manager.getAccessTokenBlocking(REFRESH_TIMEOUT_MS);
+        if (token == null || token.equals(rejectedToken)) {
+            Log.w(TAG, "No new token to replay " + response.request().url().encodedPath() + " with");
+            return null;
+        }
+
+        Log.d(TAG, "Replaying " + response.request().url().encodedPath() + " with a refreshed token");
+        return response.request().newBuilder()
+                .header("Authorization", BEARER + token)
+                .build();
+    }
+}
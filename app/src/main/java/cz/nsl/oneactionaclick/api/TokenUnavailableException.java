@@ -0,0 +1,12 @@
+package cz.nsl.oneactionaclick.api;
+
+import java.io.IOException;
+
+/**
+ * A request was not sent because no OAuth access token could be obtained for it
+ */
+final class TokenUnavailableException extends IOException {
+    TokenUnavailableException(String message) {
+        super("No access token: " + message);
+    }
+}
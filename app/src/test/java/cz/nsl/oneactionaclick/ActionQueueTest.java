@@ -0,0 +1,95 @@
+package cz.nsl.oneactionaclick;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActionQueueTest {
+
+    @Test
+    public void emptyJournalHasNothingPending() throws IOException {
+        assertTrue(ActionQueue.readPending(new Buffer()).isEmpty());
+    }
+
+    @Test
+    public void replaysAddedEntriesInOrder() throws IOException, JSONException {
+        ActionQueue.Entry first = entry("a", 1, "toggle", 1000);
+        ActionQueue.Entry second = entry("b", 2, "turn_on", 2000);
+        Buffer journal = new Buffer();
+        write(journal, ActionQueue.addRecord(first));
+        write(journal, ActionQueue.addRecord(second));
+
+        List<ActionQueue.Entry> pending = ActionQueue.readPending(journal);
+        assertEquals(2, pending.size());
+        assertEntry(first, pending.get(0));
+        assertEntry(second, pending.get(1));
+    }
+
+    @Test
+    public void doneRecordsRemoveTheirEntries() throws IOException, JSONException {
+        ActionQueue.Entry first = entry("a", 1, "toggle", 1000);
+        ActionQueue.Entry second = entry("b", 1, "toggle", 2000);
+        ActionQueue.Entry third = entry("c", 1, "toggle", 3000);
+        Buffer journal = new Buffer();
+        write(journal, ActionQueue.addRecord(first));
+        write(journal, ActionQueue.addRecord(second));
+        write(journal, ActionQueue.doneRecord(first));
+        write(journal, ActionQueue.addRecord(third));
+        write(journal, ActionQueue.doneRecord(third));
+
+        List<ActionQueue.Entry> pending = ActionQueue.readPending(journal);
+        assertEquals(1, pending.size());
+        assertEntry(second, pending.get(0));
+    }
+
+    @Test
+    public void skipsTornAndEmptyRecords() throws IOException, JSONException {
+        ActionQueue.Entry first = entry("a", 1, "toggle", 1000);
+        ActionQueue.Entry second = entry("b", 1, "toggle", 2000);
+        Buffer journal = new Buffer();
+        write(journal, ActionQueue.addRecord(first));
+        journal.writeUtf8("\n");
+        write(journal, ActionQueue.addRecord(second));
+        // The process died halfway through the done record
+        journal.writeUtf8(ActionQueue.doneRecord(second).toString().substring(0, 10));
+
+        List<ActionQueue.Entry> pending = ActionQueue.readPending(journal);
+        assertEquals(2, pending.size());
+        assertEntry(first, pending.get(0));
+        assertEntry(second, pending.get(1));
+    }
+
+    @Test
+    public void entriesExpireAfterTheirTtl() {
+        ActionQueue.Entry entry = entry("a", 1, "toggle", 1000);
+        assertFalse(ActionQueue.isExpired(entry, 1000));
+        assertFalse(ActionQueue.isExpired(entry, 1000 + ActionQueue.ENTRY_TTL_MS));
+        assertTrue(ActionQueue.isExpired(entry, 1000 + ActionQueue.ENTRY_TTL_MS + 1));
+    }
+
+    private static ActionQueue.Entry entry(String id, int appWidgetId, String service, long queuedAt) {
+        return new ActionQueue.Entry(id, appWidgetId, "light", service, "light.kitchen", queuedAt);
+    }
+
+    private static void write(Buffer journal, JSONObject record) {
+        journal.writeUtf8(record.toString()).writeByte('\n');
+    }
+
+    private static void assertEntry(ActionQueue.Entry expected, ActionQueue.Entry actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.appWidgetId, actual.appWidgetId);
+        assertEquals(expected.domain, actual.domain);
+        assertEquals(expected.service, actual.service);
+        assertEquals(expected.entityId, actual.entityId);
+        assertEquals(expected.queuedAt, actual.queuedAt);
+    }
+}
@@ -0,0 +1,112 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EntitySearchIndexTest {
+    private EntitySearchIndex index;
+
+    @Before
+    public void setUp() {
+        EntityCatalog catalog = new EntityCatalog.Builder()
+                .add(entity("light.kitchen", "Kitchen Ceiling"))
+                .add(entity("light.living_room", "Living Room Lamp"))
+                .add(entity("light.bedroom", "Bedroom"))
+                .add(entity("light.hallway", "Hallway Spots"))
+                .add(entity("switch.kitchen_fan", "Kitchen Fan"))
+                .add(entity("switch.coffee_maker", "Espresso Machine"))
+                .build();
+        index = EntitySearchIndex.build(catalog);
+    }
+
+    @Test
+    public void emptyQueryReturnsTheWholeDomainByFriendlyName() {
+        assertResults(index, "", "light", "light.bedroom", "light.hallway", "light.kitchen", "light.living_room");
+        assertResults(index, "   ", "switch", "switch.coffee_maker", "switch.kitchen_fan");
+    }
+
+    @Test
+    public void unknownDomainHasNoResults() {
+        assertResults(index, "", "cover");
+        assertResults(index, "kitchen", "cover");
+    }
+
+    @Test
+    public void shortQueryMatchesWordPrefixes() {
+        assertResults(index, "k", "light", "light.kitchen");
+        assertResults(index, "ro", "light", "light.living_room");
+        assertResults(index, "li", "light", "light.bedroom", "light.hallway", "light.kitchen", "light.living_room");
+    }
+
+    @Test
+    public void shortQueryDoesNotMatchInsideWords() {
+        assertResults(index, "it", "light");
+        assertResults(index, "oo", "light");
+    }
+
+    @Test
+    public void longQueryMatchesSubstrings() {
+        assertResults(index, "itch", "light", "light.kitchen");
+        assertResults(index, "ROOM", "light", "light.bedroom", "light.living_room");
+        assertResults(index, "fan", "switch", "switch.kitchen_fan");
+    }
+
+    @Test
+    public void matchesTheEntityIdToo() {
+        assertResults(index, "coffee", "switch", "switch.coffee_maker");
+        assertResults(index, "co", "switch", "switch.coffee_maker");
+        assertResults(index, "espresso", "switch", "switch.coffee_maker");
+    }
+
+    @Test
+    public void longQueryWithUnknownTrigramHasNoResults() {
+        assertResults(index, "xyz", "light");
+        assertResults(index, "kitchenx", "light");
+    }
+
+    @Test
+    public void searchIsLimitedToTheDomain() {
+        assertResults(index, "kitchen", "light", "light.kitchen");
+        assertResults(index, "kitchen", "switch", "switch.kitchen_fan");
+    }
+
+    @Test
+    public void everyTermMustMatch() {
+        assertResults(index, "living lamp", "light", "light.living_room");
+        assertResults(index, "lamp kitchen", "light");
+        assertResults(index, "kitchen c", "light", "light.kitchen");
+        assertResults(index, "h sp", "light", "light.hallway");
+    }
+
+    @Test
+    public void searchesCanBeRepeated() {
+        for (int i = 0; i < 3; i++) {
+            assertResults(index, "k", "light", "light.kitchen");
+            assertResults(index, "h", "light", "light.hallway");
+        }
+    }
+
+    private static void assertResults(EntitySearchIndex index, String query, String domain, String... expected) {
+        int[] out = index.newResultBuffer();
+        int count = index.search(query, domain, out);
+        String[] actual = new String[count];
+        for (int i = 0; i < count; i++) {
+            actual[i] = index.getEntity(out[i]).getEntityId();
+        }
+        assertArrayEquals(query + " in " + domain + ": " + Arrays.toString(actual), expected, actual);
+        assertEquals(expected.length, count);
+    }
+
+    private static HomeAssistantEntity entity(String entityId, String friendlyName) {
+        HomeAssistantEntity entity = new HomeAssistantEntity(entityId, "off");
+        if (friendlyName != null) {
+            entity.setFriendlyName(friendlyName);
+        }
+        return entity;
+    }
+}
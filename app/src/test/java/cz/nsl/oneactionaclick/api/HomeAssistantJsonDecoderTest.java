@@ -0,0 +1,132 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HomeAssistantJsonDecoderTest {
+
+    @Before
+    public void setUp() {
+        HomeAssistantJsonDecoder.setReaderFactory(MoshiJsonStreamReader.FACTORY);
+    }
+
+    @After
+    public void tearDown() {
+        HomeAssistantJsonDecoder.setReaderFactory(null);
+    }
+
+    @Test
+    public void decodesServicesInTheArrayFormat() throws IOException {
+        String json = "["
+                + "{\"domain\": \"light\", \"services\": {"
+                + "  \"turn_on\": {\"name\": \"Turn on\", \"fields\": {\"brightness\": {\"example\": 120}}},"
+                + "  \"toggle\": {}}},"
+                + "{\"services\": {\"press\": {}}, \"domain\": \"button\"},"
+                + "{\"domain\": \"broken\"}"
+                + "]";
+        Map<String, List<HomeAssistantService>> services = decodeServices(json);
+
+        assertEquals(2, services.size());
+        assertEquals(Arrays.asList("turn_on", "toggle"), serviceNames(services.get("light")));
+        assertEquals(Arrays.asList("press"), serviceNames(services.get("button")));
+
+        HomeAssistantService turnOn = services.get("light").get(0);
+        assertEquals("light", turnOn.getDomain());
+        JSONObject brightness = (JSONObject) turnOn.getServiceAttributes().get("brightness");
+        assertEquals(120, brightness.get("example"));
+        assertTrue(services.get("light").get(1).getServiceAttributes().isEmpty());
+    }
+
+    @Test
+    public void decodesServicesInTheObjectFormat() throws IOException {
+        String json = "{"
+                + "\"switch\": {\"turn_off\": {\"description\": \"Off\"}, \"turn_on\": {\"fields\": {}}},"
+                + "\"scene\": {\"apply\": {\"fields\": {\"entities\": {\"required\": true}}}}"
+                + "}";
+        Map<String, List<HomeAssistantService>> services = decodeServices(json);
+
+        assertEquals(2, services.size());
+        assertEquals(Arrays.asList("turn_off", "turn_on"), serviceNames(services.get("switch")));
+        HomeAssistantService apply = services.get("scene").get(0);
+        assertEquals("scene.apply", apply.getFullServiceName());
+        assertEquals(true, ((JSONObject) apply.getServiceAttributes().get("entities")).get("required"));
+    }
+
+    @Test
+    public void decodesEmptyServiceResponses() throws IOException {
+        assertTrue(decodeServices("[]").isEmpty());
+        assertTrue(decodeServices("{}").isEmpty());
+    }
+
+    @Test
+    public void decodesEntitiesWithRawAttributes() throws IOException {
+        String json = "["
+                + "{\"entity_id\": \"light.kitchen\", \"state\": \"on\", \"last_changed\": \"2024-01-01\","
+                + " \"attributes\": {\"friendly_name\": \"Kitchen \\\"Main\\\"\", \"brightness\": 200,"
+                + " \"rgb_color\": [255, 128, 0], \"effect\": null, \"supported\": 1.5}},"
+                + "{\"entity_id\": \"sensor.power\", \"state\": null, \"attributes\": {}},"
+                + "{\"state\": \"orphan\"}"
+                + "]";
+        final List<HomeAssistantEntity> entities = new ArrayList<>();
+        int count = HomeAssistantJsonDecoder.decodeEntities(HomeAssistantJsonDecoder.sourceOf(json),
+                new HomeAssistantJsonDecoder.EntityVisitor() {
+                    @Override
+                    public void onEntity(HomeAssistantEntity entity) {
+                        entities.add(entity);
+                    }
+                });
+
+        assertEquals(2, count);
+        HomeAssistantEntity kitchen = entities.get(0);
+        assertEquals("light.kitchen", kitchen.getEntityId());
+        assertEquals("on", kitchen.getState());
+        assertEquals("Kitchen \"Main\"", kitchen.getFriendlyName());
+        assertEquals(200, kitchen.getAttribute("brightness"));
+        assertEquals(1.5, kitchen.getAttribute("supported"));
+        assertSame(JSONObject.NULL, kitchen.getAttribute("effect"));
+        assertEquals(3, ((JSONArray) kitchen.getAttribute("rgb_color")).length());
+        assertNull(kitchen.getAttribute("missing"));
+        assertEquals(5, kitchen.getAttributes().size());
+
+        HomeAssistantEntity power = entities.get(1);
+        assertEquals("", power.getState());
+        assertNull(power.getRawAttributesJson());
+    }
+
+    @Test
+    public void decodesWholeObjects() throws IOException {
+        Map<String, Object> object = HomeAssistantJsonDecoder.decodeObject(
+                "{\"a\": 1, \"b\": 3000000000, \"c\": \"x\", \"d\": false, \"e\": {\"f\": []}}");
+        assertEquals(1, object.get("a"));
+        assertEquals(3000000000L, object.get("b"));
+        assertEquals("x", object.get("c"));
+        assertEquals(false, object.get("d"));
+        assertEquals(0, ((JSONObject) object.get("e")).getJSONArray("f").length());
+    }
+
+    private static Map<String, List<HomeAssistantService>> decodeServices(String json) throws IOException {
+        return HomeAssistantJsonDecoder.decodeServices(HomeAssistantJsonDecoder.sourceOf(json));
+    }
+
+    private static List<String> serviceNames(List<HomeAssistantService> services) {
+        List<String> names = new ArrayList<>();
+        for (HomeAssistantService service : services) {
+            names.add(service.getServiceName());
+        }
+        return names;
+    }
+}
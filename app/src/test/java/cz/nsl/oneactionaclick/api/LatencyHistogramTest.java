@@ -0,0 +1,132 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesGetABucketEach() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.highestValueInBucket(value));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        long lowest = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long highest = LatencyHistogram.highestValueInBucket(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(lowest));
+            assertEquals(i, LatencyHistogram.bucketIndex(highest));
+            lowest = highest + 1;
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE_MS + 1, lowest);
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighthOfTheirValues() {
+        for (int i = 16; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long lowest = LatencyHistogram.highestValueInBucket(i - 1) + 1;
+            long highest = LatencyHistogram.highestValueInBucket(i);
+            assertTrue("bucket " + i, highest - lowest < lowest / 8.0);
+        }
+    }
+
+    @Test
+    public void hasAFixedNumberOfBuckets() {
+        assertEquals(152, LatencyHistogram.BUCKET_COUNT);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void reportsPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(100, histogram.getMaxValue());
+        assertInBucketOf(50, histogram.getValueAtPercentile(50));
+        assertInBucketOf(90, histogram.getValueAtPercentile(90));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void percentileNeverExceedsTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(LatencyHistogram.MAX_VALUE_MS, histogram.getMaxValue());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void addsAnotherHistogram() {
+        LatencyHistogram first = new LatencyHistogram();
+        first.record(10);
+        LatencyHistogram second = new LatencyHistogram();
+        second.record(20);
+        second.record(300);
+        first.add(second);
+        assertEquals(3, first.getTotalCount());
+        assertEquals(300, first.getMaxValue());
+        assertEquals(10, first.getValueAtPercentile(33));
+    }
+
+    @Test
+    public void roundTripsThroughStorage() throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(250);
+        histogram.record(40000);
+
+        Buffer buffer = new Buffer();
+        histogram.writeTo(buffer);
+        LatencyHistogram restored = new LatencyHistogram();
+        restored.record(7);
+        restored.readFrom(buffer);
+
+        assertEquals(4, restored.getTotalCount());
+        assertEquals(40000, restored.getMaxValue());
+        assertEquals(3, restored.getValueAtPercentile(50));
+        assertEquals(histogram.getValueAtPercentile(75), restored.getValueAtPercentile(75));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptBuckets() throws IOException {
+        Buffer buffer = new Buffer();
+        buffer.writeLong(10);
+        buffer.writeShort(1);
+        buffer.writeShort(LatencyHistogram.BUCKET_COUNT);
+        buffer.writeInt(1);
+        new LatencyHistogram().readFrom(buffer);
+    }
+
+    private static void assertInBucketOf(long expected, long actual) {
+        assertEquals(LatencyHistogram.bucketIndex(expected), LatencyHistogram.bucketIndex(actual));
+    }
+}
@@ -0,0 +1,150 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestJournalTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("request_journal", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void newJournalIsEmpty() throws IOException {
+        assertTrue(RequestJournal.open(file).readRecent(10).isEmpty());
+    }
+
+    @Test
+    public void roundTripsEntries() throws IOException {
+        RequestJournal journal = RequestJournal.open(file);
+        HomeAssistantApiClient.ApiRequestLog ok = newLog("GET", "/api/states", 1000);
+        ok.setResponse(200, "12 KB", 85);
+        journal.append(ok);
+        HomeAssistantApiClient.ApiRequestLog failed = newLog("POST", "/api/services/light/toggle", 2000);
+        failed.setError("timeout", 3000);
+        journal.append(failed);
+
+        List<HomeAssistantApiClient.ApiRequestLog> logs = RequestJournal.open(file).readRecent(10);
+        assertEquals(2, logs.size());
+
+        HomeAssistantApiClient.ApiRequestLog newest = logs.get(0);
+        assertEquals("POST", newest.getMethod());
+        assertEquals("/api/services/light/toggle", newest.getUrl());
+        assertEquals(2000, newest.getTimestampMillis());
+        assertEquals("timeout", newest.getErrorMessage());
+        assertEquals(3000, newest.getDurationMs());
+
+        HomeAssistantApiClient.ApiRequestLog oldest = logs.get(1);
+        assertEquals("GET", oldest.getMethod());
+        assertEquals(200, oldest.getStatusCode());
+        assertEquals("12 KB", oldest.getResponseSize());
+        assertEquals(85, oldest.getDurationMs());
+        assertEquals("", oldest.getErrorMessage());
+    }
+
+    @Test
+    public void rewritesAnEntryInPlace() throws IOException {
+        RequestJournal journal = RequestJournal.open(file);
+        HomeAssistantApiClient.ApiRequestLog log = newLog("GET", "/api/", 1000);
+        journal.append(log);
+        log.setResponse(200, "1 KB", 40);
+        journal.write(log);
+
+        List<HomeAssistantApiClient.ApiRequestLog> logs = journal.readRecent(10);
+        assertEquals(1, logs.size());
+        assertEquals(200, logs.get(0).getStatusCode());
+        assertEquals(40, logs.get(0).getDurationMs());
+    }
+
+    @Test
+    public void truncatesLongText() throws IOException {
+        StringBuilder url = new StringBuilder("/api/states/");
+        while (url.length() < 300) {
+            url.append("sensor.very_long_name_");
+        }
+        RequestJournal journal = RequestJournal.open(file);
+        journal.append(newLog("GET", url.toString(), 1000));
+
+        String stored = journal.readRecent(1).get(0).getUrl();
+        assertEquals(url.substring(0, stored.length()), stored);
+        assertTrue(stored.length() < url.length());
+    }
+
+    @Test
+    public void limitsTheNumberOfEntriesRead() throws IOException {
+        RequestJournal journal = RequestJournal.open(file);
+        for (int i = 0; i < 5; i++) {
+            journal.append(newLog("GET", "/" + i, i));
+        }
+        List<HomeAssistantApiClient.ApiRequestLog> logs = journal.readRecent(2);
+        assertEquals(2, logs.size());
+        assertEquals("/4", logs.get(0).getUrl());
+        assertEquals("/3", logs.get(1).getUrl());
+    }
+
+    @Test
+    public void wrapsAroundAndContinuesAfterReopening() throws IOException {
+        RequestJournal journal = RequestJournal.open(file);
+        int total = RequestJournal.CAPACITY + 10;
+        for (int i = 0; i < total; i++) {
+            journal.append(newLog("GET", "/" + i, i));
+        }
+
+        List<HomeAssistantApiClient.ApiRequestLog> logs = RequestJournal.open(file).readRecent(Integer.MAX_VALUE);
+        assertEquals(RequestJournal.CAPACITY, logs.size());
+        assertEquals("/" + (total - 1), logs.get(0).getUrl());
+        assertEquals("/10", logs.get(logs.size() - 1).getUrl());
+
+        RequestJournal reopened = RequestJournal.open(file);
+        reopened.append(newLog("GET", "/next", total));
+        assertEquals("/next", reopened.readRecent(1).get(0).getUrl());
+    }
+
+    @Test
+    public void staleEntryDoesNotOverwriteItsSlot() throws IOException {
+        RequestJournal journal = RequestJournal.open(file);
+        HomeAssistantApiClient.ApiRequestLog stale = newLog("GET", "/stale", 0);
+        journal.append(stale);
+        for (int i = 1; i <= RequestJournal.CAPACITY; i++) {
+            journal.append(newLog("GET", "/" + i, i));
+        }
+
+        stale.setResponse(500, "", 10);
+        journal.write(stale);
+
+        List<HomeAssistantApiClient.ApiRequestLog> logs = journal.readRecent(Integer.MAX_VALUE);
+        assertEquals("/" + RequestJournal.CAPACITY, logs.get(0).getUrl());
+        assertEquals(0, logs.get(0).getStatusCode());
+    }
+
+    @Test
+    public void resetsAFileInAnotherFormat() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[]{1, 2, 3, 4});
+        }
+        RequestJournal journal = RequestJournal.open(file);
+        assertTrue(journal.readRecent(10).isEmpty());
+        journal.append(newLog("GET", "/api/", 1));
+        assertEquals(1, RequestJournal.open(file).readRecent(10).size());
+    }
+
+    private static HomeAssistantApiClient.ApiRequestLog newLog(String method, String url, long timestampMs) {
+        return new HomeAssistantApiClient.ApiRequestLog(method, url, timestampMs);
+    }
+}
@@ -0,0 +1,95 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestLogBufferTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityThatIsNotAPowerOfTwo() {
+        new RequestLogBuffer(6);
+    }
+
+    @Test
+    public void emptyBufferHasNoEntries() {
+        assertTrue(new RequestLogBuffer(4).snapshot().isEmpty());
+    }
+
+    @Test
+    public void returnsEntriesMostRecentFirst() {
+        RequestLogBuffer buffer = new RequestLogBuffer(4);
+        addAll(buffer, "a", "b", "c");
+        assertUrls(buffer.snapshot(), "c", "b", "a");
+    }
+
+    @Test
+    public void overwritesTheOldestEntriesWhenFull() {
+        RequestLogBuffer buffer = new RequestLogBuffer(4);
+        addAll(buffer, "a", "b", "c", "d", "e", "f");
+        assertUrls(buffer.snapshot(), "f", "e", "d", "c");
+    }
+
+    @Test
+    public void clearDropsEarlierEntries() {
+        RequestLogBuffer buffer = new RequestLogBuffer(4);
+        addAll(buffer, "a", "b", "c");
+        buffer.clear();
+        assertTrue(buffer.snapshot().isEmpty());
+
+        addAll(buffer, "d");
+        assertUrls(buffer.snapshot(), "d");
+    }
+
+    @Test
+    public void clearAfterWrappingKeepsOnlyNewEntries() {
+        RequestLogBuffer buffer = new RequestLogBuffer(4);
+        addAll(buffer, "a", "b", "c", "d", "e");
+        buffer.clear();
+        addAll(buffer, "f", "g");
+        assertUrls(buffer.snapshot(), "g", "f");
+    }
+
+    @Test
+    public void keepsEveryEntryFromConcurrentWriters() throws InterruptedException {
+        final RequestLogBuffer buffer = new RequestLogBuffer(1024);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final String prefix = "t" + t + "/";
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        buffer.add(new HomeAssistantApiClient.ApiRequestLog("GET", prefix + i));
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        List<HomeAssistantApiClient.ApiRequestLog> snapshot = buffer.snapshot();
+        assertEquals(800, snapshot.size());
+        for (int i = 1; i < snapshot.size(); i++) {
+            assertTrue(snapshot.get(i - 1).sequence > snapshot.get(i).sequence);
+        }
+    }
+
+    private static void addAll(RequestLogBuffer buffer, String... urls) {
+        for (String url : urls) {
+            buffer.add(new HomeAssistantApiClient.ApiRequestLog("GET", url));
+        }
+    }
+
+    private static void assertUrls(List<HomeAssistantApiClient.ApiRequestLog> logs, String... urls) {
+        assertEquals(urls.length, logs.size());
+        for (int i = 0; i < urls.length; i++) {
+            assertEquals(urls[i], logs.get(i).getUrl());
+        }
+    }
+}
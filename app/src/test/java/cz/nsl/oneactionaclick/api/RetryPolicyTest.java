@@ -0,0 +1,109 @@
+package cz.nsl.oneactionaclick.api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void classifiesFailuresBeforeTheRequestWasSent() {
+        assertEquals(RetryPolicy.FailureKind.DNS, RetryPolicy.classify(new UnknownHostException("ha.local")));
+        assertEquals(RetryPolicy.FailureKind.CONNECT_TIMEOUT, RetryPolicy.classify(new ConnectException("refused")));
+        assertEquals(RetryPolicy.FailureKind.CONNECT_TIMEOUT, RetryPolicy.classify(new NoRouteToHostException()));
+        assertEquals(RetryPolicy.FailureKind.CONNECT_TIMEOUT,
+                RetryPolicy.classify(new SocketTimeoutException("failed to connect to ha.local")));
+    }
+
+    @Test
+    public void missingTokenIsNotRetried() {
+        assertEquals(RetryPolicy.FailureKind.NO_TOKEN, RetryPolicy.classify(new TokenUnavailableException("refresh failed")));
+        assertFalse(RetryPolicy.forRead().shouldRetry(RetryPolicy.FailureKind.NO_TOKEN, 1));
+    }
+
+    @Test
+    public void readTimeoutIsNotAConnectFailure() {
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(new SocketTimeoutException("timeout")));
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(new SocketTimeoutException()));
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(new IOException("stream reset")));
+    }
+
+    @Test
+    public void classifiesStatusCodes() {
+        assertEquals(RetryPolicy.FailureKind.UNAUTHORIZED, RetryPolicy.classify(401));
+        assertEquals(RetryPolicy.FailureKind.SERVER_ERROR, RetryPolicy.classify(500));
+        assertEquals(RetryPolicy.FailureKind.SERVER_ERROR, RetryPolicy.classify(503));
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(400));
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(404));
+    }
+
+    @Test
+    public void recognizesIdempotentServices() {
+        assertTrue(RetryPolicy.isIdempotentService("turn_on"));
+        assertTrue(RetryPolicy.isIdempotentService("close_cover"));
+        assertTrue(RetryPolicy.isIdempotentService("set_temperature"));
+        assertFalse(RetryPolicy.isIdempotentService("toggle"));
+        assertFalse(RetryPolicy.isIdempotentService("press"));
+        assertFalse(RetryPolicy.isIdempotentService(null));
+    }
+
+    @Test
+    public void retriesConnectFailuresForEveryRequest() {
+        RetryPolicy policy = RetryPolicy.forServiceCall("toggle");
+        assertTrue(policy.shouldRetry(RetryPolicy.FailureKind.DNS, 1));
+        assertTrue(policy.shouldRetry(RetryPolicy.FailureKind.CONNECT_TIMEOUT, 1));
+    }
+
+    @Test
+    public void retriesServerErrorsOnlyWhenIdempotent() {
+        assertTrue(RetryPolicy.forRead().shouldRetry(RetryPolicy.FailureKind.SERVER_ERROR, 1));
+        assertTrue(RetryPolicy.forServiceCall("turn_off").shouldRetry(RetryPolicy.FailureKind.SERVER_ERROR, 1));
+        assertFalse(RetryPolicy.forServiceCall("toggle").shouldRetry(RetryPolicy.FailureKind.SERVER_ERROR, 1));
+    }
+
+    @Test
+    public void neverRetriesUnauthorizedOrOther() {
+        RetryPolicy policy = RetryPolicy.forRead();
+        assertFalse(policy.shouldRetry(RetryPolicy.FailureKind.UNAUTHORIZED, 1));
+        assertFalse(policy.shouldRetry(RetryPolicy.FailureKind.OTHER, 1));
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() {
+        RetryPolicy policy = RetryPolicy.forRead();
+        int maxAttempts = policy.getMaxAttempts();
+        assertTrue(policy.shouldRetry(RetryPolicy.FailureKind.DNS, maxAttempts - 1));
+        assertFalse(policy.shouldRetry(RetryPolicy.FailureKind.DNS, maxAttempts));
+    }
+
+    @Test
+    public void backoffStaysInTheUpperHalfOfTheInterval() {
+        RetryPolicy policy = RetryPolicy.forRead();
+        for (int i = 0; i < 100; i++) {
+            assertInRange(policy.backoffMs(1), 250, 500);
+            assertInRange(policy.backoffMs(2), 500, 1000);
+            assertInRange(policy.backoffMs(3), 1000, 2000);
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        RetryPolicy policy = RetryPolicy.forRead();
+        for (int i = 0; i < 100; i++) {
+            assertInRange(policy.backoffMs(10), 4000, 8000);
+            assertInRange(policy.backoffMs(100), 4000, 8000);
+        }
+    }
+
+    private static void assertInRange(long value, long min, long max) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}